@@ -0,0 +1,29 @@
+package dp.src;
+
+/**
+ * An aggregate the {@link AggregationEngine} can compute for every partition.
+ * Each one is backed by a per-partition accumulator that is filled during the
+ * single scan over the visits.
+ */
+enum Aggregate {
+  /** The number of visits. */
+  COUNT,
+  /** The sum of a measure over the visits. */
+  SUM,
+  /** The mean of a measure over the visits; accumulates a count and a sum. */
+  MEAN,
+  /** The number of distinct patients. */
+  DISTINCT_IDS,
+  /** The clamped values of a measure, in visit order, ready to be fed to a private aggregation. */
+  CLAMPED_VALUES,
+  /**
+   * The sum of the clamped values of a measure per patient, in order of the patients'
+   * first visits, ready to be fed to a private aggregation as one entry per patient.
+   */
+  PATIENT_SUMS,
+  /**
+   * The quantiles of a measure over the visits: exact, from a count of every value, for
+   * {@link Measure#integral integral} measures, and from a {@link QuantileSketch} otherwise.
+   */
+  QUANTILES
+}
@@ -0,0 +1,516 @@
+package dp.src;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.SplittableRandom;
+
+import util.src.Debug;
+import util.src.PatientTable;
+import util.src.Status;
+
+/**
+ * Computes every aggregate requested by the DP jobs in a single scan over the
+ * visits. Jobs request (dimension, measure, aggregate) triples, either over all
+ * visits or over the visits left after bounding each patient to a number of
+ * partitions of the dimension, and optionally to a number of visits per partition.
+ * A dimension may also be bounded by a finer one, so that several coarser dimensions
+ * share one bounded set of visits.
+ * The engine then bounds each (dimension, bound) pair once, walks the shared
+ * table of visits once and feeds every visit to the accumulators of every set of
+ * partitions it belongs to. Both the non-private and the private statistics are
+ * read from the resulting {@link Aggregates}.
+ *
+ * An append-only CSV file can also be aggregated incrementally, see
+ * {@link #computeIncremental(Path, Path)}.
+ */
+class AggregationEngine {
+
+  /** An aggregate of a measure; the measure is null for aggregates that take none. */
+  record Aggregation(Measure measure, Aggregate aggregate) { }
+
+  /**
+   * A set of partitions to aggregate over: all visits, or the visits left after bounding each
+   * patient to a number of partitions of {@code boundedBy}, which is the dimension itself unless it
+   * {@link Dimension#coarsens coarsens} another. Visits of a patient beyond the per-partition limit
+   * are left out of every aggregate of the view.
+   */
+  private record View(Dimension<?> dimension, Dimension<?> boundedBy, int maxPartitionsContributed,
+      int maxContributionsPerPartition) {
+    View(Dimension<?> dimension, int maxPartitionsContributed, int maxContributionsPerPartition) {
+      this(dimension, dimension, maxPartitionsContributed, maxContributionsPerPartition);
+    }
+
+    View(Dimension<?> dimension, int maxPartitionsContributed) {
+      this(dimension, dimension, maxPartitionsContributed, UNBOUNDED);
+    }
+
+    View(Dimension<?> dimension, Dimension<?> boundedBy, int maxPartitionsContributed) {
+      this(dimension, boundedBy, maxPartitionsContributed, UNBOUNDED);
+    }
+
+    /** Returns the view whose bounded visits this one reads, without the per-partition limit. */
+    View bound() {
+      return new View(boundedBy, maxPartitionsContributed);
+    }
+  }
+
+  /** Bound of the view over all visits, and per-partition limit of views without one. */
+  private static final int UNBOUNDED = 0;
+
+  private final Map<View, Set<Aggregation>> requests = new LinkedHashMap<>();
+  private final ContributionBoundingUtils.Strategy bounding;
+  private final SplittableRandom random;
+  private final int sketchPrecision;
+
+  /**
+   * Creates an engine without requests.
+   *
+   * @param bounding How the bounded views choose the partitions each patient keeps.
+   * @param random The source of randomness of the bounding. Every bounded view gets its own
+   *     stream split off it in request order, so a generator with a fixed seed gives the same
+   *     bounded visits on every run.
+   * @param sketchPrecision The precision of the {@link HyperLogLog} sketches that estimate the
+   *     {@link Aggregate#DISTINCT_IDS} over all visits, or 0 to count them exactly. Bounded views
+   *     always count exactly, as their counts feed private aggregations.
+   */
+  AggregationEngine(ContributionBoundingUtils.Strategy bounding, SplittableRandom random, int sketchPrecision) {
+    if (sketchPrecision != 0
+        && (sketchPrecision < HyperLogLog.MIN_PRECISION || sketchPrecision > HyperLogLog.MAX_PRECISION)) {
+      throw new IllegalArgumentException("Sketch precision must be between " + HyperLogLog.MIN_PRECISION
+          + " and " + HyperLogLog.MAX_PRECISION + ": " + sketchPrecision);
+    }
+    this.bounding = Objects.requireNonNull(bounding);
+    this.random = Objects.requireNonNull(random);
+    this.sketchPrecision = sketchPrecision;
+  }
+
+  /**
+   * Requests an aggregate of a measure per partition over all visits.
+   *
+   * @param dimension The dimension to partition by.
+   * @param measure The measure to aggregate.
+   * @param aggregate {@link Aggregate#SUM}, {@link Aggregate#MEAN}, {@link Aggregate#CLAMPED_VALUES},
+   *     {@link Aggregate#PATIENT_SUMS} or {@link Aggregate#QUANTILES}.
+   */
+  void request(Dimension<?> dimension, Measure measure, Aggregate aggregate) {
+    add(new View(dimension, UNBOUNDED), measure, aggregate);
+  }
+
+  /**
+   * Requests an aggregate per partition over all visits.
+   *
+   * @param dimension The dimension to partition by.
+   * @param aggregate {@link Aggregate#COUNT} or {@link Aggregate#DISTINCT_IDS}.
+   */
+  void request(Dimension<?> dimension, Aggregate aggregate) {
+    add(new View(dimension, UNBOUNDED), null, aggregate);
+  }
+
+  /**
+   * Requests an aggregate of a measure per partition over the visits left after each
+   * patient has been limited to the given number of partitions.
+   *
+   * @param dimension The dimension to partition by.
+   * @param maxPartitionsContributed The maximum number of partitions a patient may contribute to.
+   * @param measure The measure to aggregate.
+   * @param aggregate {@link Aggregate#SUM}, {@link Aggregate#MEAN}, {@link Aggregate#CLAMPED_VALUES},
+   *     {@link Aggregate#PATIENT_SUMS} or {@link Aggregate#QUANTILES}.
+   */
+  void requestBounded(Dimension<?> dimension, int maxPartitionsContributed, Measure measure, Aggregate aggregate) {
+    add(new View(dimension, checkBound(maxPartitionsContributed)), measure, aggregate);
+  }
+
+  /**
+   * Requests an aggregate of a measure per partition over the visits left after each
+   * patient has been limited to the given number of partitions, and to the given number
+   * of visits within each of them. The visits kept within a partition are the patient's
+   * first ones in store order.
+   *
+   * @param dimension The dimension to partition by.
+   * @param maxPartitionsContributed The maximum number of partitions a patient may contribute to.
+   * @param maxContributionsPerPartition The maximum number of visits a patient may contribute per partition.
+   * @param measure The measure to aggregate.
+   * @param aggregate {@link Aggregate#SUM}, {@link Aggregate#MEAN}, {@link Aggregate#CLAMPED_VALUES},
+   *     {@link Aggregate#PATIENT_SUMS} or {@link Aggregate#QUANTILES}.
+   */
+  void requestBounded(Dimension<?> dimension, int maxPartitionsContributed, int maxContributionsPerPartition,
+      Measure measure, Aggregate aggregate) {
+    add(new View(dimension, checkBound(maxPartitionsContributed), checkBound(maxContributionsPerPartition)),
+        measure, aggregate);
+  }
+
+  /**
+   * Requests an aggregate per partition over the visits left after each patient has
+   * been limited to the given number of partitions.
+   *
+   * @param dimension The dimension to partition by.
+   * @param maxPartitionsContributed The maximum number of partitions a patient may contribute to.
+   * @param aggregate {@link Aggregate#COUNT} or {@link Aggregate#DISTINCT_IDS}.
+   */
+  void requestBounded(Dimension<?> dimension, int maxPartitionsContributed, Aggregate aggregate) {
+    add(new View(dimension, checkBound(maxPartitionsContributed)), null, aggregate);
+  }
+
+  /**
+   * Requests an aggregate per partition over the visits left after each patient has been
+   * limited to the given number of partitions of a finer dimension. Every dimension bounded by
+   * the same finer one reads the same bounded visits, so a patient is bounded once for all of
+   * them, and is left in at most that many partitions of each.
+   *
+   * @param dimension The dimension to partition by.
+   * @param boundedBy The dimension to bound by, which {@code dimension} must {@link Dimension#coarsens coarsen}.
+   * @param maxPartitionsContributed The maximum number of partitions of {@code boundedBy} a patient may contribute to.
+   * @param aggregate {@link Aggregate#COUNT} or {@link Aggregate#DISTINCT_IDS}.
+   * @throws IllegalArgumentException if {@code dimension} does not coarsen {@code boundedBy}.
+   */
+  void requestBounded(Dimension<?> dimension, Dimension<?> boundedBy, int maxPartitionsContributed,
+      Aggregate aggregate) {
+    if (!dimension.coarsens(boundedBy)) {
+      throw new IllegalArgumentException(dimension + " cannot be bounded by " + boundedBy);
+    }
+    add(new View(dimension, boundedBy, checkBound(maxPartitionsContributed)), null, aggregate);
+  }
+
+  /** Returns every dimension an aggregate was requested for, in order of the first request. */
+  Dimension<?>[] dimensions() {
+    Set<Dimension<?>> dimensions = new LinkedHashSet<>();
+    requests.keySet().forEach(view -> {
+      dimensions.add(view.dimension());
+      dimensions.add(view.boundedBy());
+    });
+    return dimensions.toArray(new Dimension<?>[0]);
+  }
+
+  /**
+   * Computes every requested aggregate.
+   *
+   * @param index The visits, indexed by at least every requested dimension.
+   * @return The aggregates.
+   */
+  Aggregates compute(PartitionIndex index) {
+    // Views that only differ in their per-partition limit share one bounded set of partitions,
+    // and views bounded by the same finer dimension share the rows it keeps.
+    Map<View, Partitions<?>> bounds = new LinkedHashMap<>();
+    Map<View, Partitions<?>> bounded = new LinkedHashMap<>();
+    Map<View, PartitionAggregates<?>> computed = new LinkedHashMap<>();
+    List<Partitions<?>> scanned = new ArrayList<>();
+    requests.forEach((view, aggregations) -> {
+      Partitions<?> bound = bounds.computeIfAbsent(view.bound(), v -> partitions(index, v));
+      Partitions<?> partitions = bounded.computeIfAbsent(
+          new View(view.dimension(), view.boundedBy(), view.maxPartitionsContributed()),
+          v -> v.dimension() == v.boundedBy() ? bound : index.partitions(v.dimension()).retain(bound));
+      computed.put(view, new PartitionAggregates<>(
+          partitions, aggregations, view.maxContributionsPerPartition(), precision(view)));
+      scanned.add(partitions);
+    });
+
+    List<PartitionAggregates<?>> accumulators = new ArrayList<>(computed.values());
+    PatientTable table = index.table();
+    for (int row = 0; row < table.rows; row++) {
+      for (int i = 0; i < accumulators.size(); i++) {
+        Partitions<?> partitions = scanned.get(i);
+        if (partitions.contains(row)) {
+          accumulators.get(i).add(partitions.codeOf(row), table, row);
+        }
+      }
+    }
+    return new Aggregates(computed);
+  }
+
+  /** The aggregates carried over between incremental runs. */
+  private record State(Map<View, PartitionAggregates<?>> unbounded, Map<View, ContributionState> bounded) { }
+
+  /**
+   * Computes every requested aggregate over the visits of an append-only CSV file, carrying
+   * the aggregates of earlier runs over in a state file. Only the lines appended since the
+   * previous run are parsed; the state file is then updated to cover them. If the state file
+   * does not exist or no longer matches the file or the requests, all visits are aggregated.
+   *
+   * Aggregates over all visits are carried over as their per-partition accumulators. Bounded
+   * aggregates are carried over as every patient's contributions to every partition, which
+   * are bounded again after the new visits have been added: a patient keeps the partitions
+   * whose visits drew the lowest random priorities, as with the reservoir strategy, whatever
+   * bounding strategy the engine was created with. The visits kept within a partition are the
+   * patient's first ones in file order. Views bounded by a finer dimension project the partitions
+   * kept in it onto their own.
+   *
+   * @param csv The uncompressed CSV file.
+   * @param stateFile Where the state is kept between runs.
+   * @return The aggregates over every complete line of the file.
+   * @throws IllegalStateException if an aggregate cannot be carried over, i.e. clamped values or
+   *     per-patient sums over all visits, or an aggregate of a measure over a bounded view without
+   *     a per-partition limit; or if a file cannot be read or written.
+   */
+  Aggregates computeIncremental(Path csv, Path stateFile) {
+    // Every bound keeps the values of as many visits per partition as the largest limit needs.
+    Map<View, Integer> boundings = new LinkedHashMap<>();
+    requests.forEach((view, aggregations) -> {
+      boolean measured = aggregations.stream().anyMatch(aggregation -> aggregation.measure() != null);
+      if (view.maxPartitionsContributed() == UNBOUNDED) {
+        if (aggregations.stream().anyMatch(aggregation -> aggregation.aggregate() == Aggregate.CLAMPED_VALUES
+            || aggregation.aggregate() == Aggregate.PATIENT_SUMS)) {
+          throw new IllegalStateException("Clamped values and per-patient sums per " + view.dimension()
+              + " cannot be computed incrementally");
+        }
+        return;
+      }
+      if (measured && view.maxContributionsPerPartition() == UNBOUNDED) {
+        throw new IllegalStateException("Aggregates of a measure per " + view.dimension() + " bounded to "
+            + view.maxPartitionsContributed() + " need a per-partition limit to be computed incrementally");
+      }
+      boundings.merge(view.bound(), measured ? view.maxContributionsPerPartition() : 0, Math::max);
+    });
+    String fingerprint = requests + ", sketch precision " + sketchPrecision;
+
+    Optional<IncrementalState.Loaded<State>> loaded;
+    try {
+      loaded = IncrementalState.load(stateFile, csv, fingerprint, in -> {
+        State state = new State(new LinkedHashMap<>(), new LinkedHashMap<>());
+        for (Map.Entry<View, Set<Aggregation>> request : requests.entrySet()) {
+          View view = request.getKey();
+          if (view.maxPartitionsContributed() == UNBOUNDED) {
+            state.unbounded().put(view,
+                PartitionAggregates.readFrom(in, view.dimension(), request.getValue(), sketchPrecision));
+          }
+        }
+        for (Map.Entry<View, Integer> bounding : boundings.entrySet()) {
+          View view = bounding.getKey();
+          state.bounded().put(view, ContributionState.readFrom(
+              in, view.dimension(), view.maxPartitionsContributed(), bounding.getValue()));
+        }
+        return state;
+      });
+    } catch (IOException e) {
+      Debug.print(Status.WARNING, "Ignoring unreadable state: " + e);
+      loaded = Optional.empty();
+    }
+    if (loaded.isEmpty()) {
+      Debug.print(Status.INFO, "No matching state in " + stateFile + ", aggregating every visit");
+    }
+    long offset = loaded.map(IncrementalState.Loaded::offset).orElse(0L);
+    long folded = loaded.map(IncrementalState.Loaded::visits).orElse(0L);
+    State state = loaded.map(IncrementalState.Loaded::body).orElseGet(() -> {
+      State empty = new State(new LinkedHashMap<>(), new LinkedHashMap<>());
+      requests.forEach((view, aggregations) -> {
+        if (view.maxPartitionsContributed() == UNBOUNDED) {
+          empty.unbounded().put(view, new PartitionAggregates<>(
+              view.dimension(), 0, 0, aggregations, UNBOUNDED, sketchPrecision));
+        }
+      });
+      boundings.forEach((view, stored) -> empty.bounded().put(view,
+          new ContributionState(view.dimension(), view.maxPartitionsContributed(), stored)));
+      return empty;
+    });
+
+    IOUtils.Appended appended = IOUtils.readVisitsAppended(csv, offset);
+    PartitionIndex index = PartitionIndex.build(appended.visits(), dimensions());
+    PatientTable table = index.table();
+    Debug.print(Status.INFO, "Folding " + table.rows + " new visits into " + folded + " earlier ones");
+
+    // Add the new visits to the carried over aggregates and contributions.
+    Map<View, PartitionAggregates<?>> merged = new LinkedHashMap<>();
+    state.unbounded().forEach((view, restored) ->
+        merged.put(view, fold(restored, index.partitions(view.dimension()), requests.get(view))));
+    double[] values = new double[Measure.values().length];
+    state.bounded().forEach((view, contributions) -> {
+      Partitions<?> partitions = index.partitions(view.dimension());
+      SplittableRandom priorities = random.split();
+      for (int row = 0; row < table.rows; row++) {
+        if (partitions.contains(row)) {
+          for (Measure measure : Measure.values()) {
+            values[measure.ordinal()] = measure.of(table, row);
+          }
+          contributions.offer(table.id(row), partitions.codeOf(row), priorities.nextLong(), values);
+        }
+      }
+    });
+
+    Map<View, PartitionAggregates<?>> computed = new LinkedHashMap<>();
+    requests.forEach((view, aggregations) -> computed.put(view, view.maxPartitionsContributed() == UNBOUNDED
+        ? merged.get(view)
+        : bound(state.bounded().get(view.bound()), view, aggregations)));
+
+    try {
+      IncrementalState.save(stateFile, csv, fingerprint, appended.end(), folded + table.rows, out -> {
+        for (PartitionAggregates<?> aggregates : merged.values()) {
+          aggregates.writeTo(out);
+        }
+        for (ContributionState contributions : state.bounded().values()) {
+          contributions.writeTo(out);
+        }
+      });
+    } catch (IOException e) {
+      throw new IllegalStateException("Failed to write state: " + stateFile, e);
+    }
+    return new Aggregates(computed);
+  }
+
+  /** Returns aggregates over both the restored aggregates and the given new visits. */
+  @SuppressWarnings("unchecked")
+  private <K> PartitionAggregates<K> fold(
+      PartitionAggregates<?> restored, Partitions<K> partitions, Set<Aggregation> aggregations) {
+    int minCode = partitions.minCode();
+    int maxCode = partitions.minCode() + partitions.codeSpan() - 1;
+    if (partitions.codeSpan() == 0) {
+      minCode = restored.minCode();
+      maxCode = restored.minCode() + restored.codeSpan() - 1;
+    } else if (restored.codeSpan() != 0) {
+      minCode = Math.min(minCode, restored.minCode());
+      maxCode = Math.max(maxCode, restored.minCode() + restored.codeSpan() - 1);
+    }
+    PartitionAggregates<K> result = new PartitionAggregates<>(
+        partitions.dimension(), minCode, maxCode - minCode + 1, aggregations, UNBOUNDED, sketchPrecision);
+    result.mergeFrom((PartitionAggregates<K>) restored);
+    PatientTable table = partitions.table();
+    for (int row = 0; row < table.rows; row++) {
+      if (partitions.contains(row)) {
+        result.add(partitions.codeOf(row), table, row);
+      }
+    }
+    return result;
+  }
+
+  /** Returns the aggregates of a bounded view over the contributions each patient keeps. */
+  private static PartitionAggregates<?> bound(
+      ContributionState contributions, View view, Set<Aggregation> aggregations) {
+    int minCode = contributions.minCode();
+    int maxCode = contributions.maxCode();
+    Dimension<?> dimension = view.dimension();
+    if (dimension != view.boundedBy()) {
+      // The contributions are kept per partition of the finer dimension, so the range of codes is that of their projections.
+      int[] range = {Integer.MAX_VALUE, Integer.MIN_VALUE};
+      contributions.forEachKept((id, code, visits, stored, offset) -> {
+        int projected = dimension.project(view.boundedBy(), code);
+        range[0] = Math.min(range[0], projected);
+        range[1] = Math.max(range[1], projected);
+      });
+      minCode = range[0] == Integer.MAX_VALUE ? 0 : range[0];
+      maxCode = range[0] == Integer.MAX_VALUE ? -1 : range[1];
+    }
+    PartitionAggregates<?> result = new PartitionAggregates<>(dimension, minCode,
+        maxCode - minCode + 1, aggregations, view.maxContributionsPerPartition(), 0);
+    int measures = Measure.values().length;
+    double[] values = new double[measures];
+    contributions.forEachKept((id, kept, visits, stored, offset) -> {
+      int code = dimension.project(view.boundedBy(), kept);
+      int count = view.maxContributionsPerPartition() == UNBOUNDED
+          ? visits : Math.min(visits, view.maxContributionsPerPartition());
+      for (int visit = 0; visit < count; visit++) {
+        // Views without a per-partition limit aggregate no measure, so visits without stored values carry none.
+        if (visit < contributions.storedVisits()) {
+          System.arraycopy(stored, offset + visit * measures, values, 0, measures);
+        } else {
+          Arrays.fill(values, 0);
+        }
+        result.add(code, id, values);
+      }
+    });
+    return result;
+  }
+
+  /** Returns the sketch precision of the distinct patients of a view. */
+  private int precision(View view) {
+    return view.maxPartitionsContributed() == UNBOUNDED ? sketchPrecision : 0;
+  }
+
+  /** Returns the partitions of a view, bounded with a random stream of their own. */
+  private Partitions<?> partitions(PartitionIndex index, View view) {
+    Partitions<?> partitions = index.partitions(view.dimension());
+    if (view.maxPartitionsContributed() == UNBOUNDED) {
+      return partitions;
+    }
+    return ContributionBoundingUtils.boundContributedPartitions(
+        partitions, view.maxPartitionsContributed(), bounding, random.split());
+  }
+
+  private void add(View view, Measure measure, Aggregate aggregate) {
+    boolean measured = aggregate == Aggregate.SUM || aggregate == Aggregate.MEAN
+        || aggregate == Aggregate.CLAMPED_VALUES || aggregate == Aggregate.PATIENT_SUMS
+        || aggregate == Aggregate.QUANTILES;
+    if (measured != (measure != null)) {
+      throw new IllegalArgumentException(
+          "Aggregate " + aggregate + (measured ? " needs a measure" : " takes no measure"));
+    }
+    requests.computeIfAbsent(view, v -> new LinkedHashSet<>()).add(new Aggregation(measure, aggregate));
+  }
+
+  private static int checkBound(int maxContributions) {
+    if (maxContributions < 1) {
+      throw new IllegalArgumentException("A patient must be allowed to contribute at least once");
+    }
+    return maxContributions;
+  }
+
+  /** The aggregates computed by {@link #compute(PartitionIndex)}. */
+  static class Aggregates {
+    private final Map<View, PartitionAggregates<?>> computed;
+
+    private Aggregates(Map<View, PartitionAggregates<?>> computed) {
+      this.computed = computed;
+    }
+
+    /**
+     * Returns the aggregates over all visits, partitioned by the given dimension.
+     *
+     * @throws IllegalStateException if no such aggregate was requested.
+     */
+    <K> PartitionAggregates<K> of(Dimension<K> dimension) {
+      return get(new View(dimension, UNBOUNDED));
+    }
+
+    /**
+     * Returns the aggregates over the visits left after limiting every patient to the given
+     * number of partitions of the given dimension. All requests for the same dimension and
+     * bound share one bounded set of visits.
+     *
+     * @throws IllegalStateException if no such aggregate was requested.
+     */
+    <K> PartitionAggregates<K> bounded(Dimension<K> dimension, int maxPartitionsContributed) {
+      return get(new View(dimension, maxPartitionsContributed));
+    }
+
+    /**
+     * Returns the aggregates over the visits left after limiting every patient to the given
+     * number of partitions of a finer dimension, partitioned by the given dimension.
+     *
+     * @throws IllegalStateException if no such aggregate was requested.
+     */
+    <K> PartitionAggregates<K> bounded(
+        Dimension<K> dimension, Dimension<?> boundedBy, int maxPartitionsContributed) {
+      return get(new View(dimension, boundedBy, maxPartitionsContributed));
+    }
+
+    /**
+     * Returns the aggregates over the visits left after limiting every patient to the given
+     * number of partitions of the given dimension, and to the given number of visits in each.
+     *
+     * @throws IllegalStateException if no such aggregate was requested.
+     */
+    <K> PartitionAggregates<K> bounded(
+        Dimension<K> dimension, int maxPartitionsContributed, int maxContributionsPerPartition) {
+      return get(new View(dimension, maxPartitionsContributed, maxContributionsPerPartition));
+    }
+
+    @SuppressWarnings("unchecked")
+    private <K> PartitionAggregates<K> get(View view) {
+      PartitionAggregates<?> result = computed.get(Objects.requireNonNull(view));
+      if (result == null) {
+        throw new IllegalStateException("No aggregates were requested per " + view.dimension()
+            + (view.maxPartitionsContributed() == UNBOUNDED ? "" : " bounded to " + view.maxPartitionsContributed())
+            + (view.boundedBy() == view.dimension() ? "" : " per " + view.boundedBy())
+            + (view.maxContributionsPerPartition() == UNBOUNDED ? "" : " and " + view.maxContributionsPerPartition()
+                + " per partition"));
+      }
+      return (PartitionAggregates<K>) result;
+    }
+  }
+}
@@ -0,0 +1,141 @@
+package dp.src;
+
+import com.google.privacy.differentialprivacy.LaplaceNoise;
+import com.google.privacy.differentialprivacy.Noise;
+
+/**
+ * Releases the private aggregates of many partitions at once. The mechanism is
+ * configured and validated once; each release then adds noise to a whole array of
+ * pre-aggregated partition values, where building a {@code Count},
+ * {@code BoundedSum} or {@code BoundedMean} per partition would validate the same
+ * parameters and set up the same noise for every partition.
+ *
+ * Every release adds the same noise, with the same sensitivities, as the library's
+ * aggregation would for the same partition:
+ * <ul>
+ *   <li>{@link #counts} as {@code Count} with {@code incrementBy(count)},</li>
+ *   <li>{@link #sums} as {@code BoundedSum} fed one entry per patient, and</li>
+ *   <li>{@link #means} as {@code BoundedMean}, which spends half of the budget on the
+ *       count and half on the sum of the values shifted to the middle of their range.</li>
+ * </ul>
+ * As with the library, the caller is responsible for having bounded the contributions
+ * of every patient to the given limits.
+ */
+final class BatchedRelease {
+  private final Noise noise;
+  private final double epsilon;
+  private final int maxPartitionsContributed;
+
+  /**
+   * Creates a release with Laplace noise.
+   *
+   * @param epsilon The privacy budget spent on each partition.
+   * @param maxPartitionsContributed The maximum number of partitions a patient contributes to.
+   * @throws IllegalArgumentException if a parameter is out of range.
+   */
+  BatchedRelease(double epsilon, int maxPartitionsContributed) {
+    this(new LaplaceNoise(), epsilon, maxPartitionsContributed);
+  }
+
+  /**
+   * Creates a release with the given noise.
+   *
+   * @param noise The noise to add, which must be pure, i.e. take a delta of 0.
+   * @param epsilon The privacy budget spent on each partition.
+   * @param maxPartitionsContributed The maximum number of partitions a patient contributes to.
+   * @throws IllegalArgumentException if a parameter is out of range.
+   */
+  BatchedRelease(Noise noise, double epsilon, int maxPartitionsContributed) {
+    if (!(epsilon > 0) || Double.isInfinite(epsilon)) {
+      throw new IllegalArgumentException("Epsilon must be positive and finite: " + epsilon);
+    }
+    if (maxPartitionsContributed < 1) {
+      throw new IllegalArgumentException("A patient must be allowed to contribute to at least one partition");
+    }
+    this.noise = noise;
+    this.epsilon = epsilon;
+    this.maxPartitionsContributed = maxPartitionsContributed;
+  }
+
+  /** Returns the privacy budget spent on each partition. */
+  double epsilon() {
+    return epsilon;
+  }
+
+  /**
+   * Releases counts.
+   *
+   * @param counts The raw count of each partition.
+   * @param maxContributionsPerPartition The most a patient adds to the count of one partition.
+   * @return The noised count of each partition, in the order of {@code counts}.
+   */
+  long[] counts(long[] counts, int maxContributionsPerPartition) {
+    checkContributions(maxContributionsPerPartition);
+    long[] released = new long[counts.length];
+    for (int i = 0; i < counts.length; i++) {
+      released[i] = noise.addNoise(counts[i], maxPartitionsContributed, maxContributionsPerPartition, epsilon, 0.0);
+    }
+    return released;
+  }
+
+  /**
+   * Releases sums of one entry per patient and partition.
+   *
+   * @param sums The sum of the entries of each partition, every entry clamped to {@code [lower, upper]}.
+   * @param lower The smallest value of an entry.
+   * @param upper The largest value of an entry.
+   * @return The noised sum of each partition, in the order of {@code sums}.
+   */
+  double[] sums(double[] sums, double lower, double upper) {
+    checkBounds(lower, upper);
+    double maxEntry = Math.max(Math.abs(lower), Math.abs(upper));
+    double[] released = new double[sums.length];
+    for (int i = 0; i < sums.length; i++) {
+      released[i] = noise.addNoise(sums[i], maxPartitionsContributed, maxEntry, epsilon, 0.0);
+    }
+    return released;
+  }
+
+  /**
+   * Releases means.
+   *
+   * @param counts The number of values of each partition.
+   * @param sums The sum of the values of each partition, every value clamped to {@code [lower, upper]}.
+   * @param lower The smallest value.
+   * @param upper The largest value.
+   * @param maxContributionsPerPartition The maximum number of values of a patient in one partition.
+   * @return The noised mean of each partition, in {@code [lower, upper]} and in the order of {@code counts}.
+   */
+  double[] means(long[] counts, double[] sums, double lower, double upper, int maxContributionsPerPartition) {
+    if (counts.length != sums.length) {
+      throw new IllegalArgumentException(
+          "Got " + counts.length + " counts but " + sums.length + " sums");
+    }
+    checkBounds(lower, upper);
+    checkContributions(maxContributionsPerPartition);
+    double midpoint = lower * 0.5 + upper * 0.5;
+    double maxShifted = Math.abs(upper - midpoint) * maxContributionsPerPartition;
+    double half = epsilon * 0.5;
+    double[] released = new double[counts.length];
+    for (int i = 0; i < counts.length; i++) {
+      long count = Math.max(1, noise.addNoise(
+          counts[i], maxPartitionsContributed, maxContributionsPerPartition, half, 0.0));
+      double shiftedSum = noise.addNoise(
+          sums[i] - counts[i] * midpoint, maxPartitionsContributed, maxShifted, half, 0.0);
+      released[i] = Math.max(lower, Math.min(upper, shiftedSum / count + midpoint));
+    }
+    return released;
+  }
+
+  private static void checkContributions(int maxContributionsPerPartition) {
+    if (maxContributionsPerPartition < 1) {
+      throw new IllegalArgumentException("A patient must be allowed to contribute at least once per partition");
+    }
+  }
+
+  private static void checkBounds(double lower, double upper) {
+    if (!(lower <= upper) || Double.isInfinite(lower) || Double.isInfinite(upper)) {
+      throw new IllegalArgumentException("Bounds must be finite with lower <= upper: " + lower + ", " + upper);
+    }
+  }
+}
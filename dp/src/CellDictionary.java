@@ -0,0 +1,259 @@
+package dp.src;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import util.src.PatientTable;
+
+/**
+ * Assigns codes to the cells of a cross product of {@link Dimension}s, such as
+ * condition x blood type x year. A cell is identified by the partition code of the
+ * visit in every dimension. Codes are dense, start at 0 and are assigned in order of
+ * first appearance, so a set of partitions over the cells takes space for the cells
+ * that have visits rather than for the whole product of the dimensions' cardinalities.
+ *
+ * Cells are interned one dimension at a time: the code of the cell over the first
+ * dimensions and the partition code of the next dimension are packed into a long,
+ * which an open-addressing table of that level maps to the code of the longer prefix.
+ * The codes of the last level are the cell codes.
+ *
+ * Cells are assigned while the {@link PartitionIndex} is built, in a single thread,
+ * but may be looked up from several jobs at once.
+ */
+final class CellDictionary {
+
+  /** Separates the keys of the dimensions in the name of a cell. */
+  static final String SEPARATOR = "|";
+
+  /** The key of a cell: the partition key of every dimension, in the order of the dimensions. */
+  record Cell(List<Object> keys) {
+    @Override
+    public String toString() {
+      StringBuilder name = new StringBuilder();
+      for (Object key : keys) {
+        name.append(name.length() == 0 ? "" : SEPARATOR).append(key);
+      }
+      return name.toString();
+    }
+  }
+
+  private final Dimension<?>[] dimensions;
+  /** The prefix tables, one per dimension after the first. */
+  private final Level[] levels;
+  /** The canonical key of every cell, by code. */
+  private volatile Cell[] cells = new Cell[16];
+
+  /**
+   * Creates an empty dictionary.
+   *
+   * @param dimensions The dimensions to cross, at least two.
+   * @throws IllegalArgumentException if fewer than two dimensions are given.
+   */
+  CellDictionary(Dimension<?>... dimensions) {
+    if (dimensions.length < 2) {
+      throw new IllegalArgumentException("A cross product needs at least two dimensions");
+    }
+    this.dimensions = dimensions.clone();
+    this.levels = new Level[dimensions.length - 1];
+    for (int level = 0; level < levels.length; level++) {
+      levels[level] = new Level();
+    }
+  }
+
+  /**
+   * Returns the code of the cell of the given row of the table, assigning one if it is new, or
+   * {@link Dimension#NONE} if the row is in no partition of one of the dimensions.
+   */
+  synchronized int code(PatientTable table, int row) {
+    int[] codes = new int[dimensions.length];
+    for (int d = 0; d < dimensions.length; d++) {
+      codes[d] = dimensions[d].code(table, row);
+      if (codes[d] == Dimension.NONE) {
+        return Dimension.NONE;
+      }
+    }
+    return intern(codes);
+  }
+
+  /** Returns the code of the given cell, or {@link Dimension#NONE} if no visit has been seen in it. */
+  synchronized int codeOf(Cell cell) {
+    if (cell.keys().size() != dimensions.length) {
+      return Dimension.NONE;
+    }
+    int code = Dimension.NONE;
+    for (int d = 0; d < dimensions.length; d++) {
+      int partition = codeOf(dimensions[d], cell.keys().get(d));
+      code = partition == Dimension.NONE ? Dimension.NONE
+          : d == 0 ? partition
+          : levels[d - 1].find(code, partition);
+      if (code == Dimension.NONE) {
+        return Dimension.NONE;
+      }
+    }
+    return code;
+  }
+
+  /**
+   * Returns the code of the cell with the given {@link Dimension#name(int) name}, assigning one if
+   * it has never been seen. The name is that of the cell's partition in every dimension, joined by
+   * {@link #SEPARATOR}.
+   *
+   * @throws IllegalArgumentException if the name does not have a part for every dimension.
+   */
+  synchronized int codeOfName(String name) {
+    String[] parts = name.split(Pattern.quote(SEPARATOR), dimensions.length);
+    if (parts.length != dimensions.length) {
+      throw new IllegalArgumentException("Not a cell of " + this + ": " + name);
+    }
+    int[] codes = new int[dimensions.length];
+    for (int d = 0; d < dimensions.length; d++) {
+      codes[d] = dimensions[d].codeOfName(parts[d]);
+    }
+    return intern(codes);
+  }
+
+  /** Returns whether every dimension crossed here is also crossed by the given dictionary. */
+  boolean coarsens(CellDictionary finer) {
+    return Arrays.asList(finer.dimensions).containsAll(Arrays.asList(dimensions));
+  }
+
+  /**
+   * Returns the code of the cell that holds the given cell of a finer cross product, i.e. the
+   * cell whose key agrees with it in every dimension crossed here, assigning one if it is new.
+   *
+   * @throws IllegalArgumentException if this dictionary does not {@link #coarsens coarsen} the finer one.
+   */
+  synchronized int project(CellDictionary finer, int code) {
+    if (!coarsens(finer)) {
+      throw new IllegalArgumentException(finer + " does not refine " + this);
+    }
+    List<Object> keys = finer.cell(code).keys();
+    List<Dimension<?>> finerDimensions = Arrays.asList(finer.dimensions);
+    int[] codes = new int[dimensions.length];
+    for (int d = 0; d < dimensions.length; d++) {
+      codes[d] = codeOf(dimensions[d], keys.get(finerDimensions.indexOf(dimensions[d])));
+    }
+    return intern(codes);
+  }
+
+  /** Returns the key of the cell with the given code. */
+  Cell cell(int code) {
+    return cells[code];
+  }
+
+  /** Returns the names of the crossed dimensions, joined by " x ". */
+  @Override
+  public String toString() {
+    StringBuilder name = new StringBuilder();
+    for (Dimension<?> dimension : dimensions) {
+      name.append(name.length() == 0 ? "" : " x ").append(dimension);
+    }
+    return name.toString();
+  }
+
+  /** Returns the code of the cell with the given partition code in every dimension, assigning one if it is new. */
+  private int intern(int[] codes) {
+    Level last = levels[levels.length - 1];
+    int known = last.size;
+    int code = codes[0];
+    for (int d = 1; d < codes.length; d++) {
+      code = levels[d - 1].code(code, codes[d]);
+    }
+    if (last.size > known) {
+      addCell(code, codes);
+    }
+    return code;
+  }
+
+  private void addCell(int code, int[] codes) {
+    Object[] keys = new Object[codes.length];
+    for (int d = 0; d < codes.length; d++) {
+      keys[d] = dimensions[d].key(codes[d]);
+    }
+    Cell[] current = cells;
+    if (code == current.length) {
+      current = Arrays.copyOf(current, code * 2);
+    }
+    current[code] = new Cell(Collections.unmodifiableList(Arrays.asList(keys)));
+    // Publishing the array last makes the cell visible to any thread that reads its code.
+    cells = current;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <K> int codeOf(Dimension<K> dimension, Object key) {
+    return dimension.codeOf((K) key);
+  }
+
+  /** Maps (prefix code, partition code) pairs, packed into a long, to dense codes. */
+  private static final class Level {
+    private static final long EMPTY = -1;
+
+    private long[] keys = newKeys(16);
+    private int[] codes = new int[16];
+    private int size = 0;
+
+    /** Returns the code of the given pair, assigning the next one if it is new. */
+    int code(int prefix, int partition) {
+      long key = pack(prefix, partition);
+      int slot = slot(key);
+      if (keys[slot] == key) {
+        return codes[slot];
+      }
+      keys[slot] = key;
+      codes[slot] = size++;
+      if (size * 2 > keys.length) {
+        grow();
+      }
+      return size - 1;
+    }
+
+    /** Returns the code of the given pair, or {@link Dimension#NONE} if it has never been seen. */
+    int find(int prefix, int partition) {
+      long key = pack(prefix, partition);
+      int slot = slot(key);
+      return keys[slot] == key ? codes[slot] : Dimension.NONE;
+    }
+
+    /** Returns the slot holding the given key, or the empty slot where it belongs. */
+    private int slot(long key) {
+      int mask = keys.length - 1;
+      int slot = hash(key) & mask;
+      while (keys[slot] != EMPTY && keys[slot] != key) {
+        slot = (slot + 1) & mask;
+      }
+      return slot;
+    }
+
+    private void grow() {
+      long[] oldKeys = keys;
+      int[] oldCodes = codes;
+      keys = newKeys(oldKeys.length * 2);
+      codes = new int[oldKeys.length * 2];
+      for (int i = 0; i < oldKeys.length; i++) {
+        if (oldKeys[i] != EMPTY) {
+          int slot = slot(oldKeys[i]);
+          keys[slot] = oldKeys[i];
+          codes[slot] = oldCodes[i];
+        }
+      }
+    }
+
+    /** Both codes are non-negative, so no packed key is {@link #EMPTY}. */
+    private static long pack(int prefix, int partition) {
+      return ((long) prefix << 32) | partition;
+    }
+
+    private static int hash(long key) {
+      long h = key * 0x9E3779B97F4A7C15L;
+      return (int) (h ^ (h >>> 32));
+    }
+
+    private static long[] newKeys(int length) {
+      long[] keys = new long[length];
+      Arrays.fill(keys, EMPTY);
+      return keys;
+    }
+  }
+}
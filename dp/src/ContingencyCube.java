@@ -0,0 +1,99 @@
+package dp.src;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Calculates the raw and anonymized number of distinct patients in every cell of a set
+ * of cross-tabulations, such as condition x blood type x year or age group x admission
+ * type. Each cross-tabulation is a cuboid of the cube: a {@link Dimension#cross crossed
+ * dimension} whose partitions are the cells with visits, so that a cuboid takes space for
+ * its non-empty cells only. The cuboids are requested like any other dimension, so the
+ * {@link AggregationEngine} computes all of them in its single scan over the visits.
+ *
+ * Every cuboid is written to {@code dp/out/non_private_counts_per_<dimensions>.csv} and
+ * {@code dp/out/private_counts_per_<dimensions>.csv}, e.g.
+ * {@code private_counts_per_condition_by_blood_type_by_year.csv}, keyed by the names of the
+ * cell's partitions joined by {@link CellDictionary#SEPARATOR}. Which cells of the product
+ * appear in the private output is decided privately, as for {@link PatientCountPerSelectedKey},
+ * since most cells of a large product are empty or nearly so.
+ *
+ * Every patient is bounded once for the whole cube, to a number of cells of the finest cuboid,
+ * the cross of every dimension of the cube. Every cuboid is counted from the visits that bounding
+ * keeps, so a patient is in at most that many cells of each. The privacy budget given to the cube
+ * is split evenly between the cuboids, so the cube as a whole spends it once.
+ */
+class ContingencyCube {
+  /** The privacy budget {@link #run} releases the whole cube at. */
+  static final double LN_X = PatientCountPerSelectedKey.LN_X;
+
+  private final List<PatientCountPerSelectedKey<CellDictionary.Cell>> cuboids = new ArrayList<>();
+
+  /**
+   * Creates a cube.
+   * @param maxContributedCells The maximum number of cells of the finest cuboid, and so of each
+   *     cuboid, a single patient is counted in.
+   * @param cuboids The dimensions crossed by each cuboid, at least two per cuboid.
+   */
+  ContingencyCube(int maxContributedCells, Dimension<?>[]... cuboids) {
+    Set<Dimension<?>> crossed = new LinkedHashSet<>();
+    for (Dimension<?>[] dimensions : cuboids) {
+      crossed.addAll(Arrays.asList(dimensions));
+    }
+    Dimension<CellDictionary.Cell> finest = Dimension.cross(crossed.toArray(new Dimension<?>[0]));
+    for (Dimension<?>[] dimensions : cuboids) {
+      List<String> names = new ArrayList<>();
+      List<String> columns = new ArrayList<>();
+      for (Dimension<?> dimension : dimensions) {
+        names.add(dimension.toString().replace(' ', '_'));
+        columns.add(column(dimension.toString()));
+      }
+      this.cuboids.add(new PatientCountPerSelectedKey<>(Dimension.cross(dimensions), finest,
+          String.join("_by_", names), String.join(CellDictionary.SEPARATOR, columns), maxContributedCells,
+          LN_X / cuboids.length));
+    }
+  }
+
+  /**
+   * Requests the aggregates of every cuboid.
+   * @param engine The engine computing the aggregates of every job.
+   */
+  void request(AggregationEngine engine) {
+    cuboids.forEach(cuboid -> cuboid.request(engine));
+  }
+
+  /**
+   * Calculates raw and anonymized patient counts of every cuboid from the shared aggregates,
+   * and writes the results to CSV files.
+   * @param aggregates The aggregates requested by {@link #request(AggregationEngine)}.
+   * @param sink Receives the result tables.
+   */
+  void run(AggregationEngine.Aggregates aggregates, ResultSink sink) {
+    cuboids.forEach(cuboid -> cuboid.run(aggregates, sink));
+  }
+
+  /**
+   * Releases the anonymized patient counts of every cuboid, splitting the given privacy budget
+   * evenly between them, and writes them to the private output files.
+   * @param aggregates The aggregates requested by {@link #request(AggregationEngine)}.
+   * @param sink Receives the result tables.
+   * @param epsilon The privacy budget spent on the whole cube.
+   */
+  void release(AggregationEngine.Aggregates aggregates, ResultSink sink, double epsilon) {
+    cuboids.forEach(cuboid -> cuboid.release(aggregates, sink, epsilon / cuboids.size()));
+  }
+
+  /** Returns the column name of a dimension, e.g. {@code "Blood Type"} for {@code "blood type"}. */
+  private static String column(String name) {
+    StringBuilder column = new StringBuilder();
+    for (String word : name.split(" ")) {
+      column.append(column.length() == 0 ? "" : " ")
+          .append(word.substring(0, 1).toUpperCase(Locale.ROOT)).append(word.substring(1));
+    }
+    return column.toString();
+  }
+}
@@ -1,187 +1,169 @@
 package dp.src;
 
-import java.time.Year;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
-
-import util.src.PatientRecord;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+
+import util.src.PatientTable;
 
 /**
  * A utility class for applying contribution bounding to a patient dataset.
  * This is a crucial pre-processing step for differential privacy, ensuring that no
  * single patient can disproportionately influence the outcome of an analysis by
  * contributing to an excessive number of partitions (e.g., years, conditions).
+ *
+ * All randomness is drawn from the {@link SplittableRandom} passed in, so bounding
+ * with a generator of a fixed seed always keeps the same visits.
  */
 public class ContributionBoundingUtils {
 
-  private ContributionBoundingUtils() {
-  }
-
   /**
-   * Limits the number of distinct years a single patient can contribute records to.
-   *
-   * @param visits The original collection of visits, grouped by year.
-   * @param maxContributedYears The maximum number of different years a patient can contribute to.
-   * @return A new VisitsForYear object containing the bounded collection of visits.
+   * Number of patient shards the streaming strategy bounds independently. It is fixed rather
+   * than taken from the number of cores so that the result does not depend on the machine.
    */
-  static VisitsForYear boundContributedYears(VisitsForYear visits, int maxContributedYears) {
-    // Tracks the unique years each patient ID has contributed to.
-    Map<Integer, Set<Year>> boundedVisitorYears = new HashMap<>();
-    VisitsForYear boundedVisits = new VisitsForYear();
-    List<PatientRecord> allVisits = new ArrayList<>();
-
-    // Flatten all visits into a single list.
-    for (Year y : visits.getYearsWithData()) {
-      Collection<PatientRecord> visitsForYear = visits.getVisitsForYear(y);
-      allVisits.addAll(visitsForYear);
-    }
-    // Shuffle the records to prevent any bias from the original data ordering.
-    // The selection of which years are kept for a patient will be random.
-    Collections.shuffle(allVisits);
+  private static final int SHARDS = 64;
+  private static final int SHARD_BITS = Integer.numberOfTrailingZeros(SHARDS);
+
+  /** How the partitions a patient keeps are chosen. */
+  enum Strategy {
+    /** Walk a random permutation of all visits and keep each patient's first partitions. */
+    SHUFFLE,
+    /** Stream the visits in store order through a fixed-size reservoir of partitions per patient. */
+    RESERVOIR
+  }
 
-    // Iterate through each visit and decide whether to include it based on the contribution cap.
-    for (PatientRecord record : allVisits) {
-      int id = record.id;
-      Year visitYear = record.yearAdmitted();
-
-      // Get the set of years this patient has already contributed to.
-      Set<Year> visitorYears = boundedVisitorYears.computeIfAbsent(id, k -> new HashSet<>());
-
-      // Add the record if the patient has already contributed to this year,
-      // or if they have not yet reached their contribution limit for new years.
-      if (visitorYears.contains(visitYear) || visitorYears.size() < maxContributedYears) {
-        visitorYears.add(visitYear); // Add the year (no effect if already present).
-        boundedVisits.addVisit(record);
-      }
-    }
-    return boundedVisits;
+  private ContributionBoundingUtils() {
   }
 
   /**
-   * Limits the number of distinct blood groups a single patient can contribute records to.
+   * Limits the number of distinct partitions a single patient can contribute records to,
+   * choosing the kept partitions with the given strategy. Both strategies select the same
+   * partitions with the same probabilities.
    *
-   * @param visits The original collection of visits, grouped by blood group.
-   * @param maxContributedBG The maximum number of different blood groups a patient can contribute to.
-   * @return A new VisitsForBG object containing the bounded collection of visits.
+   * @param visits The original collection of visits, grouped by some dimension.
+   * @param maxContributedPartitions The maximum number of different partitions a patient can contribute to.
+   * @param strategy How the kept partitions are chosen.
+   * @param random The source of randomness, which is advanced.
+   * @return The bounded collection of visits, sharing the table of the original.
    */
-  static VisitsForBG boundContributedBG(VisitsForBG visits, int maxContributedBG) {
-    // Tracks the unique blood groups each patient ID has contributed to.
-    Map<Integer, Set<String>> boundedVisitorBG = new HashMap<>();
-    VisitsForBG boundedVisits = new VisitsForBG();
-    List<PatientRecord> allVisits = new ArrayList<>();
-
-    // Flatten all visits into a single list.
-    for (String BG : visits.getBGWithData()) {
-      Collection<PatientRecord> visitsForBG = visits.getVisitsForBG(BG);
-      allVisits.addAll(visitsForBG);
-    }
-    // Shuffle to prevent ordering bias.
-    Collections.shuffle(allVisits);
-
-    // Iterate through each visit and enforce the contribution cap.
-    for (PatientRecord record : allVisits) {
-      int id = record.id;
-      String visitBG = record.bloodType;
-
-      // Get the set of blood groups this patient has already contributed to.
-      Set<String> visitorBG = boundedVisitorBG.computeIfAbsent(id, k -> new HashSet<>());
-
-      // Add the record if the patient has contributed to this blood group before,
-      // or if they are still under their contribution limit for new blood groups.
-      if (visitorBG.contains(visitBG) || visitorBG.size() < maxContributedBG) {
-        visitorBG.add(visitBG);
-        boundedVisits.addVisit(record);
-      }
-    }
-    return boundedVisits;
+  static <K> Partitions<K> boundContributedPartitions(
+      Partitions<K> visits, int maxContributedPartitions, Strategy strategy, SplittableRandom random) {
+    return strategy == Strategy.RESERVOIR
+        ? boundContributedPartitionsStreaming(visits, maxContributedPartitions, random)
+        : boundContributedPartitions(visits, maxContributedPartitions, random);
   }
 
   /**
-   * Limits the number of distinct medical conditions a single patient can contribute records to.
+   * Limits the number of distinct partitions a single patient can contribute records to.
+   * Which partitions are kept for a patient is random. This shuffles a copy of every row,
+   * see {@link #boundContributedPartitionsStreaming} for a version that does not.
    *
-   * @param visits The original collection of visits, grouped by condition.
-   * @param maxContributedCT The maximum number of different conditions a patient can contribute to.
-   * @return A new VisitsForCT object containing the bounded collection of visits.
+   * @param visits The original collection of visits, grouped by some dimension.
+   * @param maxContributedPartitions The maximum number of different partitions a patient can contribute to.
+   * @param random The source of randomness, which is advanced.
+   * @return The bounded collection of visits, sharing the table of the original.
    */
-  static VisitsForCT boundContributedCT(VisitsForCT visits, int maxContributedCT) {
-    // Tracks the unique medical conditions each patient ID has contributed to.
-    Map<Integer, Set<String>> boundedVisitorCT = new HashMap<>();
-    VisitsForCT boundedVisits = new VisitsForCT();
-    List<PatientRecord> allVisits = new ArrayList<>();
-
-    // Flatten all visits into a single list.
-    for (String CT : visits.getCTWithData()) {
-      Collection<PatientRecord> visitsForCT = visits.getVisitsForCT(CT);
-      allVisits.addAll(visitsForCT);
+  static <K> Partitions<K> boundContributedPartitions(
+      Partitions<K> visits, int maxContributedPartitions, SplittableRandom random) {
+    // Tracks the unique partitions (as slots relative to the smallest code) each patient ID has contributed to.
+    ContributionTable contributions = new ContributionTable(visits.codeSpan(), maxContributedPartitions);
+    int minCode = visits.minCode();
+    PatientTable table = visits.table();
+    boolean[] keep = new boolean[table.rows];
+
+    // Shuffle the rows to prevent any bias from the original data ordering.
+    int[] rows = visits.allRows();
+    for (int i = rows.length - 1; i > 0; i--) {
+      int j = random.nextInt(i + 1);
+      int row = rows[i];
+      rows[i] = rows[j];
+      rows[j] = row;
     }
-    // Shuffle to prevent ordering bias.
-    Collections.shuffle(allVisits);
-
-    // Iterate through each visit and enforce the contribution cap.
-    for (PatientRecord record : allVisits) {
-      int id = record.id;
-      String visitCT = record.condition;
-
-      // Get the set of conditions this patient has already contributed to.
-      Set<String> visitorCT = boundedVisitorCT.computeIfAbsent(id, k -> new HashSet<>());
-
-      // Add the record if the patient has contributed to this condition before,
-      // or if they are still under their contribution limit for new conditions.
-      if (visitorCT.contains(visitCT) || visitorCT.size() < maxContributedCT) {
-        visitorCT.add(visitCT);
-        boundedVisits.addVisit(record);
-      }
+
+    // Iterate through each visit and decide whether to include it based on the contribution cap.
+    for (int row : rows) {
+      int id = table.id(row);
+      int partition = visits.codeOf(row) - minCode;
+
+      // Keep the record if the patient has already contributed to this partition,
+      // or if they have not yet reached their contribution limit for new partitions.
+      keep[row] = contributions.tryContribute(id, partition);
     }
-    return boundedVisits;
+    return visits.retain(keep);
   }
 
   /**
-   * Limits the number of distinct age groups a single patient can contribute records to.
+   * Limits the number of distinct partitions a single patient can contribute records to,
+   * without shuffling the rows. Every visit gets a random priority and is
+   * offered to a reservoir of at most {@code maxContributedPartitions} partitions of its
+   * patient; the visits to the partitions left in their patient's reservoir are kept. Memory
+   * is bounded by the reservoir size per patient.
+   *
+   * Walking the visits in ascending priority order is walking a uniformly random permutation,
+   * so the kept partitions are distributed exactly as with
+   * {@link #boundContributedPartitions(Partitions, int, SplittableRandom)}.
+   *
+   * Patients never span shards, so the patients are split into {@link #SHARDS} shards by a
+   * hash of their id and the shards are bounded in parallel, each with its own reservoirs and
+   * its own random stream split off {@code random}. Within a shard the visits are offered in
+   * store order, so the kept visits only depend on the state of {@code random}, not on the
+   * number of threads or their scheduling.
    *
-   * @param visits The original collection of visits, grouped by age group.
-   * @param maxContributedAG The maximum number of different age groups a patient can contribute to.
-   * @return A new VisitsForAG object containing the bounded collection of visits.
+   * @param visits The original collection of visits, grouped by some dimension.
+   * @param maxContributedPartitions The maximum number of different partitions a patient can contribute to.
+   * @param random The source of randomness, which is advanced.
+   * @return The bounded collection of visits, sharing the table of the original.
    */
-  static VisitsForAG boundContributedAG(VisitsForAG visits, int maxContributedAG) {
-    // Tracks the unique age groups each patient ID has contributed to.
-    Map<Integer, Set<String>> boundedVisitorAG = new HashMap<>();
-    VisitsForAG boundedVisits = new VisitsForAG();
-    List<PatientRecord> allVisits = new ArrayList<>();
-
-    // Flatten all visits into a single list.
-    for (String AG : visits.getAGWithData()) {
-      Collection<PatientRecord> visitsForAG = visits.getVisitsForAG(AG);
-      allVisits.addAll(visitsForAG);
+  static <K> Partitions<K> boundContributedPartitionsStreaming(
+      Partitions<K> visits, int maxContributedPartitions, SplittableRandom random) {
+    int minCode = visits.minCode();
+    PatientTable table = visits.table();
+
+    // Split the streams in shard order before any shard starts.
+    SplittableRandom[] streams = new SplittableRandom[SHARDS];
+    for (int shard = 0; shard < SHARDS; shard++) {
+      streams[shard] = random.split();
     }
-    // Shuffle to prevent ordering bias.
-    Collections.shuffle(allVisits);
 
-    // Iterate through each visit and enforce the contribution cap.
-    for (PatientRecord record : allVisits) {
-      int id = record.id;
-      String ageGroup = record.ageGroup;
-
-      // Skip records where the age group could not be determined.
-      if (ageGroup == null) {
-        continue;
+    // Group the rows by the shard of their patient with a stable counting sort.
+    int[] offsets = new int[SHARDS + 1];
+    for (int row = 0; row < table.rows; row++) {
+      if (visits.contains(row)) {
+        offsets[shardOf(table.id(row)) + 1]++;
       }
-
-      // Get the set of age groups this patient has already contributed to.
-      Set<String> visitorAG = boundedVisitorAG.computeIfAbsent(id, k -> new HashSet<>());
-
-      // Add the record if the patient has contributed to this age group before,
-      // or if they are still under their contribution limit for new age groups.
-      if (visitorAG.contains(ageGroup) || visitorAG.size() < maxContributedAG) {
-        visitorAG.add(ageGroup);
-        boundedVisits.addVisit(record);
+    }
+    for (int shard = 0; shard < SHARDS; shard++) {
+      offsets[shard + 1] += offsets[shard];
+    }
+    int[] rows = new int[offsets[SHARDS]];
+    int[] next = offsets.clone();
+    for (int row = 0; row < table.rows; row++) {
+      if (visits.contains(row)) {
+        rows[next[shardOf(table.id(row))]++] = row;
       }
     }
-    return boundedVisits;
+
+    // Every row belongs to exactly one shard, so the shards write disjoint entries of keep.
+    boolean[] keep = new boolean[table.rows];
+    IntStream.range(0, SHARDS).parallel().forEach(shard -> {
+      ContributionTable reservoirs = ContributionTable.reservoirs(maxContributedPartitions);
+      SplittableRandom stream = streams[shard];
+      for (int i = offsets[shard]; i < offsets[shard + 1]; i++) {
+        int row = rows[i];
+        reservoirs.offer(table.id(row), visits.codeOf(row) - minCode, stream.nextLong());
+      }
+      for (int i = offsets[shard]; i < offsets[shard + 1]; i++) {
+        int row = rows[i];
+        keep[row] = reservoirs.contributes(table.id(row), visits.codeOf(row) - minCode);
+      }
+    });
+    return visits.retain(keep);
+  }
+
+  /**
+   * Returns the shard of a patient. Takes the top bits of a multiplicative hash, which are
+   * independent of the low bits {@link ContributionTable} uses to place the patient.
+   */
+  private static int shardOf(int id) {
+    return (id * 0x9E3779B9) >>> (Integer.SIZE - SHARD_BITS);
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,305 @@
+package dp.src;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The contributions of every patient to the partitions of one dimension, kept across
+ * incremental runs so that new visits can be bounded together with the visits of
+ * earlier runs. Every (patient, partition) pair seen so far has an entry holding the
+ * smallest priority offered for it, the number of visits of the patient to the
+ * partition, and the raw measure values of the first few of those visits.
+ *
+ * Bounding a patient to {@code maxPartitions} partitions keeps the entries of lowest
+ * priority, as a reservoir of {@link ContributionTable#offer} does over a single run.
+ * Unlike that reservoir, entries that are not kept are never forgotten: a later visit
+ * may bring their partition back into the reservoir, with every visit seen before.
+ *
+ * Patients are kept in an open-addressing table keyed by their int id; the entries of
+ * each patient form a linked list through dense arrays.
+ */
+class ContributionState {
+  private static final int INITIAL_CAPACITY = 1024;
+  private static final int MEASURES = Measure.values().length;
+
+  /** Receives the entries kept by {@link #forEachKept}. */
+  interface EntryConsumer {
+    /**
+     * Receives one kept entry.
+     *
+     * @param id The patient id.
+     * @param code The partition code.
+     * @param visits The number of visits of the patient to the partition.
+     * @param values The stored raw values; those of the {@code i}-th stored visit start at
+     *     {@code offset + i * Measure.values().length}, indexed by {@link Measure#ordinal()}.
+     * @param offset The offset of the values of the first stored visit.
+     */
+    void accept(int id, int code, int visits, double[] values, int offset);
+  }
+
+  private final Dimension<?> dimension;
+  private final int maxPartitions;
+  private final int storedVisits;
+
+  /** Open-addressing table from patient id to the first entry of the patient + 1; 0 marks an empty slot. */
+  private int[] ids;
+  private int[] heads;
+  private int patients = 0;
+
+  /** Per entry: partition code, next entry of the patient + 1, priority, visits, and stored values. */
+  private int[] codes;
+  private int[] next;
+  private long[] priorities;
+  private int[] visits;
+  private double[] values;
+  private int size = 0;
+
+  /**
+   * Creates an empty state.
+   *
+   * @param dimension The dimension the partition codes belong to.
+   * @param maxPartitions The maximum number of partitions a patient may contribute to.
+   * @param storedVisits The number of visits per entry whose measure values are stored.
+   */
+  ContributionState(Dimension<?> dimension, int maxPartitions, int storedVisits) {
+    if (maxPartitions < 1) {
+      throw new IllegalArgumentException("A patient must be allowed to contribute to at least one partition");
+    }
+    this.dimension = dimension;
+    this.maxPartitions = maxPartitions;
+    this.storedVisits = storedVisits;
+    ids = new int[INITIAL_CAPACITY];
+    heads = new int[INITIAL_CAPACITY];
+    codes = new int[INITIAL_CAPACITY];
+    next = new int[INITIAL_CAPACITY];
+    priorities = new long[INITIAL_CAPACITY];
+    visits = new int[INITIAL_CAPACITY];
+    values = new double[INITIAL_CAPACITY * storedVisits * MEASURES];
+  }
+
+  /**
+   * Offers a visit of a patient to a partition.
+   *
+   * @param id The patient id.
+   * @param code The partition code.
+   * @param priority The random priority of the visit.
+   * @param measures The raw value of every measure for the visit, indexed by {@link Measure#ordinal()}.
+   */
+  void offer(int id, int code, long priority, double[] measures) {
+    int slot = find(id);
+    int entry = heads[slot] - 1;
+    while (entry >= 0 && codes[entry] != code) {
+      entry = next[entry] - 1;
+    }
+    if (entry < 0) {
+      boolean newPatient = heads[slot] == 0;
+      entry = newEntry(code, priority);
+      next[entry] = heads[slot];
+      ids[slot] = id;
+      heads[slot] = entry + 1;
+      if (newPatient && ++patients * 2 > ids.length) {
+        grow();
+      }
+    } else {
+      priorities[entry] = Math.min(priorities[entry], priority);
+    }
+    store(entry, measures);
+  }
+
+  /** Returns the number of visits per entry whose measure values are stored. */
+  int storedVisits() {
+    return storedVisits;
+  }
+
+  /** Returns the number of (patient, partition) entries. */
+  int size() {
+    return size;
+  }
+
+  /** Returns the smallest partition code of any entry, or 0 if there are none. */
+  int minCode() {
+    int min = size == 0 ? 0 : Integer.MAX_VALUE;
+    for (int entry = 0; entry < size; entry++) {
+      min = Math.min(min, codes[entry]);
+    }
+    return min;
+  }
+
+  /** Returns the largest partition code of any entry, or -1 if there are none. */
+  int maxCode() {
+    int max = size == 0 ? -1 : Integer.MIN_VALUE;
+    for (int entry = 0; entry < size; entry++) {
+      max = Math.max(max, codes[entry]);
+    }
+    return max;
+  }
+
+  /** Passes the at most {@code maxPartitions} entries of lowest priority of every patient to the consumer. */
+  void forEachKept(EntryConsumer consumer) {
+    int[] candidates = new int[maxPartitions];
+    for (int slot = 0; slot < ids.length; slot++) {
+      if (heads[slot] == 0) {
+        continue;
+      }
+      // Keep the candidates sorted by priority while walking the patient's entries.
+      int kept = 0;
+      for (int entry = heads[slot] - 1; entry >= 0; entry = next[entry] - 1) {
+        if (kept == maxPartitions && priorities[entry] >= priorities[candidates[kept - 1]]) {
+          continue;
+        }
+        int position = kept == maxPartitions ? kept - 1 : kept++;
+        while (position > 0 && priorities[candidates[position - 1]] > priorities[entry]) {
+          candidates[position] = candidates[position - 1];
+          position--;
+        }
+        candidates[position] = entry;
+      }
+      for (int i = 0; i < kept; i++) {
+        int entry = candidates[i];
+        consumer.accept(ids[slot], codes[entry], visits[entry], values, entry * storedVisits * MEASURES);
+      }
+    }
+  }
+
+  /**
+   * Writes the state. Partitions are identified by their {@link Dimension#name(int) names},
+   * as codes are only stable within a run.
+   *
+   * Layout: the number of measures, of stored visits per entry, of partition names and the
+   * names, the number of patients, then per patient its id and number of entries, and per
+   * entry its partition name index, priority, visits and stored values.
+   *
+   * @throws IOException if the output cannot be written.
+   */
+  void writeTo(DataOutputStream out) throws IOException {
+    Map<Integer, Integer> names = new HashMap<>();
+    for (int entry = 0; entry < size; entry++) {
+      names.putIfAbsent(codes[entry], names.size());
+    }
+    String[] byIndex = new String[names.size()];
+    names.forEach((code, index) -> byIndex[index] = dimension.name(code));
+
+    out.writeInt(MEASURES);
+    out.writeInt(storedVisits);
+    out.writeInt(byIndex.length);
+    for (String name : byIndex) {
+      out.writeUTF(name);
+    }
+    out.writeInt(patients);
+    for (int slot = 0; slot < ids.length; slot++) {
+      if (heads[slot] == 0) {
+        continue;
+      }
+      int entries = 0;
+      for (int entry = heads[slot] - 1; entry >= 0; entry = next[entry] - 1) {
+        entries++;
+      }
+      out.writeInt(ids[slot]);
+      out.writeInt(entries);
+      for (int entry = heads[slot] - 1; entry >= 0; entry = next[entry] - 1) {
+        out.writeInt(names.get(codes[entry]));
+        out.writeLong(priorities[entry]);
+        out.writeInt(visits[entry]);
+        int base = entry * storedVisits * MEASURES;
+        for (int i = 0; i < Math.min(visits[entry], storedVisits) * MEASURES; i++) {
+          out.writeDouble(values[base + i]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads a state written by {@link #writeTo(DataOutputStream)}.
+   *
+   * @throws IOException if the input cannot be read or was written with another layout.
+   */
+  static ContributionState readFrom(DataInputStream in, Dimension<?> dimension, int maxPartitions, int storedVisits)
+      throws IOException {
+    if (in.readInt() != MEASURES || in.readInt() != storedVisits) {
+      throw new IOException("Contribution state per " + dimension + " was written with another layout");
+    }
+    int[] codeOfName = new int[in.readInt()];
+    for (int i = 0; i < codeOfName.length; i++) {
+      codeOfName[i] = dimension.codeOfName(in.readUTF());
+    }
+
+    ContributionState state = new ContributionState(dimension, maxPartitions, storedVisits);
+    double[] measures = new double[MEASURES];
+    int patients = in.readInt();
+    for (int patient = 0; patient < patients; patient++) {
+      int id = in.readInt();
+      int entries = in.readInt();
+      for (int i = 0; i < entries; i++) {
+        int code = codeOfName[in.readInt()];
+        long priority = in.readLong();
+        int count = in.readInt();
+        // Replaying the visits rebuilds the entry; visits without stored values carry none.
+        Arrays.fill(measures, 0);
+        for (int visit = 0; visit < count; visit++) {
+          if (visit < storedVisits) {
+            for (int measure = 0; measure < MEASURES; measure++) {
+              measures[measure] = in.readDouble();
+            }
+          }
+          state.offer(id, code, priority, measures);
+        }
+      }
+    }
+    return state;
+  }
+
+  private int newEntry(int code, long priority) {
+    if (size == codes.length) {
+      int capacity = size * 2;
+      codes = Arrays.copyOf(codes, capacity);
+      next = Arrays.copyOf(next, capacity);
+      priorities = Arrays.copyOf(priorities, capacity);
+      visits = Arrays.copyOf(visits, capacity);
+      values = Arrays.copyOf(values, capacity * storedVisits * MEASURES);
+    }
+    codes[size] = code;
+    priorities[size] = priority;
+    return size++;
+  }
+
+  /** Counts a visit of an entry, storing its values if the entry has room for them. */
+  private void store(int entry, double[] measures) {
+    if (visits[entry] < storedVisits) {
+      System.arraycopy(measures, 0, values, (entry * storedVisits + visits[entry]) * MEASURES, MEASURES);
+    }
+    visits[entry]++;
+  }
+
+  /** Returns the table slot holding the given id, or the empty slot where it belongs. */
+  private int find(int id) {
+    int mask = ids.length - 1;
+    int slot = hash(id) & mask;
+    while (heads[slot] != 0 && ids[slot] != id) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void grow() {
+    int[] oldIds = ids;
+    int[] oldHeads = heads;
+    ids = new int[oldIds.length * 2];
+    heads = new int[oldIds.length * 2];
+    for (int old = 0; old < oldIds.length; old++) {
+      if (oldHeads[old] != 0) {
+        int slot = find(oldIds[old]);
+        ids[slot] = oldIds[old];
+        heads[slot] = oldHeads[old];
+      }
+    }
+  }
+
+  private static int hash(int id) {
+    int h = id * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+}
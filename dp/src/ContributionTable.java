@@ -0,0 +1,232 @@
+package dp.src;
+
+/**
+ * Tracks which partitions each patient contributes to while contributions are
+ * being bounded. Patients are kept in an open-addressing table keyed by their
+ * int id, so tracking a patient allocates nothing. Partitions are identified by
+ * a slot in {@code [0, partitionSlots)}. For domains of at most 64 partitions
+ * each patient's partitions are a bitmask in a single long; larger domains store
+ * the slots of the at most {@code maxPartitions} partitions of each patient.
+ *
+ * A table created by {@link #reservoirs} instead keeps a fixed-size reservoir of
+ * partitions per patient, see {@link #offer}.
+ */
+class ContributionTable {
+  private static final int INITIAL_CAPACITY = 1024;
+
+  private final int maxPartitions;
+  private final boolean bitmask;
+  private final boolean reservoir;
+
+  private int[] ids;
+  /** Number of partitions of the patient in each table slot; 0 marks an empty slot. */
+  private int[] counts;
+  /** The partitions of the patient in each table slot, in bitmask mode. */
+  private long[] masks;
+  /** The partitions of the patient in each table slot, maxPartitions entries per slot otherwise. */
+  private int[] partitions;
+  /** The priority of each entry of {@link #partitions}, in reservoir mode. */
+  private long[] priorities;
+  private int size = 0;
+
+  /**
+   * Creates an empty table.
+   *
+   * @param partitionSlots The number of partition slots in the domain.
+   * @param maxPartitions The maximum number of partitions a patient may contribute to.
+   */
+  ContributionTable(int partitionSlots, int maxPartitions) {
+    this(partitionSlots, maxPartitions, false);
+  }
+
+  private ContributionTable(int partitionSlots, int maxPartitions, boolean reservoir) {
+    if (maxPartitions < 1) {
+      throw new IllegalArgumentException("A patient must be allowed to contribute to at least one partition");
+    }
+    this.maxPartitions = maxPartitions;
+    this.reservoir = reservoir;
+    this.bitmask = !reservoir && partitionSlots <= Long.SIZE;
+    allocate(INITIAL_CAPACITY);
+  }
+
+  /**
+   * Creates an empty table that keeps a reservoir of at most {@code maxPartitions}
+   * partitions per patient.
+   *
+   * @param maxPartitions The maximum number of partitions a patient may contribute to.
+   */
+  static ContributionTable reservoirs(int maxPartitions) {
+    return new ContributionTable(0, maxPartitions, true);
+  }
+
+  /**
+   * Records a contribution of a patient to a partition, unless that would take the patient
+   * over the partition limit.
+   *
+   * @param id The patient id.
+   * @param partition The partition slot.
+   * @return Whether the contribution is allowed: the patient already contributes to the
+   *     partition, or contributes to fewer than the maximum number of partitions.
+   */
+  boolean tryContribute(int id, int partition) {
+    if (reservoir) {
+      throw new IllegalStateException("A reservoir table only accepts offers");
+    }
+    int slot = find(id);
+    if (counts[slot] == 0) {
+      ids[slot] = id;
+      add(slot, partition);
+      if (++size * 2 > ids.length) {
+        grow();
+      }
+      return true;
+    }
+    if (contains(slot, partition)) {
+      return true;
+    }
+    if (counts[slot] >= maxPartitions) {
+      return false;
+    }
+    add(slot, partition);
+    return true;
+  }
+
+  /**
+   * Offers a visit of a patient to a partition to the patient's reservoir. Each partition
+   * is ranked by the smallest priority of the patient's visits to it offered so far, and
+   * the reservoir holds the {@code maxPartitions} partitions of lowest rank.
+   *
+   * With independent, uniformly random priorities, the final reservoir is exactly the
+   * first {@code maxPartitions} distinct partitions met when walking the patient's visits
+   * in a uniformly random order. A partition's rank is the priority of its first visit in
+   * that order. A partition that is turned away or evicted can only come back with a
+   * priority below every priority it had before, so forgetting those is safe.
+   *
+   * @param id The patient id.
+   * @param partition The partition slot.
+   * @param priority The random priority of the visit.
+   */
+  void offer(int id, int partition, long priority) {
+    if (!reservoir) {
+      throw new IllegalStateException("Only a reservoir table accepts offers");
+    }
+    int slot = find(id);
+    int base = slot * maxPartitions;
+    if (counts[slot] == 0) {
+      ids[slot] = id;
+      partitions[base] = partition;
+      priorities[base] = priority;
+      counts[slot] = 1;
+      if (++size * 2 > ids.length) {
+        grow();
+      }
+      return;
+    }
+
+    int highest = base;
+    for (int i = base; i < base + counts[slot]; i++) {
+      if (partitions[i] == partition) {
+        priorities[i] = Math.min(priorities[i], priority);
+        return;
+      }
+      if (priorities[i] > priorities[highest]) {
+        highest = i;
+      }
+    }
+    if (counts[slot] < maxPartitions) {
+      partitions[base + counts[slot]] = partition;
+      priorities[base + counts[slot]] = priority;
+      counts[slot]++;
+    } else if (priority < priorities[highest]) {
+      partitions[highest] = partition;
+      priorities[highest] = priority;
+    }
+  }
+
+  /** Returns whether the patient contributes to the given partition. */
+  boolean contributes(int id, int partition) {
+    int slot = find(id);
+    return counts[slot] != 0 && contains(slot, partition);
+  }
+
+  /** Returns the number of patients in the table. */
+  int size() {
+    return size;
+  }
+
+  /** Returns the table slot holding the given id, or the empty slot where it belongs. */
+  private int find(int id) {
+    int mask = ids.length - 1;
+    int slot = hash(id) & mask;
+    while (counts[slot] != 0 && ids[slot] != id) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private boolean contains(int slot, int partition) {
+    if (bitmask) {
+      return (masks[slot] & (1L << partition)) != 0;
+    }
+    int base = slot * maxPartitions;
+    for (int i = 0; i < counts[slot]; i++) {
+      if (partitions[base + i] == partition) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void add(int slot, int partition) {
+    if (bitmask) {
+      masks[slot] |= 1L << partition;
+    } else {
+      partitions[slot * maxPartitions + counts[slot]] = partition;
+    }
+    counts[slot]++;
+  }
+
+  private void allocate(int capacity) {
+    ids = new int[capacity];
+    counts = new int[capacity];
+    if (bitmask) {
+      masks = new long[capacity];
+    } else {
+      partitions = new int[capacity * maxPartitions];
+    }
+    if (reservoir) {
+      priorities = new long[capacity * maxPartitions];
+    }
+  }
+
+  private void grow() {
+    int[] oldIds = ids;
+    int[] oldCounts = counts;
+    long[] oldMasks = masks;
+    int[] oldPartitions = partitions;
+    long[] oldPriorities = priorities;
+    allocate(oldIds.length * 2);
+
+    for (int old = 0; old < oldIds.length; old++) {
+      if (oldCounts[old] == 0) {
+        continue;
+      }
+      int slot = find(oldIds[old]);
+      ids[slot] = oldIds[old];
+      counts[slot] = oldCounts[old];
+      if (bitmask) {
+        masks[slot] = oldMasks[old];
+      } else {
+        System.arraycopy(oldPartitions, old * maxPartitions, partitions, slot * maxPartitions, maxPartitions);
+      }
+      if (reservoir) {
+        System.arraycopy(oldPriorities, old * maxPartitions, priorities, slot * maxPartitions, maxPartitions);
+      }
+    }
+  }
+
+  private static int hash(int id) {
+    int h = id * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+}
@@ -0,0 +1,128 @@
+package dp.src;
+
+import java.util.Arrays;
+
+/**
+ * The patients contributing to one partition, collapsed into one entry per patient.
+ * Each entry counts the visits of the patient admitted to the partition and sums
+ * measures over them. Once a patient has the maximum number of visits admitted,
+ * their further visits are turned away, so the sums of a patient cover at most that
+ * many clamped values.
+ *
+ * Patients are found through an open-addressing table keyed by their int id; their
+ * entries are stored densely in order of their first admitted visit.
+ */
+class Contributors {
+  private static final int INITIAL_CAPACITY = 16;
+
+  private final int maxContributions;
+  private final int measures;
+
+  /** Open-addressing table from patient id to entry index + 1; 0 marks an empty slot. */
+  private int[] ids;
+  private int[] entries;
+
+  /** Per entry: the number of admitted visits, and the sums of every measure. */
+  private int[] contributions;
+  private double[] sums;
+  private int size = 0;
+
+  /**
+   * Creates an empty set of contributors.
+   *
+   * @param maxContributions The maximum number of visits admitted per patient, or 0 for no limit.
+   * @param measures The number of measures summed per patient.
+   */
+  Contributors(int maxContributions, int measures) {
+    if (maxContributions < 0) {
+      throw new IllegalArgumentException("The number of contributions per partition cannot be negative");
+    }
+    this.maxContributions = maxContributions;
+    this.measures = measures;
+    ids = new int[INITIAL_CAPACITY];
+    entries = new int[INITIAL_CAPACITY];
+    contributions = new int[INITIAL_CAPACITY / 2];
+    sums = new double[INITIAL_CAPACITY / 2 * measures];
+  }
+
+  /**
+   * Admits a visit of a patient, unless the patient already has the maximum number of
+   * visits admitted.
+   *
+   * @param id The patient id.
+   * @return The entry of the patient, or -1 if the visit is turned away.
+   */
+  int admit(int id) {
+    int slot = find(id);
+    int entry = entries[slot] - 1;
+    if (entry < 0) {
+      entry = size++;
+      ids[slot] = id;
+      entries[slot] = entry + 1;
+      if (entry == contributions.length) {
+        contributions = Arrays.copyOf(contributions, entry * 2);
+        sums = Arrays.copyOf(sums, entry * 2 * measures);
+      }
+      if (size * 2 > ids.length) {
+        grow();
+      }
+    } else if (maxContributions != 0 && contributions[entry] >= maxContributions) {
+      return -1;
+    }
+    contributions[entry]++;
+    return entry;
+  }
+
+  /** Adds a value of the given measure to an entry returned by {@link #admit(int)}. */
+  void add(int entry, int measure, double value) {
+    sums[entry * measures + measure] += value;
+  }
+
+  /** Returns the number of patients. */
+  int size() {
+    return size;
+  }
+
+  /** Returns the number of admitted visits of each patient, in entry order. */
+  int[] contributions() {
+    return Arrays.copyOf(contributions, size);
+  }
+
+  /** Returns the sum of the given measure for each patient, in entry order. */
+  double[] sums(int measure) {
+    double[] result = new double[size];
+    for (int entry = 0; entry < size; entry++) {
+      result[entry] = sums[entry * measures + measure];
+    }
+    return result;
+  }
+
+  /** Returns the table slot holding the given id, or the empty slot where it belongs. */
+  private int find(int id) {
+    int mask = ids.length - 1;
+    int slot = hash(id) & mask;
+    while (entries[slot] != 0 && ids[slot] != id) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void grow() {
+    int[] oldIds = ids;
+    int[] oldEntries = entries;
+    ids = new int[oldIds.length * 2];
+    entries = new int[oldIds.length * 2];
+    for (int old = 0; old < oldIds.length; old++) {
+      if (oldEntries[old] != 0) {
+        int slot = find(oldIds[old]);
+        ids[slot] = oldIds[old];
+        entries[slot] = oldEntries[old];
+      }
+    }
+  }
+
+  private static int hash(int id) {
+    int h = id * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+}
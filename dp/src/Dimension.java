@@ -0,0 +1,167 @@
+package dp.src;
+
+import java.time.LocalDate;
+import java.time.Year;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
+
+import util.src.Dictionary;
+import util.src.PatientTable;
+
+/**
+ * A dimension that patient visits can be partitioned by, such as the year of
+ * admission or the blood type. A dimension maps every row of a {@link PatientTable} to an integer
+ * partition code and translates between codes and partition keys.
+ * Categorical dimensions use the codes of their shared {@link Dictionary}.
+ *
+ * @param <K> The type of the partition keys.
+ */
+final class Dimension<K> {
+
+  /** The code of rows that belong to no partition of a dimension. */
+  static final int NONE = -1;
+
+  static final Dimension<Year> YEAR = new Dimension<>("year",
+      (table, row) -> LocalDate.ofEpochDay(table.admissionDay(row)).getYear(), Year::of, Year::getValue,
+      Integer::parseInt);
+
+  static final Dimension<String> BLOOD_TYPE =
+      categorical("blood type", Dictionary.BLOOD_TYPE, (table, row) -> table.bloodType.code(row));
+
+  static final Dimension<String> CONDITION =
+      categorical("condition", Dictionary.CONDITION, (table, row) -> table.condition.code(row));
+
+  static final Dimension<String> AGE_GROUP =
+      categorical("age group", Dictionary.AGE_GROUP, (table, row) -> table.ageGroup.code(row));
+
+  static final Dimension<String> GENDER =
+      categorical("gender", Dictionary.GENDER, (table, row) -> table.gender.code(row));
+
+  static final Dimension<String> HOSPITAL =
+      categorical("hospital", Dictionary.HOSPITAL, (table, row) -> table.hospital.code(row));
+
+  /** Doctors are high-cardinality, so their codes come from a dictionary of this dimension rather than the table. */
+  private static final Dictionary DOCTORS = new Dictionary();
+
+  static final Dimension<String> DOCTOR =
+      categorical("doctor", DOCTORS, (table, row) -> DOCTORS.code(table.doctor.valueAt(row)));
+
+  static final Dimension<String> PROVIDER =
+      categorical("provider", Dictionary.PROVIDER, (table, row) -> table.provider.code(row));
+
+  static final Dimension<String> ADMISSION_TYPE =
+      categorical("admission type", Dictionary.ADMISSION_TYPE, (table, row) -> table.admissionType.code(row));
+
+  static final Dimension<String> MEDICATION =
+      categorical("medication", Dictionary.MEDICATION, (table, row) -> table.medication.code(row));
+
+  static final Dimension<String> TEST_RESULTS =
+      categorical("test results", Dictionary.TEST_RESULTS, (table, row) -> table.testResults.code(row));
+
+  /**
+   * Returns the dimension whose partitions are the cells of the cross product of the given
+   * dimensions, e.g. condition x blood type x year. A row is in the cell of its partitions
+   * of every dimension, or in none if it is in no partition of one of them. Cells are coded by
+   * a {@link CellDictionary} of the new dimension, so that only cells with visits take codes.
+   *
+   * @param dimensions The dimensions to cross, at least two.
+   * @return A new dimension; crossing the same dimensions again gives another one.
+   */
+  static Dimension<CellDictionary.Cell> cross(Dimension<?>... dimensions) {
+    CellDictionary cells = new CellDictionary(dimensions);
+    return new Dimension<>(cells.toString(), cells::code, cells::cell, cells::codeOf, cells::codeOfName, cells);
+  }
+
+  /** Computes the partition code of a row of a table. */
+  @FunctionalInterface
+  interface Coder {
+    int code(PatientTable table, int row);
+  }
+
+  private final String name;
+  private final Coder coder;
+  private final IntFunction<K> keys;
+  private final ToIntFunction<K> codes;
+  private final ToIntFunction<String> names;
+  /** The cells of a crossed dimension, or null. */
+  private final CellDictionary cells;
+
+  private Dimension(String name, Coder coder, IntFunction<K> keys, ToIntFunction<K> codes,
+      ToIntFunction<String> names) {
+    this(name, coder, keys, codes, names, null);
+  }
+
+  private Dimension(String name, Coder coder, IntFunction<K> keys, ToIntFunction<K> codes,
+      ToIntFunction<String> names, CellDictionary cells) {
+    this.name = name;
+    this.coder = coder;
+    this.keys = keys;
+    this.codes = codes;
+    this.names = names;
+    this.cells = cells;
+  }
+
+  private static Dimension<String> categorical(
+      String name, Dictionary dictionary, Coder coder) {
+    return new Dimension<>(name, coder, dictionary::value, dictionary::find, dictionary::code);
+  }
+
+  /** Returns the partition code of the given row of the table, or {@link #NONE}. */
+  int code(PatientTable table, int row) {
+    return coder.code(table, row);
+  }
+
+  /**
+   * Returns whether every partition of the given dimension lies within a single partition of this
+   * one, so that a patient bounded to some number of partitions of the finer dimension is bounded
+   * to as many of this one. This holds for a dimension itself, and for {@link #cross crossed}
+   * dimensions when the finer one crosses every dimension this one does.
+   */
+  boolean coarsens(Dimension<?> finer) {
+    return finer == this || cells != null && finer.cells != null && cells.coarsens(finer.cells);
+  }
+
+  /**
+   * Returns the code of the partition of this dimension that holds the given partition of a finer
+   * dimension, assigning one if it is new.
+   *
+   * @throws IllegalArgumentException if this dimension does not {@link #coarsens coarsen} the finer one.
+   */
+  int project(Dimension<?> finer, int code) {
+    if (finer == this) {
+      return code;
+    }
+    if (!coarsens(finer)) {
+      throw new IllegalArgumentException(finer + " does not refine " + this);
+    }
+    return cells.project(finer.cells, code);
+  }
+
+  /** Returns the partition code of the given key, or {@link #NONE} if the key has never been seen. */
+  int codeOf(K key) {
+    return codes.applyAsInt(key);
+  }
+
+  /** Returns the partition key for the given code. */
+  K key(int code) {
+    return keys.apply(code);
+  }
+
+  /**
+   * Returns the name of the partition with the given code, which identifies the partition
+   * across runs, unlike its code.
+   */
+  String name(int code) {
+    return String.valueOf(key(code));
+  }
+
+  /** Returns the partition code of the given {@link #name(int) name}, assigning one if it has never been seen. */
+  int codeOfName(String name) {
+    return names.applyAsInt(name);
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
@@ -0,0 +1,145 @@
+package dp.src;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A HyperLogLog sketch estimating the number of distinct patient ids added to it in
+ * {@code 2^precision} bytes, whatever the number of ids. Each id is hashed to 64 bits;
+ * the top {@code precision} bits pick a register, which keeps the largest number of
+ * leading zeros plus one seen in the remaining bits. Sketches of the same precision merge
+ * by taking the register-wise maximum, so sketches built over separate shards of a file
+ * combine into the sketch of the whole file.
+ *
+ * The relative standard error of the estimate is about {@code 1.04 / sqrt(2^precision)},
+ * see {@link #relativeStandardError()}.
+ */
+class HyperLogLog {
+  static final int MIN_PRECISION = 4;
+  static final int MAX_PRECISION = 18;
+
+  private final int precision;
+  private final byte[] registers;
+
+  /**
+   * Creates an empty sketch.
+   *
+   * @param precision The number of hash bits that pick a register, from {@link #MIN_PRECISION}
+   *     to {@link #MAX_PRECISION}.
+   */
+  HyperLogLog(int precision) {
+    if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+      throw new IllegalArgumentException(
+          "Precision must be between " + MIN_PRECISION + " and " + MAX_PRECISION + ": " + precision);
+    }
+    this.precision = precision;
+    this.registers = new byte[1 << precision];
+  }
+
+  /** Returns the precision of the sketch. */
+  int precision() {
+    return precision;
+  }
+
+  /** Adds an id to the sketch. */
+  void add(int id) {
+    long hash = mix(id);
+    int register = (int) (hash >>> (Long.SIZE - precision));
+    // The guard bit keeps the rank within the bits left after the register index.
+    int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+    if (rank > registers[register]) {
+      registers[register] = (byte) rank;
+    }
+  }
+
+  /**
+   * Adds every id of another sketch to this one.
+   *
+   * @param other A sketch of the same precision; it is left unchanged.
+   * @throws IllegalArgumentException if the precisions differ.
+   */
+  void merge(HyperLogLog other) {
+    if (other.precision != precision) {
+      throw new IllegalArgumentException(
+          "Cannot merge sketches of precision " + other.precision + " into precision " + precision);
+    }
+    for (int i = 0; i < registers.length; i++) {
+      if (other.registers[i] > registers[i]) {
+        registers[i] = other.registers[i];
+      }
+    }
+  }
+
+  /** Returns the estimated number of distinct ids added. */
+  long estimate() {
+    int m = registers.length;
+    double sum = 0;
+    int zeros = 0;
+    for (byte register : registers) {
+      sum += Math.scalb(1.0, -register);
+      if (register == 0) {
+        zeros++;
+      }
+    }
+    double estimate = alpha(m) * m * m / sum;
+    if (estimate <= 2.5 * m && zeros > 0) {
+      // Small cardinalities are estimated more precisely by linear counting of empty registers.
+      estimate = m * Math.log((double) m / zeros);
+    }
+    return Math.round(estimate);
+  }
+
+  /**
+   * Writes the sketch: its precision, then its registers.
+   *
+   * @throws IOException if the output cannot be written.
+   */
+  void writeTo(DataOutput out) throws IOException {
+    out.writeByte(precision);
+    out.write(registers);
+  }
+
+  /**
+   * Reads a sketch written by {@link #writeTo(DataOutput)}.
+   *
+   * @throws IOException if the input cannot be read.
+   * @throws IllegalArgumentException if the stored precision is out of range.
+   */
+  static HyperLogLog readFrom(DataInput in) throws IOException {
+    HyperLogLog sketch = new HyperLogLog(in.readByte());
+    in.readFully(sketch.registers);
+    return sketch;
+  }
+
+  /** Returns the relative standard error of {@link #estimate()}. */
+  double relativeStandardError() {
+    return relativeStandardError(precision);
+  }
+
+  /** Returns the relative standard error of the estimate of a sketch of the given precision. */
+  static double relativeStandardError(int precision) {
+    return 1.04 / Math.sqrt(1 << precision);
+  }
+
+  private static double alpha(int m) {
+    switch (m) {
+      case 16:
+        return 0.673;
+      case 32:
+        return 0.697;
+      case 64:
+        return 0.709;
+      default:
+        return 0.7213 / (1 + 1.079 / m);
+    }
+  }
+
+  /** Spreads an id over 64 bits with the SplitMix64 finalizer. */
+  private static long mix(int id) {
+    long z = (id & 0xFFFFFFFFL) + 0x9E3779B97F4A7C15L;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+}
@@ -4,20 +4,31 @@ import static com.google.common.collect.ImmutableSet.toImmutableSet;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Resources;
-import java.io.File;
+import java.io.BufferedInputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.util.List;
 import java.nio.file.Path;
-import java.time.Year;
-import java.util.Map;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+import java.util.function.Consumer;
+import util.src.Debug;
 import util.src.PatientRecord;
+import util.src.PatientRecordReader;
+import util.src.PatientSnapshot;
+import util.src.PatientTable;
+import util.src.Status;
 
 /**
- * Utility class for reading patient data from and writing aggregated statistics to CSV files.
- * This class handles the parsing of patient records and the formatting of output data.
+ * Utility class for reading patient data from CSV files.
+ * The records are grouped by a {@link PartitionIndex} and aggregated statistics are written
+ * through a {@link ResultSink}.
  */
 class IOUtils {
 
@@ -62,306 +73,140 @@ class IOUtils {
   }
 
   /**
-   * Reads patient records from a CSV file and organizes them by year of admission.
+   * Reads and parses every patient record in a CSV file exactly once, straight into the
+   * columns of a table. Assumes the first line is a header, which will be skipped. The
+   * returned table is immutable so that it can be shared between all of the DP jobs.
    *
    * @param path The {@link Path} to the input CSV file.
-   * @return A {@link VisitsForYear} object containing the parsed data.
+   * @return A {@link PatientTable} of the visits in file order.
    * @throws IllegalStateException if the file cannot be read.
    */
-  static VisitsForYear readYearlyVisits(Path path) {
-    VisitsForYear result = new VisitsForYear();
-    try {
-      List<String> visitsAsText = Files.readAllLines(path);
-      visitsAsText.stream()
-              .skip(1) // Skip header row.
-              .map(IOUtils::convertLineToVisit)
-              .forEach(result::addVisit);
-    } catch (IOException e) {
-      throw new IllegalStateException("Failed to read file: " + path, e);
-    }
-    return result;
+  static PatientTable readVisits(Path path) {
+    PatientTable.Builder result = new PatientTable.Builder();
+    streamVisits(path, result::add);
+    return result.build();
   }
 
   /**
-   * Reads patient records from a CSV file and organizes them by blood group.
+   * Reads and parses every patient record in a CSV file by memory-mapping it and parsing
+   * newline-aligned ranges of the file on all available cores.
+   * Produces the same table as {@link #readVisits(Path)}.
    *
    * @param path The {@link Path} to the input CSV file.
-   * @return A {@link VisitsForBG} object containing the parsed data.
+   * @return A {@link PatientTable} of the visits in file order.
    * @throws IllegalStateException if the file cannot be read.
    */
-  static VisitsForBG readBGVisits(Path path) {
-    VisitsForBG result = new VisitsForBG();
+  static PatientTable readVisitsParallel(Path path) {
     try {
-      List<String> visitsAsText = Files.readAllLines(path);
-      visitsAsText.stream()
-              .skip(1) // Skip header row.
-              .map(IOUtils::convertLineToVisit)
-              .forEach(result::addVisit);
+      return PatientTable.fromRecords(PatientRecordReader.readParallel(path));
     } catch (IOException e) {
       throw new IllegalStateException("Failed to read file: " + path, e);
     }
-    return result;
   }
 
   /**
-   * Reads patient records from a CSV file and organizes them by medical condition.
+   * Reads every patient record in a CSV file, going through its binary snapshot when possible.
+   * If an up-to-date snapshot exists next to the file, its columns are loaded and the table is
+   * handed over as is, without parsing the CSV or building any record. Otherwise the CSV is
+   * parsed and a snapshot is written for the next run; failing to write it only produces a
+   * warning.
    *
    * @param path The {@link Path} to the input CSV file.
-   * @return A {@link VisitsForCT} object containing the parsed data.
+   * @param parallel Whether to parse the CSV with {@link #readVisitsParallel(Path)}.
+   * @return A {@link PatientTable} of the visits in file order.
    * @throws IllegalStateException if the file cannot be read.
    */
-  static VisitsForCT readCTVisits(Path path) {
-    VisitsForCT result = new VisitsForCT();
+  static PatientTable readVisitsCached(Path path, boolean parallel) {
     try {
-      List<String> visitsAsText = Files.readAllLines(path);
-      visitsAsText.stream()
-              .skip(1) // Skip header row.
-              .map(IOUtils::convertLineToVisit)
-              .forEach(result::addVisit);
+      Optional<PatientTable> snapshot = PatientSnapshot.load(path);
+      if (snapshot.isPresent()) {
+        Debug.print(Status.INFO, "Loaded snapshot " + PatientSnapshot.snapshotPath(path));
+        return snapshot.get();
+      }
     } catch (IOException e) {
-      throw new IllegalStateException("Failed to read file: " + path, e);
+      Debug.print(Status.WARNING, "Ignoring unreadable snapshot: " + e);
     }
-    return result;
-  }
 
-  /**
-   * Reads patient records from a CSV file and organizes them by age group.
-   *
-   * @param path The {@link Path} to the input CSV file.
-   * @return A {@link VisitsForAG} object containing the parsed data.
-   * @throws IllegalStateException if the file cannot be read.
-   */
-  static VisitsForAG readAGVisits(Path path) {
-    VisitsForAG result = new VisitsForAG();
+    PatientTable visits = parallel ? readVisitsParallel(path) : readVisits(path);
     try {
-      List<String> visitsAsText = Files.readAllLines(path);
-      visitsAsText.stream()
-              .skip(1) // Skip header row.
-              .map(IOUtils::convertLineToVisit)
-              .forEach(result::addVisit);
-    } catch (IOException e) {
-      throw new IllegalStateException("Failed to read file: " + path, e);
-    }
-    return result;
-  }
-
-  /**
-   * Writes a map of medical conditions and their mean billing amounts to a CSV file.
-   * The output format is "Condition,MeanBilling".
-   *
-   * @param means A map where the key is the condition and the value is the mean billing amount.
-   * @param file  The path to the output CSV file.
-   */
-  static void writeMeansBillingPerCT(Map<String, Double> means, String file) {
-    try (PrintWriter pw = new PrintWriter(new File(file), UTF_8.name())) {
-      pw.write("Condition,MeanBilling\n"); // Write header.
-      // Format the double to two decimal places for cleaner output.
-      String format = "%s,%.2f\n";
-      means.forEach((condition, mean) -> pw.write(String.format(format, condition, mean)));
+      PatientSnapshot.write(path, visits);
     } catch (IOException e) {
-      throw new IllegalStateException("Failed to write to file: " + file, e);
+      Debug.print(Status.WARNING, "Could not write snapshot: " + e);
     }
+    return visits;
   }
 
   /**
-   * Writes a map of years and their mean billing amounts to a CSV file.
-   * The output format is "Year,MeanBilling".
+   * The visits appended to a CSV file since an earlier read.
    *
-   * @param means A map where the key is the year and the value is the mean billing amount.
-   * @param file  The path to the output CSV file.
+   * @param visits The visits of every complete line from the start offset on, in file order.
+   * @param end The offset right after the last complete line, where the next read starts.
    */
-  static void writeMeansBillingPerYear(Map<Year, Double> means, String file) {
-    try (PrintWriter pw = new PrintWriter(new File(file), UTF_8.name())) {
-      pw.write("Year,MeanBilling\n"); // Write header.
-      // Format the double to two decimal places.
-      String format = "%d,%.2f\n";
-      means.forEach((year, mean) -> pw.write(String.format(format, year.getValue(), mean)));
-    } catch (IOException e) {
-      throw new IllegalStateException("Failed to write to file: " + file, e);
-    }
-  }
+  record Appended(PatientTable visits, long end) { }
 
   /**
-   * Writes a map of age groups and their mean billing amounts to a CSV file.
-   * The output format is "Age Group,MeanBilling".
+   * Reads the patient records appended to a CSV file since the given byte offset. Only complete
+   * lines are read: a last line without its newline may still be being written, so it is left
+   * for the next read. The header is only skipped when reading from the start of the file.
    *
-   * @param means A map where the key is the age group and the value is the mean billing amount.
-   * @param file  The path to the output CSV file.
-   */
-  static void writeMeansBillingPerAG(Map<String, Double> means, String file) {
-    try (PrintWriter pw = new PrintWriter(new File(file), UTF_8.name())) {
-      pw.write("Age Group,MeanBilling\n"); // Write header.
-      String format = "%s,%.2f\n";
-      means.forEach((ageGroup, mean) -> pw.write(String.format(format, ageGroup, mean)));
-    } catch (IOException e) {
-      throw new IllegalStateException("Failed to write to file: " + file, e);
-    }
-  }
-
-  /**
-   * Writes a map of medical conditions and their mean patient ages to a CSV file.
-   * The output format is "Condition,MeanAge".
-   *
-   * @param means A map where the key is the condition and the value is the mean age.
-   * @param file  The path to the output CSV file.
-   */
-  static void writeMeansAgePerCT(Map<String, Double> means, String file) {
-    try (PrintWriter pw = new PrintWriter(new File(file), UTF_8.name())) {
-      pw.write("Condition,MeanAge\n"); // Write header.
-      String format = "%s,%.2f\n";
-      // The key represents the medical condition.
-      means.forEach((condition, mean) -> pw.write(String.format(format, condition, mean)));
-    } catch (IOException e) {
-      throw new IllegalStateException("Failed to write to file: " + file, e);
-    }
-  }
-
-  /**
-   * Writes a map of years and their total billing amounts to a CSV file.
-   * The output format is "Year,SumBilling".
-   *
-   * @param sums A map where the key is the year and the value is the total billing amount.
-   * @param file The path to the output CSV file.
+   * @param path The {@link Path} to the uncompressed input CSV file.
+   * @param from The offset to read from, which must be the start of a line.
+   * @return The appended records and the offset the next read starts from.
+   * @throws IllegalArgumentException if the file is compressed, as its offsets are not stable.
+   * @throws IllegalStateException if the file cannot be read.
    */
-  static void writeSumsBillingPerYear(Map<Year, Integer> sums, String file) {
-    try (PrintWriter pw = new PrintWriter(new File(file), UTF_8.name())) {
-      pw.write("Year,SumBilling\n"); // Write header.
-      String format = "%d,%d\n";
-      sums.forEach((year, sum) -> pw.write(String.format(format, year.getValue(), sum)));
+  static Appended readVisitsAppended(Path path, long from) {
+    try {
+      if (PatientRecordReader.isCompressed(path)) {
+        throw new IllegalArgumentException("Cannot read the appended part of compressed file " + path);
+      }
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+        long end = endOfLastLine(channel, from);
+        PatientTable.Builder result = new PatientTable.Builder();
+        if (end > from) {
+          InputStream in = new BufferedInputStream(Channels.newInputStream(channel.position(from)));
+          PatientRecordReader.stream(ByteStreams.limit(in, end - from), from == 0, result::add);
+        }
+        return new Appended(result.build(), Math.max(end, from));
+      }
     } catch (IOException e) {
-      throw new IllegalStateException("Failed to write to file: " + file, e);
+      throw new IllegalStateException("Failed to read file: " + path, e);
     }
   }
 
-  /**
-   * Writes a map of blood groups and their total billing amounts to a CSV file.
-   * The output format is "Blood Group,SumBilling".
-   *
-   * @param sums A map where the key is the blood group and the value is the total billing amount.
-   * @param file The path to the output CSV file.
-   */
-  static void writeSumsBillingPerBG(Map<String, Integer> sums, String file) {
-    try (PrintWriter pw = new PrintWriter(new File(file), UTF_8.name())) {
-      pw.write("Blood Group,SumBilling\n"); // Write header.
-      String format = "%s,%d\n";
-      sums.forEach((bloodGroup, sum) -> pw.write(String.format(format, bloodGroup, sum)));
-    } catch (IOException e) {
-      throw new IllegalStateException("Failed to write to file: " + file, e);
+  /** Returns the offset right after the last newline of the file at or after {@code from}, or {@code from}. */
+  private static long endOfLastLine(FileChannel channel, long from) throws IOException {
+    ByteBuffer block = ByteBuffer.allocate(1 << 16);
+    long end = channel.size();
+    while (end > from) {
+      long start = Math.max(from, end - block.capacity());
+      block.clear().limit((int) (end - start));
+      while (block.hasRemaining() && channel.read(block, start + block.position()) > 0);
+      for (int i = block.position() - 1; i >= 0; i--) {
+        if (block.get(i) == '\n') {
+          return start + i + 1;
+        }
+      }
+      end = start;
     }
+    return from;
   }
 
   /**
-   * Writes a map of age groups and their total billing amounts to a CSV file.
-   * The output format is "Age Group,SumBilling".
+   * Streams patient records from a CSV file into the given sink without holding the whole
+   * file in memory. The file is read in fixed-size byte chunks and every complete line in a
+   * chunk is decoded and pushed to the sink before the next chunk is read.
+   * Assumes the first line is a header, which will be skipped.
    *
-   * @param sums A map where the key is the age group and the value is the total billing amount.
-   * @param file The path to the output CSV file.
-   */
-  static void writeSumsBillingPerAG(Map<String, Double> sums, String file) {
-    try (PrintWriter pw = new PrintWriter(new File(file), UTF_8.name())) {
-      pw.write("Age Group,SumBilling\n"); // Write header.
-      String format = "%s,%.2f\n";
-      sums.forEach((ageGroup, sum) -> pw.write(String.format(format, ageGroup, sum)));
-    } catch (IOException e) {
-      throw new IllegalStateException("Failed to write to file: " + file, e);
-    }
-  }
-
-
-  static void writeCountsPerYear(Map<Year, Integer> counts, String file) {
-    try (PrintWriter pw = new PrintWriter(new File(file), UTF_8.name())) {
-      pw.write("Year,SumBilling\n"); // Write header
-      String format = "%d,%d\n";
-      counts.forEach(
-              (year, count) -> pw.write(String.format(format, year.getValue(), count)));
-    } catch (IOException e) {
-      throw new IllegalStateException(e);
-    }
-  }
-
-
-  static void writeCountsPerBG(Map<String, Integer> counts, String file) {
-    try (PrintWriter pw = new PrintWriter(new File(file), UTF_8.name())) {
-      pw.write("Blood Group,SumBilling\n"); // Write header
-      String format = "%s,%d\n";
-      counts.forEach(
-              (BG, count) -> pw.write(String.format(format, BG, count)));
-    } catch (IOException e) {
-      throw new IllegalStateException(e);
-    }
-  }
-
-  /*
-   * Writes a map of years and their patient counts to a CSV file.
-   * The output format is "Year,Patient Count".
-   * 
-   * @param counts a map where the key is the year and the value is the patient count.
-   * @param file The path to the output file.
-   */
-  static void writeCountPerYear(Map<Year, Integer> counts, String file){
-    try (PrintWriter pw = new PrintWriter(new File(file), UTF_8.name())) {
-      pw.write("Year, Patient Count\n"); // Write header
-      String format = "%d,%d\n";
-      counts.forEach(
-          (year, count) -> pw.write(String.format(format, year.getValue(), count)));
-    } catch (IOException e) {
-      throw new IllegalStateException(e);
-    }
-  }
-
-  /*
-   * Writes a map of condition type and their patient counts to a CSV file.
-   * The output format is "Condition ,Patient Count".
-   * 
-   * @param counts a map where the key is the condition type and the value is the patient count.
-   * @param file The path to the output file.
-   */
-  static void writeCountsPerConditionType(Map<String, Integer> counts, String file) {
-    try (PrintWriter pw = new PrintWriter(new File(file), UTF_8.name())) {
-      pw.write("Condition, Patient Count\n"); // Write header
-      String format = "%s,%d\n";
-      counts.forEach(
-          (conditionType, count) -> pw.write(String.format(format, conditionType, count)));
-    } catch (IOException e) {
-      throw new IllegalStateException(e);
-    }
-  }
-
-  /*
-   * Writes a map of blood type and their patient counts to a CSV file.
-   * The output format is "Blood Group,Patient Count".
-   * 
-   * @param counts a map where the key is the blood type and the value is the patient count.
-   * @param file The path to the output file.
-   */
-  static void writeCountsPerBloodType(Map<String, Integer> counts, String file){
-    try (PrintWriter pw = new PrintWriter(new File(file), UTF_8.name())) {
-      pw.write("Blood Group, Patient Counts\n"); // Write header
-      String format = "%s,%d\n";
-      counts.forEach(
-              (BG, count) -> pw.write(String.format(format, BG, count)));
-    } catch (IOException e) {
-      throw new IllegalStateException(e);
-    }
-  }
-
-    /*
-   * Writes a map of age group and their patient counts to a CSV file.
-   * The output format is "Age Group,Patient Count".
-   * 
-   * @param counts a map where the key is the age group and the value is the patient count.
-   * @param file The path to the output file.
+   * @param path The {@link Path} to the input CSV file.
+   * @param sink Receives each parsed record in file order.
+   * @throws IllegalStateException if the file cannot be read.
    */
-  static void writeCountsPerAgeGroup(Map<String, Integer> counts, String file){
-    try (PrintWriter pw = new PrintWriter(new File(file), UTF_8.name())) {
-      pw.write("Age Group, Patient Counts\n"); // Write header
-      String format = "%s,%d\n";
-      counts.forEach(
-              (AgeGroup, count) -> pw.write(String.format(format, AgeGroup, count)));
+  static void streamVisits(Path path, Consumer<? super PatientRecord> sink) {
+    try {
+      PatientRecordReader.stream(path, sink);
     } catch (IOException e) {
-      throw new IllegalStateException(e);
+      throw new IllegalStateException("Failed to read file: " + path, e);
     }
   }
-
 }
-
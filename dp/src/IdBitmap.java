@@ -0,0 +1,319 @@
+package dp.src;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A compressed set of patient ids, laid out like a Roaring bitmap. The 32 bits of an id
+ * are split into a 16-bit key and a 16-bit value. The values of each key live in a
+ * container of their own: a sorted array while the container holds at most
+ * {@link #ARRAY_LIMIT} values, and a 65536-bit bitmap beyond that. Containers are kept
+ * sorted by key, so ids are added without boxing and sets are unioned container by
+ * container.
+ */
+class IdBitmap {
+  /** The largest number of values an array container holds before it becomes a bitmap. */
+  private static final int ARRAY_LIMIT = 4096;
+
+  private char[] keys = new char[4];
+  private Container[] containers = new Container[4];
+  private int size = 0;
+  private int cardinality = 0;
+
+  /**
+   * Adds an id to the set.
+   *
+   * @return Whether the id was not in the set yet.
+   */
+  boolean add(int id) {
+    char key = (char) (id >>> 16);
+    int index;
+    // Ids mostly arrive in ascending order, so try the last container first.
+    if (size > 0 && keys[size - 1] == key) {
+      index = size - 1;
+    } else {
+      index = Arrays.binarySearch(keys, 0, size, key);
+      if (index < 0) {
+        index = -index - 1;
+        insert(index, key, new ArrayContainer());
+      }
+    }
+    Container container = containers[index];
+    if (!container.add((char) id)) {
+      return false;
+    }
+    if (container.cardinality() > ARRAY_LIMIT && container instanceof ArrayContainer) {
+      containers[index] = ((ArrayContainer) container).toBitmap();
+    }
+    cardinality++;
+    return true;
+  }
+
+  /** Returns whether the id is in the set. */
+  boolean contains(int id) {
+    int index = Arrays.binarySearch(keys, 0, size, (char) (id >>> 16));
+    return index >= 0 && containers[index].contains((char) id);
+  }
+
+  /** Returns the number of ids in the set. */
+  int cardinality() {
+    return cardinality;
+  }
+
+  /**
+   * Adds every id of another set to this one.
+   *
+   * @param other The set to union with; it is left unchanged.
+   */
+  void or(IdBitmap other) {
+    int index = 0;
+    for (int i = 0; i < other.size; i++) {
+      char key = other.keys[i];
+      while (index < size && keys[index] < key) {
+        index++;
+      }
+      if (index < size && keys[index] == key) {
+        cardinality -= containers[index].cardinality();
+        containers[index] = containers[index].or(other.containers[i]);
+      } else {
+        insert(index, key, other.containers[i].copy());
+      }
+      cardinality += containers[index].cardinality();
+      index++;
+    }
+  }
+
+  /**
+   * Writes the set: the number of containers, then the key, kind, cardinality and values of each.
+   *
+   * @throws IOException if the output cannot be written.
+   */
+  void writeTo(DataOutput out) throws IOException {
+    out.writeInt(size);
+    for (int i = 0; i < size; i++) {
+      out.writeChar(keys[i]);
+      Container container = containers[i];
+      out.writeBoolean(container instanceof BitmapContainer);
+      out.writeInt(container.cardinality());
+      if (container instanceof BitmapContainer) {
+        for (long word : ((BitmapContainer) container).words) {
+          out.writeLong(word);
+        }
+      } else {
+        ArrayContainer array = (ArrayContainer) container;
+        for (int j = 0; j < array.cardinality; j++) {
+          out.writeChar(array.values[j]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads a set written by {@link #writeTo(DataOutput)}.
+   *
+   * @throws IOException if the input cannot be read.
+   */
+  static IdBitmap readFrom(DataInput in) throws IOException {
+    IdBitmap bitmap = new IdBitmap();
+    int size = in.readInt();
+    for (int i = 0; i < size; i++) {
+      char key = in.readChar();
+      boolean dense = in.readBoolean();
+      int cardinality = in.readInt();
+      Container container;
+      if (dense) {
+        long[] words = new long[1 << 10];
+        for (int j = 0; j < words.length; j++) {
+          words[j] = in.readLong();
+        }
+        container = new BitmapContainer(words, cardinality);
+      } else {
+        char[] values = new char[Math.max(cardinality, 4)];
+        for (int j = 0; j < cardinality; j++) {
+          values[j] = in.readChar();
+        }
+        container = new ArrayContainer(values, cardinality);
+      }
+      bitmap.insert(bitmap.size, key, container);
+      bitmap.cardinality += cardinality;
+    }
+    return bitmap;
+  }
+
+  private void insert(int index, char key, Container container) {
+    if (size == keys.length) {
+      keys = Arrays.copyOf(keys, size * 2);
+      containers = Arrays.copyOf(containers, size * 2);
+    }
+    System.arraycopy(keys, index, keys, index + 1, size - index);
+    System.arraycopy(containers, index, containers, index + 1, size - index);
+    keys[index] = key;
+    containers[index] = container;
+    size++;
+  }
+
+  /** The values of one key. */
+  private abstract static class Container {
+    /** Adds a value, returning whether it was not in the container yet. */
+    abstract boolean add(char value);
+
+    abstract boolean contains(char value);
+
+    abstract int cardinality();
+
+    /** Returns the union of this container and another, which may be this container updated in place. */
+    abstract Container or(Container other);
+
+    abstract Container copy();
+  }
+
+  /** A sorted array of at most {@link #ARRAY_LIMIT} values, or one more right before it becomes a bitmap. */
+  private static final class ArrayContainer extends Container {
+    private char[] values;
+    private int cardinality;
+
+    ArrayContainer() {
+      this(new char[4], 0);
+    }
+
+    private ArrayContainer(char[] values, int cardinality) {
+      this.values = values;
+      this.cardinality = cardinality;
+    }
+
+    @Override
+    boolean add(char value) {
+      int index;
+      if (cardinality == 0 || values[cardinality - 1] < value) {
+        index = cardinality;
+      } else {
+        index = Arrays.binarySearch(values, 0, cardinality, value);
+        if (index >= 0) {
+          return false;
+        }
+        index = -index - 1;
+      }
+      if (cardinality == values.length) {
+        values = Arrays.copyOf(values, cardinality * 2);
+      }
+      System.arraycopy(values, index, values, index + 1, cardinality - index);
+      values[index] = value;
+      cardinality++;
+      return true;
+    }
+
+    @Override
+    boolean contains(char value) {
+      return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+    }
+
+    @Override
+    int cardinality() {
+      return cardinality;
+    }
+
+    @Override
+    Container or(Container other) {
+      if (other instanceof BitmapContainer) {
+        return other.or(this);
+      }
+      ArrayContainer array = (ArrayContainer) other;
+      char[] merged = new char[cardinality + array.cardinality];
+      int i = 0;
+      int j = 0;
+      int count = 0;
+      while (i < cardinality && j < array.cardinality) {
+        char a = values[i];
+        char b = array.values[j];
+        merged[count++] = a <= b ? a : b;
+        i += a <= b ? 1 : 0;
+        j += b <= a ? 1 : 0;
+      }
+      while (i < cardinality) {
+        merged[count++] = values[i++];
+      }
+      while (j < array.cardinality) {
+        merged[count++] = array.values[j++];
+      }
+      ArrayContainer union = new ArrayContainer(merged, count);
+      return count > ARRAY_LIMIT ? union.toBitmap() : union;
+    }
+
+    @Override
+    Container copy() {
+      return new ArrayContainer(Arrays.copyOf(values, Math.max(cardinality, 4)), cardinality);
+    }
+
+    BitmapContainer toBitmap() {
+      BitmapContainer bitmap = new BitmapContainer();
+      for (int i = 0; i < cardinality; i++) {
+        bitmap.add(values[i]);
+      }
+      return bitmap;
+    }
+  }
+
+  /** A bitmap of all 65536 values of a key. */
+  private static final class BitmapContainer extends Container {
+    private final long[] words;
+    private int cardinality;
+
+    BitmapContainer() {
+      this(new long[1 << 10], 0);
+    }
+
+    private BitmapContainer(long[] words, int cardinality) {
+      this.words = words;
+      this.cardinality = cardinality;
+    }
+
+    @Override
+    boolean add(char value) {
+      long word = words[value >>> 6];
+      long bit = 1L << value;
+      if ((word & bit) != 0) {
+        return false;
+      }
+      words[value >>> 6] = word | bit;
+      cardinality++;
+      return true;
+    }
+
+    @Override
+    boolean contains(char value) {
+      return (words[value >>> 6] & (1L << value)) != 0;
+    }
+
+    @Override
+    int cardinality() {
+      return cardinality;
+    }
+
+    @Override
+    Container or(Container other) {
+      BitmapContainer union = new BitmapContainer(words.clone(), cardinality);
+      if (other instanceof ArrayContainer) {
+        ArrayContainer array = (ArrayContainer) other;
+        for (int i = 0; i < array.cardinality; i++) {
+          union.add(array.values[i]);
+        }
+        return union;
+      }
+      long[] otherWords = ((BitmapContainer) other).words;
+      int count = 0;
+      for (int i = 0; i < union.words.length; i++) {
+        union.words[i] |= otherWords[i];
+        count += Long.bitCount(union.words[i]);
+      }
+      union.cardinality = count;
+      return union;
+    }
+
+    @Override
+    Container copy() {
+      return new BitmapContainer(words.clone(), cardinality);
+    }
+  }
+}
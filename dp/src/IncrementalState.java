@@ -0,0 +1,133 @@
+package dp.src;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+import java.util.zip.CRC32C;
+
+/**
+ * The state an incremental run leaves for the next one: how far into an append-only
+ * CSV file the visits have been aggregated, and the aggregates of those visits.
+ *
+ * The state is keyed by a fingerprint of the aggregates it holds and by a hash of the
+ * bytes of the CSV file right before its high-water mark. If either no longer matches,
+ * or the file is shorter than the mark, the file was not only appended to and the state
+ * is ignored.
+ *
+ * Layout (big-endian):
+ * <pre>
+ *   header  magic, version, high-water mark, visits folded in, hash before the mark, fingerprint
+ *   body    written and read by the caller
+ * </pre>
+ */
+final class IncrementalState {
+
+  private static final long MAGIC = 0x4450535441544531L; // "DPSTATE1"
+  private static final int VERSION = 1;
+
+  /** Number of bytes of the CSV file before the high-water mark that are hashed. */
+  private static final int HASH_BLOCK_SIZE = 64 * 1024;
+
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  /** Writes the body of a state. */
+  interface BodyWriter {
+    void write(DataOutputStream out) throws IOException;
+  }
+
+  /** Reads the body of a state. */
+  interface BodyReader<T> {
+    T read(DataInputStream in) throws IOException;
+  }
+
+  /**
+   * A loaded state.
+   *
+   * @param offset The byte offset in the CSV file up to which visits have been aggregated.
+   * @param visits The number of visits aggregated so far.
+   * @param body The aggregates of those visits.
+   */
+  record Loaded<T>(long offset, long visits, T body) { }
+
+  private IncrementalState() {}
+
+  /**
+   * Loads the state of the given CSV file.
+   *
+   * @param state The state file.
+   * @param csv The CSV file the state was computed from.
+   * @param fingerprint Identifies the aggregates the body must hold.
+   * @param reader Reads the body.
+   * @return The state, or empty if there is none or it does not match the file or fingerprint.
+   * @throws IOException if the state exists but cannot be read.
+   */
+  static <T> Optional<Loaded<T>> load(Path state, Path csv, String fingerprint, BodyReader<T> reader)
+      throws IOException {
+    if (!Files.isRegularFile(state)) {
+      return Optional.empty();
+    }
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(Files.newInputStream(state), BUFFER_SIZE))) {
+      if (in.readLong() != MAGIC || in.readInt() != VERSION) {
+        return Optional.empty();
+      }
+      long offset = in.readLong();
+      long visits = in.readLong();
+      long hash = in.readLong();
+      if (!in.readUTF().equals(fingerprint) || Files.size(csv) < offset || hash != hashBefore(csv, offset)) {
+        return Optional.empty();
+      }
+      return Optional.of(new Loaded<>(offset, visits, reader.read(in)));
+    }
+  }
+
+  /**
+   * Writes the state of the given CSV file. The state is written to a temporary file first
+   * and then moved into place, so an interrupted run leaves the previous state intact.
+   *
+   * @param state The state file.
+   * @param csv The CSV file the state was computed from.
+   * @param fingerprint Identifies the aggregates the body holds.
+   * @param offset The byte offset in the CSV file up to which visits have been aggregated.
+   * @param visits The number of visits aggregated so far.
+   * @param writer Writes the body.
+   * @throws IOException if the state cannot be written.
+   */
+  static void save(Path state, Path csv, String fingerprint, long offset, long visits, BodyWriter writer)
+      throws IOException {
+    Path temporary = state.resolveSibling(state.getFileName() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(Files.newOutputStream(temporary), BUFFER_SIZE))) {
+      out.writeLong(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(offset);
+      out.writeLong(visits);
+      out.writeLong(hashBefore(csv, offset));
+      out.writeUTF(fingerprint);
+      writer.write(out);
+    }
+    Files.move(temporary, state, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /** Hashes the block of the file that ends at the given offset. */
+  private static long hashBefore(Path file, long offset) throws IOException {
+    CRC32C crc = new CRC32C();
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long from = Math.max(0, offset - HASH_BLOCK_SIZE);
+      ByteBuffer block = ByteBuffer.allocate((int) (offset - from));
+      while (block.hasRemaining() && channel.read(block, from + block.position()) > 0);
+      block.flip();
+      crc.update(block);
+    }
+    return crc.getValue();
+  }
+}
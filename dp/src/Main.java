@@ -2,40 +2,312 @@ package dp.src;
 
 import util.src.*;
 
+import java.math.BigDecimal;
 import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 public class Main {
+
+  /** Computes the private statistics of a job at a given privacy budget and writes them to the sink. */
+  interface Release {
+    void at(AggregationEngine.Aggregates aggregates, ResultSink sink, double epsilon);
+  }
+
+  /**
+   * A job of the DP suite. It first requests the aggregates it needs from the shared engine,
+   * then computes its statistics from the computed aggregates and writes them to the sink.
+   * The private statistics can also be released on their own at any privacy budget, which
+   * only adds noise to the bounded aggregates again; {@code epsilon} is the budget {@code run}
+   * releases them at. A job whose release is too slow to repeat thousands of times is not
+   * {@code evaluated} by {@code --evaluate} unless asked for.
+   */
+  record Job(Consumer<AggregationEngine> request, BiConsumer<AggregationEngine.Aggregates, ResultSink> run,
+      Release release, double epsilon, boolean evaluated) {
+    Job(Consumer<AggregationEngine> request, BiConsumer<AggregationEngine.Aggregates, ResultSink> run,
+        Release release, double epsilon) {
+      this(request, run, release, epsilon, true);
+    }
+  }
+
+  /** The jobs of the suite by name, in the order they run sequentially. */
+  static final Map<String, Job> JOBS = new LinkedHashMap<>();
+
+  static {
+    JOBS.put("SumBillingPerYear", new Job(SumBillingPerYear::request, SumBillingPerYear::run,
+        SumBillingPerYear::release, SumBillingPerYear.LN_X));
+    JOBS.put("SumBillingPerBG", new Job(SumBillingPerBG::request, SumBillingPerBG::run,
+        SumBillingPerBG::release, SumBillingPerBG.LN_X));
+    JOBS.put("SumBillingPerAG", new Job(SumBillingPerAG::request, SumBillingPerAG::run,
+        SumBillingPerAG::release, SumBillingPerAG.LN_X));
+    JOBS.put("MeanBillingPerYear", new Job(MeanBillingPerYear::request, MeanBillingPerYear::run,
+        MeanBillingPerYear::release, MeanBillingPerYear.LN_X));
+    JOBS.put("MeanBillingPerCT", new Job(MeanBillingPerCT::request, MeanBillingPerCT::run,
+        MeanBillingPerCT::release, MeanBillingPerCT.LN_X));
+    JOBS.put("MeanAgePerCT", new Job(MeanAgePerCT::request, MeanAgePerCT::run,
+        MeanAgePerCT::release, MeanAgePerCT.LN_X));
+    JOBS.put("MeanBillingPerAG", new Job(MeanBillingPerAG::request, MeanBillingPerAG::run,
+        MeanBillingPerAG::release, MeanBillingPerAG.LN_X));
+    JOBS.put("PatientsCountPerYear", new Job(PatientsCountPerYear::request, PatientsCountPerYear::run,
+        PatientsCountPerYear::release, PatientsCountPerYear.LN_X));
+    JOBS.put("PatientCountPerCondition", new Job(PatientCountPerCondition::request, PatientCountPerCondition::run,
+        PatientCountPerCondition::release, PatientCountPerCondition.LN_X));
+    JOBS.put("PatientCountPerBloodType", new Job(PatientCountPerBloodType::request, PatientCountPerBloodType::run,
+        PatientCountPerBloodType::release, PatientCountPerBloodType.LN_X));
+    JOBS.put("PatientCountPerAgeGroup", new Job(PatientCountPerAgeGroup::request, PatientCountPerAgeGroup::run,
+        PatientCountPerAgeGroup::release, PatientCountPerAgeGroup.LN_X));
+
+    // Jobs over dimensions whose keys are not public select the partitions they release privately.
+    PatientCountPerSelectedKey<String> hospitalCounts =
+        new PatientCountPerSelectedKey<>(Dimension.HOSPITAL, "hospital", "Hospital", 2);
+    JOBS.put("PatientCountPerHospital", new Job(hospitalCounts::request, hospitalCounts::run,
+        hospitalCounts::release, PatientCountPerSelectedKey.LN_X));
+    PatientCountPerSelectedKey<String> doctorCounts =
+        new PatientCountPerSelectedKey<>(Dimension.DOCTOR, "doctor", "Doctor", 2);
+    JOBS.put("PatientCountPerDoctor", new Job(doctorCounts::request, doctorCounts::run,
+        doctorCounts::release, PatientCountPerSelectedKey.LN_X));
+    PatientCountPerSelectedKey<String> medicationCounts =
+        new PatientCountPerSelectedKey<>(Dimension.MEDICATION, "medication", "Medication", 2);
+    JOBS.put("PatientCountPerMedication", new Job(medicationCounts::request, medicationCounts::run,
+        medicationCounts::release, PatientCountPerSelectedKey.LN_X));
+    SumBillingPerSelectedKey hospitalSums = new SumBillingPerSelectedKey(Dimension.HOSPITAL, "hospital", "Hospital", 2);
+    JOBS.put("SumBillingPerHospital", new Job(hospitalSums::request, hospitalSums::run,
+        hospitalSums::release, SumBillingPerSelectedKey.LN_X));
+    SumBillingPerSelectedKey doctorSums = new SumBillingPerSelectedKey(Dimension.DOCTOR, "doctor", "Doctor", 2);
+    JOBS.put("SumBillingPerDoctor", new Job(doctorSums::request, doctorSums::run,
+        doctorSums::release, SumBillingPerSelectedKey.LN_X));
+    SumBillingPerSelectedKey medicationSums = new SumBillingPerSelectedKey(Dimension.MEDICATION, "medication", "Medication", 2);
+    JOBS.put("SumBillingPerMedication", new Job(medicationSums::request, medicationSums::run,
+        medicationSums::release, SumBillingPerSelectedKey.LN_X));
+
+    // Cross-tabulations are the cuboids of one cube, computed in the same scan as every other job.
+    ContingencyCube cube = new ContingencyCube(2,
+        new Dimension<?>[] {Dimension.CONDITION, Dimension.BLOOD_TYPE, Dimension.YEAR},
+        new Dimension<?>[] {Dimension.AGE_GROUP, Dimension.ADMISSION_TYPE});
+    JOBS.put("ContingencyCube", new Job(cube::request, cube::run, cube::release, ContingencyCube.LN_X));
+
+    // Quantiles are exact for the integral age and sketched for the billing amount. Their release
+    // builds a noisy quantile tree per partition, so they are only evaluated with --evaluate-quantiles.
+    QuantilesPerKey<String> ageQuantiles =
+        new QuantilesPerKey<>(Dimension.CONDITION, "condition", "Condition", Measure.AGE, 2, 2);
+    JOBS.put("AgeQuantilesPerCT", new Job(ageQuantiles::request, ageQuantiles::run,
+        ageQuantiles::release, QuantilesPerKey.LN_X, false));
+    QuantilesPerKey<String> billQuantiles =
+        new QuantilesPerKey<>(Dimension.CONDITION, "condition", "Condition", Measure.BILL, 2, 2);
+    JOBS.put("BillingQuantilesPerCT", new Job(billQuantiles::request, billQuantiles::run,
+        billQuantiles::release, QuantilesPerKey.LN_X, false));
+  }
+
+  /** Command line settings for a single run of the DP suite. */
+  static class Options {
+    private Path path;
+    private boolean parallelParse = false;
+    private boolean snapshot = false;
+    private Path combinedOutput = null;
+    private int jobs = 0; // 0 when not given
+    private ContributionBoundingUtils.Strategy bounding = ContributionBoundingUtils.Strategy.RESERVOIR;
+    private Long seed = null;
+    private int sketchPrecision = 0;
+    private Path incrementalState = null;
+    private double[] epsilons = null;
+    private int trials = 0;
+    private boolean evaluateQuantiles = false;
+  }
+
   public static void main(String[] args) {
-    Path path = checkUsage(args);
-    SumBillingPerYear.run(path);
-    SumBillingPerBG.run(path);
-    SumBillingPerAG.run(path);
-    MeanBillingPerYear.run(path);
-    MeanBillingPerCT.run(path);
-    MeanAgePerCT.run(path);
-    MeanBillingPerAG.run(path);
-    PatientsCountPerYear.run(path);
-    PatientCountPerCondition.run(path);
-    PatientCountPerBloodType.run(path);
-    PatientCountPerAgeGroup.run(path);
-    return;
-  }
-
-  public static Path checkUsage(String[] args) {
+    Options options = checkUsage(args);
+
+    AggregationEngine engine = new AggregationEngine(options.bounding,
+        options.seed != null ? new SplittableRandom(options.seed) : new SplittableRandom(),
+        options.sketchPrecision);
+    JOBS.values().forEach(job -> job.request().accept(engine));
+
+    AggregationEngine.Aggregates aggregates;
+    if (options.incrementalState != null) {
+      // Only parse the lines appended since the previous run and fold them into its aggregates.
+      aggregates = engine.computeIncremental(options.path, options.incrementalState);
+    } else {
+      // Parse the input once and share the immutable table between all jobs.
+      PatientTable visits;
+      if (options.snapshot)
+        visits = IOUtils.readVisitsCached(options.path, options.parallelParse);
+      else if (options.parallelParse)
+        visits = IOUtils.readVisitsParallel(options.path);
+      else
+        visits = IOUtils.readVisits(options.path);
+
+      // Group the visits by every dimension the jobs need, then compute the aggregates of all
+      // jobs in a single scan over the visits.
+      PartitionIndex index = PartitionIndex.build(visits, engine.dimensions());
+      aggregates = engine.compute(index);
+    }
+
+    if (options.trials > 0) {
+      // Release every job's private tables again in each trial, and only write the error summary.
+      long start = System.nanoTime();
+      List<Job> evaluated = JOBS.values().stream()
+          .filter(job -> job.evaluated() || options.evaluateQuantiles)
+          .toList();
+      List<UtilityEvaluation.Summary> summaries = UtilityEvaluation.evaluate(aggregates, evaluated,
+          options.epsilons, options.trials,
+          options.jobs > 0 ? options.jobs : Runtime.getRuntime().availableProcessors());
+      Path output = options.combinedOutput != null ? options.combinedOutput : Paths.get(UtilityEvaluation.OUTPUT);
+      UtilityEvaluation.write(summaries, output);
+      Debug.print(Status.INFO, "Evaluated " + options.trials + " trials of " + summaries.size() + " statistics in "
+          + (System.nanoTime() - start) / 1_000_000 + " ms, summary written to " + output);
+      return;
+    }
+
+    // Every job writes its tables through one sink, which writes the combined file when closed.
+    int tasks;
+    int failures;
+    try (ResultSink sink = options.combinedOutput != null
+        ? ResultSink.combined(options.combinedOutput)
+        : ResultSink.perFile()) {
+      Map<String, Runnable> runs = new LinkedHashMap<>();
+      JOBS.forEach((name, job) -> runs.put(name, () -> job.run().accept(aggregates, sink)));
+      if (options.epsilons != null) {
+        // Sweep: release the private statistics again at every epsilon from the same bounded
+        // aggregates, each into its own tagged tables. The budgets of the releases add up.
+        Debug.print(Status.INFO, "Releasing every private statistic at " + options.epsilons.length + " epsilons",
+            "Cumulative privacy budget per partition: " + Arrays.stream(options.epsilons)
+                .mapToObj(BigDecimal::valueOf).reduce(BigDecimal.ZERO, BigDecimal::add).stripTrailingZeros()
+                .toPlainString() + " on top of the regular tables",
+            "The sweep tables are for analysis only and must not be released");
+        for (double epsilon : options.epsilons) {
+          ResultSink tagged = sink.tagged(epsilonTag(epsilon));
+          JOBS.forEach((name, job) -> runs.put(name + " at epsilon " + epsilon,
+              () -> job.release().at(aggregates, tagged, epsilon)));
+        }
+      }
+      tasks = runs.size();
+      failures = runJobs(runs, Math.max(1, options.jobs));
+    }
+    if (failures > 0) {
+      Debug.print(Status.ERROR, failures + " of " + tasks + " jobs failed.");
+      System.exit(1);
+    }
+  }
+
+  /** Returns the tag of the tables released at the given epsilon, e.g. {@code "_eps0.5"}. */
+  private static String epsilonTag(double epsilon) {
+    return "_eps" + BigDecimal.valueOf(epsilon).stripTrailingZeros().toPlainString();
+  }
+
+  /**
+   * Runs the given jobs. With a parallelism of one the jobs run one after another on the
+   * calling thread, otherwise they are scheduled on a work-stealing pool of that many
+   * threads. A failing job is reported and does not stop the others.
+   *
+   * @param jobs The jobs by name, in the order they run sequentially.
+   * @return The number of jobs that failed.
+   */
+  private static int runJobs(Map<String, Runnable> jobs, int parallelism) {
+    if (parallelism == 1) {
+      int failures = 0;
+      for (Map.Entry<String, Runnable> job : jobs.entrySet()) {
+        if (!runJob(job.getKey(), job.getValue()))
+          failures++;
+      }
+      return failures;
+    }
+
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    try {
+      List<ForkJoinTask<Boolean>> tasks = new ArrayList<>();
+      jobs.forEach((name, job) -> tasks.add(pool.submit(() -> runJob(name, job))));
+      int failures = 0;
+      for (ForkJoinTask<Boolean> task : tasks) {
+        if (!task.join())
+          failures++;
+      }
+      return failures;
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /** Runs a single job, returning whether it succeeded. */
+  private static boolean runJob(String name, Runnable job) {
+    try {
+      job.run();
+      return true;
+    } catch (RuntimeException e) {
+      Debug.print(Status.ERROR, "Job " + name + " failed: " + e);
+      return false;
+    }
+  }
+
+  public static Options checkUsage(String[] args) {
     try {
       return parseArgs(args);
     } catch (Exception e) {
-      String usage = "Usage: ./run.bat --dp <file>";
+      String usage = "Usage: ./run.bat --dp <file> [--parallel-parse] [--snapshot] [--combined-output <file>] [--jobs <n>] [--bounding <reservoir|shuffle>] [--seed <n>] [--approximate-counts <precision>] [--incremental <state-file>] [--epsilons <e1,e2,...>] [--evaluate <trials>] [--evaluate-quantiles]";
       Debug.print(Status.ERROR, e.toString(), usage);
       System.exit(-1);
     }
     return null;
   }
 
-  private static Path parseArgs(String[] args) {
-		if (args.length != 1)
+  private static Options parseArgs(String[] args) {
+		if (args.length < 1)
 			throw new RuntimeException("Invalid argument count.");
-		else 
-			return Paths.get(args[0]).toAbsolutePath();
+
+		Options options = new Options();
+		options.path = Paths.get(args[0]).toAbsolutePath();
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].equals("--parallel-parse"))
+				options.parallelParse = true;
+			else if (args[i].equals("--snapshot"))
+				options.snapshot = true;
+			else if (args[i].equals("--combined-output") && i + 1 < args.length)
+				options.combinedOutput = Paths.get(args[++i]).toAbsolutePath();
+			else if (args[i].equals("--jobs") && i + 1 < args.length) {
+				options.jobs = Integer.parseInt(args[++i]);
+				if (options.jobs < 1)
+					throw new RuntimeException("The number of parallel jobs must be at least 1.");
+			}
+			else if (args[i].equals("--bounding") && i + 1 < args.length)
+				options.bounding = ContributionBoundingUtils.Strategy.valueOf(args[++i].toUpperCase(Locale.ROOT));
+			else if (args[i].equals("--seed") && i + 1 < args.length)
+				options.seed = Long.parseLong(args[++i]);
+			else if (args[i].equals("--approximate-counts") && i + 1 < args.length) {
+				options.sketchPrecision = Integer.parseInt(args[++i]);
+				if (options.sketchPrecision < HyperLogLog.MIN_PRECISION || options.sketchPrecision > HyperLogLog.MAX_PRECISION)
+					throw new RuntimeException("The sketch precision must be between " + HyperLogLog.MIN_PRECISION
+							+ " and " + HyperLogLog.MAX_PRECISION + ".");
+			}
+			else if (args[i].equals("--incremental") && i + 1 < args.length)
+				options.incrementalState = Paths.get(args[++i]).toAbsolutePath();
+			else if (args[i].equals("--epsilons") && i + 1 < args.length) {
+				options.epsilons = Arrays.stream(args[++i].split(",")).mapToDouble(Double::parseDouble).distinct().toArray();
+				for (double epsilon : options.epsilons) {
+					if (!(epsilon > 0) || Double.isInfinite(epsilon))
+						throw new RuntimeException("Every epsilon must be positive and finite: " + epsilon);
+				}
+			}
+			else if (args[i].equals("--evaluate") && i + 1 < args.length) {
+				options.trials = Integer.parseInt(args[++i]);
+				if (options.trials < 1)
+					throw new RuntimeException("The number of trials must be at least 1.");
+			}
+			else if (args[i].equals("--evaluate-quantiles"))
+				options.evaluateQuantiles = true;
+			else
+				throw new RuntimeException("Unknown option: " + args[i]);
+		}
+		// An incremental run only reads the appended lines, so there is no whole file to snapshot or split.
+		if (options.incrementalState != null && (options.snapshot || options.parallelParse))
+			throw new RuntimeException("--incremental cannot be combined with --snapshot or --parallel-parse.");
+		return options;
 	}
 }
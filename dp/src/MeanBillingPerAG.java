@@ -1,10 +1,8 @@
 package dp.src;
 
-import com.google.privacy.differentialprivacy.BoundedMean;
-import util.src.PatientRecord;
-
-import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -14,10 +12,11 @@ import java.util.Map;
 public class MeanBillingPerAG {
     private static final String NON_PRIVATE_OUTPUT = "dp/out/non_private_means_billing_per_AgeGroup.csv";
     private static final String PRIVATE_OUTPUT = "dp/out/private_means_billing_per_AgeGroup.csv";
+    private static final String HEADER = "Age Group,MeanBilling";
 
     // Epsilon value for the differential privacy algorithm. A smaller epsilon
     // results in stronger privacy guarantees but less accurate results.
-    private static final double LN_X = Math.log(1.1);
+    static final double LN_X = Math.log(1.1);
 
     // The maximum number of different age groups a patient can contribute to.
     private static final int MAX_PARTITION_CONTRIBUTIONS = 2;
@@ -25,49 +24,59 @@ public class MeanBillingPerAG {
     // The maximum number of records a patient can contribute to for a single age group.
     private static final int MAX_CONTRIBUTIONS_PER_PARTITION = 2;
 
-    // The plausible bounds for a single billing amount. These values are used to clamp
-    // the input data, a requirement for many differential privacy mechanisms.
-    private static final int MIN_BILLING_AMOUNT = 0;
-    private static final int MAX_BILLING_AMOUNT = 50000;
-
     private MeanBillingPerAG() { }
 
     /**
-     * Reads patient data, calculates both non-private and private mean billing amounts
-     * per age group, and writes the results to separate CSV files.
+     * Requests the aggregates this job reads.
      *
-     * @param path The path to the input CSV file containing patient records.
+     * @param engine The engine computing the aggregates of every job.
      */
-    public static void run(Path path) {
-        VisitsForAG visitsForAG = IOUtils.readAGVisits(path);
+    static void request(AggregationEngine engine) {
+        engine.request(Dimension.AGE_GROUP, Measure.BILL, Aggregate.MEAN);
+        engine.requestBounded(Dimension.AGE_GROUP, MAX_PARTITION_CONTRIBUTIONS, MAX_CONTRIBUTIONS_PER_PARTITION,
+                Measure.BILL, Aggregate.CLAMPED_VALUES);
+    }
 
-        Map<String, Double> nonPrivateMeans = getNonPrivateMeans(visitsForAG);
-        Map<String, Double> privateMeans = getPrivateMeans(visitsForAG);
+    /**
+     * Calculates both non-private and private mean billing amount per age group from the shared
+     * aggregates, and writes the results to separate CSV files.
+     *
+     * @param aggregates The aggregates requested by {@link #request(AggregationEngine)}.
+     * @param sink Receives the result tables.
+     */
+    public static void run(AggregationEngine.Aggregates aggregates, ResultSink sink) {
+        Map<String, Double> nonPrivateMeans = getNonPrivateMeans(aggregates.of(Dimension.AGE_GROUP));
 
         // Write the calculated means to their respective output files.
-        IOUtils.writeMeansBillingPerAG(nonPrivateMeans, NON_PRIVATE_OUTPUT);
-        IOUtils.writeMeansBillingPerAG(privateMeans, PRIVATE_OUTPUT);
+        sink.write(NON_PRIVATE_OUTPUT, HEADER, nonPrivateMeans, ResultSink.ValueType.DECIMAL);
+        release(aggregates, sink, LN_X);
+    }
+
+    /**
+     * Calculates anonymized mean billing amounts per age group
+     * at the given privacy budget, and writes them to the private output file.
+     *
+     * @param aggregates The aggregates requested by {@link #request(AggregationEngine)}.
+     * @param sink Receives the result table.
+     * @param epsilon The privacy budget spent on each partition.
+     */
+    static void release(AggregationEngine.Aggregates aggregates, ResultSink sink, double epsilon) {
+        Map<String, Double> privateMeans = getPrivateMeans(aggregates.bounded(
+                Dimension.AGE_GROUP, MAX_PARTITION_CONTRIBUTIONS, MAX_CONTRIBUTIONS_PER_PARTITION), epsilon);
+        sink.write(PRIVATE_OUTPUT, HEADER, privateMeans, ResultSink.ValueType.DECIMAL);
     }
 
     /**
      * Calculates the exact (non-private) mean billing amount for each age group.
      *
-     * @param visits The collection of patient visits, grouped by age group.
+     * @param visits The aggregates over all patient visits, per age group.
      * @return A map where each key is an age group and the value is the non-private mean billing amount.
      */
-    static Map<String, Double> getNonPrivateMeans(VisitsForAG visits) {
+    static Map<String, Double> getNonPrivateMeans(PartitionAggregates<String> visits) {
         Map<String, Double> meansPerAG = new HashMap<>();
-        for (String AG : visits.getAGWithData()) {
-            double sum = 0;
-            long count = 0;
-            for (PatientRecord r : visits.getVisitsForAG(AG)) {
-                sum += r.bill;
-                count++;
-            }
-            // Avoid division by zero if an age group has no records.
-            if (count > 0) {
-                meansPerAG.put(AG, sum / count);
-            }
+        // Only partitions with at least one record are listed, so the mean is always defined.
+        for (String AG : visits.keysWithData()) {
+            meansPerAG.put(AG, visits.mean(AG, Measure.BILL));
         }
         return meansPerAG;
     }
@@ -75,34 +84,29 @@ public class MeanBillingPerAG {
     /**
      * Calculates the differentially private mean billing amount for each age group.
      *
-     * @param visits The original collection of patient visits.
+     * @param boundedVisits The aggregates over the patient visits left after contribution bounding,
+     *     which limits the influence of any single patient.
      * @return A map where each key is an age group and the value is the private mean billing amount.
      */
-    private static Map<String, Double> getPrivateMeans(VisitsForAG visits) {
-        Map<String, Double> privateMeansPerAG = new HashMap<>();
-
-        // Pre-process the data by applying contribution bounding.
-        VisitsForAG boundedVisits =
-                ContributionBoundingUtils.boundContributedAG(visits, MAX_PARTITION_CONTRIBUTIONS);
-
-        for (String AG : boundedVisits.getAGWithData()) {
-            // Initialize the BoundedMean utility with our privacy parameters.
-            BoundedMean dpMean =
-                    BoundedMean.builder()
-                            .epsilon(LN_X)
-                            .maxPartitionsContributed(MAX_PARTITION_CONTRIBUTIONS)
-                            .maxContributionsPerPartition(MAX_CONTRIBUTIONS_PER_PARTITION)
-                            .lower(MIN_BILLING_AMOUNT)
-                            .upper(MAX_BILLING_AMOUNT)
-                            .build();
-
-            // Add each billing amount to the BoundedMean instance.
-            for (PatientRecord r : boundedVisits.getVisitsForAG(AG)) {
-                dpMean.addEntry(r.bill);
+    private static Map<String, Double> getPrivateMeans(PartitionAggregates<String> boundedVisits, double epsilon) {
+        List<String> keys = new ArrayList<>(boundedVisits.keysWithData());
+        long[] counts = new long[keys.size()];
+        double[] sums = new double[keys.size()];
+        for (int i = 0; i < counts.length; i++) {
+            double[] values = boundedVisits.clampedValues(keys.get(i), Measure.BILL);
+            counts[i] = values.length;
+            for (double value : values) {
+                sums[i] += value;
             }
+        }
 
-            // Compute the differentially private result and store it.
-            privateMeansPerAG.put(AG, dpMean.computeResult());
+        // Release the mean of every age group with our privacy parameters in one call.
+        double[] privateMeans = new BatchedRelease(epsilon, MAX_PARTITION_CONTRIBUTIONS).means(counts, sums,
+                Measure.BILL.lower, Measure.BILL.upper, MAX_CONTRIBUTIONS_PER_PARTITION);
+
+        Map<String, Double> privateMeansPerAG = new HashMap<>();
+        for (int i = 0; i < counts.length; i++) {
+            privateMeansPerAG.put(keys.get(i), privateMeans[i]);
         }
 
         return privateMeansPerAG;
@@ -1,10 +1,8 @@
 package dp.src;
 
-import com.google.privacy.differentialprivacy.BoundedMean;
-import util.src.PatientRecord;
-
-import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -14,10 +12,11 @@ import java.util.Map;
 public class MeanBillingPerCT {
     private static final String NON_PRIVATE_OUTPUT = "dp/out/non_private_means_billing_per_condition.csv";
     private static final String PRIVATE_OUTPUT = "dp/out/private_means_billing_per_condition.csv";
+    private static final String HEADER = "Condition,MeanBilling";
 
     // Epsilon value for the differential privacy algorithm. A smaller epsilon
     // results in stronger privacy guarantees but less accurate results.
-    private static final double LN_X = Math.log(1.03);
+    static final double LN_X = Math.log(1.03);
 
     // The maximum number of different medical conditions a patient can contribute to.
     private static final int MAX_PARTITION_CONTRIBUTIONS = 2;
@@ -25,49 +24,59 @@ public class MeanBillingPerCT {
     // The maximum number of records a patient can contribute to for a single medical condition.
     private static final int MAX_CONTRIBUTIONS_PER_PARTITION = 2;
 
-    // The plausible bounds for a single billing amount. These values are used to clamp
-    // the input data, a requirement for many differential privacy mechanisms.
-    private static final int MIN_BILLING_AMOUNT = 0;
-    private static final int MAX_BILLING_AMOUNT = 50000;
-
     private MeanBillingPerCT() { }
 
     /**
-     * Reads patient data, calculates both non-private and private mean billing amounts
-     * per medical condition, and writes the results to separate CSV files.
+     * Requests the aggregates this job reads.
      *
-     * @param path The path to the input CSV file containing patient records.
+     * @param engine The engine computing the aggregates of every job.
      */
-    public static void run(Path path) {
-        VisitsForCT visitsForCT = IOUtils.readCTVisits(path);
+    static void request(AggregationEngine engine) {
+        engine.request(Dimension.CONDITION, Measure.BILL, Aggregate.MEAN);
+        engine.requestBounded(Dimension.CONDITION, MAX_PARTITION_CONTRIBUTIONS, MAX_CONTRIBUTIONS_PER_PARTITION,
+                Measure.BILL, Aggregate.CLAMPED_VALUES);
+    }
 
-        Map<String, Double> nonPrivateMeans = getNonPrivateMeans(visitsForCT);
-        Map<String, Double> privateMeans = getPrivateMeans(visitsForCT);
+    /**
+     * Calculates both non-private and private mean billing amount per medical condition from the shared
+     * aggregates, and writes the results to separate CSV files.
+     *
+     * @param aggregates The aggregates requested by {@link #request(AggregationEngine)}.
+     * @param sink Receives the result tables.
+     */
+    public static void run(AggregationEngine.Aggregates aggregates, ResultSink sink) {
+        Map<String, Double> nonPrivateMeans = getNonPrivateMeans(aggregates.of(Dimension.CONDITION));
 
         // Write the calculated means to their respective output files.
-        IOUtils.writeMeansBillingPerCT(nonPrivateMeans, NON_PRIVATE_OUTPUT);
-        IOUtils.writeMeansBillingPerCT(privateMeans, PRIVATE_OUTPUT);
+        sink.write(NON_PRIVATE_OUTPUT, HEADER, nonPrivateMeans, ResultSink.ValueType.DECIMAL);
+        release(aggregates, sink, LN_X);
+    }
+
+    /**
+     * Calculates anonymized mean billing amounts per condition type
+     * at the given privacy budget, and writes them to the private output file.
+     *
+     * @param aggregates The aggregates requested by {@link #request(AggregationEngine)}.
+     * @param sink Receives the result table.
+     * @param epsilon The privacy budget spent on each partition.
+     */
+    static void release(AggregationEngine.Aggregates aggregates, ResultSink sink, double epsilon) {
+        Map<String, Double> privateMeans = getPrivateMeans(aggregates.bounded(
+                Dimension.CONDITION, MAX_PARTITION_CONTRIBUTIONS, MAX_CONTRIBUTIONS_PER_PARTITION), epsilon);
+        sink.write(PRIVATE_OUTPUT, HEADER, privateMeans, ResultSink.ValueType.DECIMAL);
     }
 
     /**
      * Calculates the exact (non-private) mean billing amount for each medical condition.
      *
-     * @param visits The collection of patient visits, grouped by condition.
+     * @param visits The aggregates over all patient visits, per medical condition.
      * @return A map where each key is a medical condition and the value is the non-private mean billing amount.
      */
-    static Map<String, Double> getNonPrivateMeans(VisitsForCT visits) {
+    static Map<String, Double> getNonPrivateMeans(PartitionAggregates<String> visits) {
         Map<String, Double> meansPerCT = new HashMap<>();
-        for (String CT : visits.getCTWithData()) {
-            double sum = 0;
-            long count = 0;
-            for (PatientRecord r : visits.getVisitsForCT(CT)) {
-                sum += r.bill;
-                count++;
-            }
-            // Avoid division by zero if a condition has no records.
-            if (count > 0) {
-                meansPerCT.put(CT, sum / count);
-            }
+        // Only partitions with at least one record are listed, so the mean is always defined.
+        for (String CT : visits.keysWithData()) {
+            meansPerCT.put(CT, visits.mean(CT, Measure.BILL));
         }
         return meansPerCT;
     }
@@ -75,34 +84,29 @@ public class MeanBillingPerCT {
     /**
      * Calculates the differentially private mean billing amount for each medical condition.
      *
-     * @param visits The original collection of patient visits.
+     * @param boundedVisits The aggregates over the patient visits left after contribution bounding,
+     *     which limits the influence of any single patient.
      * @return A map where each key is a medical condition and the value is the private mean billing amount.
      */
-    private static Map<String, Double> getPrivateMeans(VisitsForCT visits) {
-        Map<String, Double> privateMeansPerCT = new HashMap<>();
-
-        // Pre-process the data by applying contribution bounding.
-        VisitsForCT boundedVisits =
-                ContributionBoundingUtils.boundContributedCT(visits, MAX_PARTITION_CONTRIBUTIONS);
-
-        for (String CT : boundedVisits.getCTWithData()) {
-            // Initialize the BoundedMean utility with our privacy parameters.
-            BoundedMean dpMean =
-                    BoundedMean.builder()
-                            .epsilon(LN_X)
-                            .maxPartitionsContributed(MAX_PARTITION_CONTRIBUTIONS)
-                            .maxContributionsPerPartition(MAX_CONTRIBUTIONS_PER_PARTITION)
-                            .lower(MIN_BILLING_AMOUNT)
-                            .upper(MAX_BILLING_AMOUNT)
-                            .build();
-
-            // Add each billing amount to the BoundedMean instance.
-            for (PatientRecord r : boundedVisits.getVisitsForCT(CT)) {
-                dpMean.addEntry(r.bill);
+    private static Map<String, Double> getPrivateMeans(PartitionAggregates<String> boundedVisits, double epsilon) {
+        List<String> keys = new ArrayList<>(boundedVisits.keysWithData());
+        long[] counts = new long[keys.size()];
+        double[] sums = new double[keys.size()];
+        for (int i = 0; i < counts.length; i++) {
+            double[] values = boundedVisits.clampedValues(keys.get(i), Measure.BILL);
+            counts[i] = values.length;
+            for (double value : values) {
+                sums[i] += value;
             }
+        }
 
-            // Compute the differentially private result and store it.
-            privateMeansPerCT.put(CT, dpMean.computeResult());
+        // Release the mean of every condition with our privacy parameters in one call.
+        double[] privateMeans = new BatchedRelease(epsilon, MAX_PARTITION_CONTRIBUTIONS).means(counts, sums,
+                Measure.BILL.lower, Measure.BILL.upper, MAX_CONTRIBUTIONS_PER_PARTITION);
+
+        Map<String, Double> privateMeansPerCT = new HashMap<>();
+        for (int i = 0; i < counts.length; i++) {
+            privateMeansPerCT.put(keys.get(i), privateMeans[i]);
         }
 
         return privateMeansPerCT;
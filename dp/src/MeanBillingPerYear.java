@@ -1,11 +1,9 @@
 package dp.src;
 
-import com.google.privacy.differentialprivacy.BoundedMean;
-import util.src.PatientRecord;
-
-import java.nio.file.Path;
 import java.time.Year;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -15,10 +13,11 @@ import java.util.Map;
 public class MeanBillingPerYear {
     private static final String NON_PRIVATE_OUTPUT = "dp/out/non_private_means_billing_per_year.csv";
     private static final String PRIVATE_OUTPUT = "dp/out/private_means_billing_per_year.csv";
+    private static final String HEADER = "Year,MeanBilling";
 
     // Epsilon value for the differential privacy algorithm. A smaller epsilon
     // results in stronger privacy guarantees but less accurate results.
-    private static final double LN_X = Math.log(1.03);
+    static final double LN_X = Math.log(1.03);
 
     // The maximum number of different years a patient can contribute to.
     private static final int MAX_PARTITION_CONTRIBUTIONS = 2;
@@ -26,49 +25,59 @@ public class MeanBillingPerYear {
     // The maximum number of records a patient can contribute to for a single year.
     private static final int MAX_CONTRIBUTIONS_PER_PARTITION = 2;
 
-    // The plausible bounds for a single billing amount. These values are used to clamp
-    // the input data, a requirement for many differential privacy mechanisms.
-    private static final int MIN_BILLING_AMOUNT = 0;
-    private static final int MAX_BILLING_AMOUNT = 50000;
-
     private MeanBillingPerYear() { }
 
     /**
-     * Reads patient data, calculates both non-private and private mean billing amounts
-     * per year, and writes the results to separate CSV files.
+     * Requests the aggregates this job reads.
      *
-     * @param path The path to the input CSV file containing patient records.
+     * @param engine The engine computing the aggregates of every job.
      */
-    public static void run(Path path) {
-        VisitsForYear visitsForYear = IOUtils.readYearlyVisits(path);
+    static void request(AggregationEngine engine) {
+        engine.request(Dimension.YEAR, Measure.BILL, Aggregate.MEAN);
+        engine.requestBounded(Dimension.YEAR, MAX_PARTITION_CONTRIBUTIONS, MAX_CONTRIBUTIONS_PER_PARTITION,
+                Measure.BILL, Aggregate.CLAMPED_VALUES);
+    }
 
-        Map<Year, Double> nonPrivateMeans = getNonPrivateMeans(visitsForYear);
-        Map<Year, Double> privateMeans = getPrivateMeans(visitsForYear);
+    /**
+     * Calculates both non-private and private mean billing amount per year from the shared
+     * aggregates, and writes the results to separate CSV files.
+     *
+     * @param aggregates The aggregates requested by {@link #request(AggregationEngine)}.
+     * @param sink Receives the result tables.
+     */
+    public static void run(AggregationEngine.Aggregates aggregates, ResultSink sink) {
+        Map<Year, Double> nonPrivateMeans = getNonPrivateMeans(aggregates.of(Dimension.YEAR));
 
         // Write the calculated means to their respective output files.
-        IOUtils.writeMeansBillingPerYear(nonPrivateMeans, NON_PRIVATE_OUTPUT);
-        IOUtils.writeMeansBillingPerYear(privateMeans, PRIVATE_OUTPUT);
+        sink.write(NON_PRIVATE_OUTPUT, HEADER, nonPrivateMeans, ResultSink.ValueType.DECIMAL);
+        release(aggregates, sink, LN_X);
+    }
+
+    /**
+     * Calculates anonymized mean billing amounts per year
+     * at the given privacy budget, and writes them to the private output file.
+     *
+     * @param aggregates The aggregates requested by {@link #request(AggregationEngine)}.
+     * @param sink Receives the result table.
+     * @param epsilon The privacy budget spent on each partition.
+     */
+    static void release(AggregationEngine.Aggregates aggregates, ResultSink sink, double epsilon) {
+        Map<Year, Double> privateMeans = getPrivateMeans(aggregates.bounded(
+                Dimension.YEAR, MAX_PARTITION_CONTRIBUTIONS, MAX_CONTRIBUTIONS_PER_PARTITION), epsilon);
+        sink.write(PRIVATE_OUTPUT, HEADER, privateMeans, ResultSink.ValueType.DECIMAL);
     }
 
     /**
      * Calculates the exact (non-private) mean billing amount for each year.
      *
-     * @param visits The collection of patient visits, grouped by year.
+     * @param visits The aggregates over all patient visits, per year.
      * @return A map where each key is a year and the value is the non-private mean billing amount.
      */
-    static Map<Year, Double> getNonPrivateMeans(VisitsForYear visits) {
+    static Map<Year, Double> getNonPrivateMeans(PartitionAggregates<Year> visits) {
         Map<Year, Double> meansPerYear = new HashMap<>();
-        for (Year y : visits.getYearsWithData()) {
-            double sum = 0;
-            long count = 0;
-            for (PatientRecord r : visits.getVisitsForYear(y)) {
-                sum += r.bill;
-                count++;
-            }
-            // Avoid division by zero if a year has no records.
-            if (count > 0) {
-                meansPerYear.put(y, sum / count);
-            }
+        // Only partitions with at least one record are listed, so the mean is always defined.
+        for (Year y : visits.keysWithData()) {
+            meansPerYear.put(y, visits.mean(y, Measure.BILL));
         }
         return meansPerYear;
     }
@@ -76,34 +85,29 @@ public class MeanBillingPerYear {
     /**
      * Calculates the differentially private mean billing amount for each year.
      *
-     * @param visits The original collection of patient visits.
+     * @param boundedVisits The aggregates over the patient visits left after contribution bounding,
+     *     which limits the influence of any single patient.
      * @return A map where each key is a year and the value is the private mean billing amount.
      */
-    private static Map<Year, Double> getPrivateMeans(VisitsForYear visits) {
-        Map<Year, Double> privateMeansPerYear = new HashMap<>();
-
-        // Pre-process the data by applying contribution bounding to limit the influence of any single user.
-        VisitsForYear boundedVisits =
-                ContributionBoundingUtils.boundContributedYears(visits, MAX_PARTITION_CONTRIBUTIONS);
-
-        for (Year y : boundedVisits.getYearsWithData()) {
-            // Initialize the BoundedMean utility with our privacy parameters.
-            BoundedMean dpMean =
-                    BoundedMean.builder()
-                            .epsilon(LN_X)
-                            .maxPartitionsContributed(MAX_PARTITION_CONTRIBUTIONS)
-                            .maxContributionsPerPartition(MAX_CONTRIBUTIONS_PER_PARTITION)
-                            .lower(MIN_BILLING_AMOUNT)
-                            .upper(MAX_BILLING_AMOUNT)
-                            .build();
-
-            // Add each billing amount to the BoundedMean instance.
-            for (PatientRecord r : boundedVisits.getVisitsForYear(y)) {
-                dpMean.addEntry(r.bill);
+    private static Map<Year, Double> getPrivateMeans(PartitionAggregates<Year> boundedVisits, double epsilon) {
+        List<Year> keys = new ArrayList<>(boundedVisits.keysWithData());
+        long[] counts = new long[keys.size()];
+        double[] sums = new double[keys.size()];
+        for (int i = 0; i < counts.length; i++) {
+            double[] values = boundedVisits.clampedValues(keys.get(i), Measure.BILL);
+            counts[i] = values.length;
+            for (double value : values) {
+                sums[i] += value;
             }
+        }
 
-            // Compute the differentially private result and store it.
-            privateMeansPerYear.put(y, dpMean.computeResult());
+        // Release the mean of every year with our privacy parameters in one call.
+        double[] privateMeans = new BatchedRelease(epsilon, MAX_PARTITION_CONTRIBUTIONS).means(counts, sums,
+                Measure.BILL.lower, Measure.BILL.upper, MAX_CONTRIBUTIONS_PER_PARTITION);
+
+        Map<Year, Double> privateMeansPerYear = new HashMap<>();
+        for (int i = 0; i < counts.length; i++) {
+            privateMeansPerYear.put(keys.get(i), privateMeans[i]);
         }
 
         return privateMeansPerYear;
@@ -0,0 +1,53 @@
+package dp.src;
+
+import util.src.PatientTable;
+
+/**
+ * A numeric quantity measured on every patient visit, together with the range
+ * its values are clamped to before they enter a differentially private
+ * aggregation. Clamping bounds the contribution of a single visit, which the
+ * noise of the private aggregations is calibrated to.
+ */
+enum Measure {
+  /** The billing amount of a visit. */
+  BILL(0, 50000, false) {
+    @Override
+    double of(PatientTable table, int row) {
+      return table.bill(row);
+    }
+  },
+
+  /** The age of the patient at the time of the visit. */
+  AGE(10, 90, true) {
+    @Override
+    double of(PatientTable table, int row) {
+      return table.age(row);
+    }
+  };
+
+  /** Smallest value expected for a single visit. */
+  final double lower;
+  /** Largest value expected for a single visit. */
+  final double upper;
+  /** Whether every value is a whole number, so that its distribution can be counted exactly. */
+  final boolean integral;
+
+  Measure(double lower, double upper, boolean integral) {
+    this.lower = lower;
+    this.upper = upper;
+    this.integral = integral;
+  }
+
+  /** Returns the raw value of the measure for the visit in the given row of the table. */
+  abstract double of(PatientTable table, int row);
+
+  /** Returns the value of the measure for the visit in the given row of the table, clamped to [lower, upper]. */
+  double clamped(PatientTable table, int row) {
+    return clamp(of(table, row));
+  }
+
+  /** Returns the given raw value of the measure, clamped to [lower, upper]. */
+  double clamp(double value) {
+    return Math.max(lower, Math.min(upper, value));
+  }
+}
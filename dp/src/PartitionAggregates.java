@@ -0,0 +1,526 @@
+package dp.src;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import util.src.IntHistogram;
+import util.src.PatientTable;
+
+/**
+ * The per-partition accumulators of one set of partitions of a dimension, filled by
+ * the {@link AggregationEngine} in its scan over the visits. Accumulators are kept for
+ * a range of partition codes. Only the accumulators backing the requested aggregates
+ * are allocated; reading any other aggregate fails.
+ *
+ * With a per-partition limit, or when {@link Aggregate#PATIENT_SUMS} are requested,
+ * the visits of each partition first pass a pre-aggregation stage that collapses them
+ * into one entry per patient, see {@link Contributors}. Visits of a patient beyond the
+ * limit are turned away there and reach none of the accumulators.
+ *
+ * Distinct patients are counted exactly with an {@link IdBitmap} per partition, or
+ * estimated with a {@link HyperLogLog} sketch per partition when a sketch precision
+ * is given.
+ *
+ * Quantiles of a measure are answered from a summary of its values per partition, filled
+ * in O(1) per visit: an {@link IntHistogram} that counts every value of an integral
+ * measure, so that its quantiles are exact, or a {@link QuantileSketch} otherwise.
+ *
+ * Counts, sums, distinct patients and quantile summaries can be merged from other
+ * aggregates, and written to and read back from a stream, so that incremental runs carry
+ * them over.
+ *
+ * @param <K> The type of the partition keys.
+ */
+class PartitionAggregates<K> {
+  private static final Measure[] MEASURES = Measure.values();
+
+  private final Dimension<K> dimension;
+  private final int minCode;
+  private final int span;
+
+  /** Number of visits aggregated per partition; partitions without any have no data. */
+  private final long[] visits;
+  private final boolean counted;
+  private final Map<Measure, double[]> sums = new EnumMap<>(Measure.class);
+  private final IdBitmap[] distinctIds;
+  private final int sketchPrecision;
+  private final HyperLogLog[] distinctIdSketches;
+  /** The counts of the values of the integral measures whose quantiles are requested, per partition. */
+  private final Map<Measure, IntHistogram[]> histograms = new EnumMap<>(Measure.class);
+  /** The sketches of the values of the other measures whose quantiles are requested, per partition. */
+  private final Map<Measure, QuantileSketch[]> quantileSketches = new EnumMap<>(Measure.class);
+  private final Map<Measure, double[][]> clampedValues = new EnumMap<>(Measure.class);
+  /** Number of clamped values stored so far per partition; every measure advances in step. */
+  private final int[] filled;
+  /** The measures summed per patient, by their index in the entries of {@link #contributors}. */
+  private final Measure[] patientSums;
+  private final int maxContributionsPerPartition;
+  private final Contributors[] contributors;
+
+  /** The raw value of every measure of the record being added, by ordinal. */
+  private final double[] recordValues = new double[MEASURES.length];
+
+  /**
+   * Allocates the accumulators for the given aggregations over a set of partitions. The
+   * clamped values of every partition are sized for all of its visits up front.
+   *
+   * @param partitions The visits to aggregate.
+   * @param aggregations The aggregations to compute for each partition.
+   * @param maxContributionsPerPartition The maximum number of visits of a patient aggregated per
+   *     partition, or 0 for no limit.
+   * @param sketchPrecision The precision of the sketches estimating the distinct patients, or 0
+   *     to count them exactly.
+   */
+  PartitionAggregates(Partitions<K> partitions, Set<AggregationEngine.Aggregation> aggregations,
+      int maxContributionsPerPartition, int sketchPrecision) {
+    this(partitions.dimension(), partitions.minCode(), partitions.codeSpan(), aggregations,
+        maxContributionsPerPartition, sketchPrecision);
+    for (double[][] perPartition : clampedValues.values()) {
+      for (int slot = 0; slot < span; slot++) {
+        perPartition[slot] = new double[partitions.size(minCode + slot)];
+      }
+    }
+  }
+
+  /**
+   * Allocates the accumulators for the given aggregations over a range of partition codes.
+   * The clamped values of every partition grow as visits are added.
+   *
+   * @param dimension The dimension the codes belong to.
+   * @param minCode The smallest partition code.
+   * @param span The number of partition codes from {@code minCode} on.
+   * @param aggregations The aggregations to compute for each partition.
+   * @param maxContributionsPerPartition The maximum number of visits of a patient aggregated per
+   *     partition, or 0 for no limit.
+   * @param sketchPrecision The precision of the sketches estimating the distinct patients, or 0
+   *     to count them exactly.
+   */
+  PartitionAggregates(Dimension<K> dimension, int minCode, int span, Set<AggregationEngine.Aggregation> aggregations,
+      int maxContributionsPerPartition, int sketchPrecision) {
+    this.dimension = dimension;
+    this.minCode = minCode;
+    this.span = span;
+    this.sketchPrecision = sketchPrecision;
+    this.maxContributionsPerPartition = maxContributionsPerPartition;
+
+    boolean count = false;
+    boolean distinct = false;
+    Set<Measure> summedPerPatient = EnumSet.noneOf(Measure.class);
+    for (AggregationEngine.Aggregation aggregation : aggregations) {
+      Measure measure = aggregation.measure();
+      switch (aggregation.aggregate()) {
+        case COUNT:
+          count = true;
+          break;
+        case MEAN:
+          count = true;
+          sums.computeIfAbsent(measure, m -> new double[span]);
+          break;
+        case SUM:
+          sums.computeIfAbsent(measure, m -> new double[span]);
+          break;
+        case DISTINCT_IDS:
+          distinct = true;
+          break;
+        case CLAMPED_VALUES:
+          double[][] perPartition = new double[span][];
+          Arrays.fill(perPartition, new double[0]);
+          clampedValues.put(measure, perPartition);
+          break;
+        case PATIENT_SUMS:
+          summedPerPatient.add(measure);
+          break;
+        case QUANTILES:
+          if (measure.integral) {
+            histograms.computeIfAbsent(measure, m -> new IntHistogram[span]);
+          } else {
+            quantileSketches.computeIfAbsent(measure, m -> new QuantileSketch[span]);
+          }
+          break;
+      }
+    }
+
+    visits = new long[span];
+    counted = count;
+    distinctIds = distinct && sketchPrecision == 0 ? new IdBitmap[span] : null;
+    distinctIdSketches = distinct && sketchPrecision != 0 ? new HyperLogLog[span] : null;
+    filled = clampedValues.isEmpty() ? null : new int[span];
+    patientSums = summedPerPatient.toArray(new Measure[0]);
+    contributors = maxContributionsPerPartition != 0 || patientSums.length > 0 ? new Contributors[span] : null;
+  }
+
+  /** Returns the smallest partition code these aggregates have accumulators for. */
+  int minCode() {
+    return minCode;
+  }
+
+  /** Returns the number of partition codes from {@link #minCode()} on these aggregates have accumulators for. */
+  int codeSpan() {
+    return span;
+  }
+
+  /** Adds the visit in the given row of the table to the accumulators of the partition with the given code. */
+  void add(int code, PatientTable table, int row) {
+    for (Measure measure : MEASURES) {
+      recordValues[measure.ordinal()] = measure.of(table, row);
+    }
+    add(code, table.id(row), recordValues);
+  }
+
+  /**
+   * Adds a visit to the accumulators of the partition with the given code.
+   *
+   * @param code The partition code, within the range of these aggregates.
+   * @param id The id of the visiting patient.
+   * @param values The raw value of every measure for the visit, indexed by {@link Measure#ordinal()}.
+   */
+  void add(int code, int id, double[] values) {
+    int slot = code - minCode;
+    if (contributors != null) {
+      if (contributors[slot] == null) {
+        contributors[slot] = new Contributors(maxContributionsPerPartition, patientSums.length);
+      }
+      int entry = contributors[slot].admit(id);
+      if (entry < 0) {
+        return;
+      }
+      for (int measure = 0; measure < patientSums.length; measure++) {
+        Measure summed = patientSums[measure];
+        contributors[slot].add(entry, measure, summed.clamp(values[summed.ordinal()]));
+      }
+    }
+    visits[slot]++;
+    for (Map.Entry<Measure, double[]> sum : sums.entrySet()) {
+      sum.getValue()[slot] += values[sum.getKey().ordinal()];
+    }
+    if (distinctIds != null) {
+      if (distinctIds[slot] == null) {
+        distinctIds[slot] = new IdBitmap();
+      }
+      distinctIds[slot].add(id);
+    }
+    if (distinctIdSketches != null) {
+      if (distinctIdSketches[slot] == null) {
+        distinctIdSketches[slot] = new HyperLogLog(sketchPrecision);
+      }
+      distinctIdSketches[slot].add(id);
+    }
+    for (Map.Entry<Measure, IntHistogram[]> histogram : histograms.entrySet()) {
+      histogram(histogram.getValue(), slot).add((int) values[histogram.getKey().ordinal()]);
+    }
+    for (Map.Entry<Measure, QuantileSketch[]> sketch : quantileSketches.entrySet()) {
+      sketch(sketch.getValue(), slot).add(values[sketch.getKey().ordinal()]);
+    }
+    if (filled != null) {
+      int position = filled[slot]++;
+      for (Map.Entry<Measure, double[][]> clamped : clampedValues.entrySet()) {
+        double[][] perPartition = clamped.getValue();
+        if (position == perPartition[slot].length) {
+          perPartition[slot] = Arrays.copyOf(perPartition[slot], Math.max(4, position * 2));
+        }
+        perPartition[slot][position] = clamped.getKey().clamp(values[clamped.getKey().ordinal()]);
+      }
+    }
+  }
+
+  /**
+   * Adds the counts, sums and distinct patients of other aggregates of the same aggregations
+   * to these. Clamped values and per-patient sums cannot be merged, as the per-partition limit
+   * would have to hold across both.
+   *
+   * @param other Aggregates whose partitions with data all lie within the code range of these.
+   * @throws IllegalStateException if these aggregates hold clamped values or per-patient sums.
+   * @throws IllegalArgumentException if a partition of the other aggregates is out of range.
+   */
+  void mergeFrom(PartitionAggregates<K> other) {
+    requireMergeable("merged");
+    for (int otherSlot = 0; otherSlot < other.span; otherSlot++) {
+      if (other.visits[otherSlot] == 0) {
+        continue;
+      }
+      int code = other.minCode + otherSlot;
+      int slot = code - minCode;
+      if (slot < 0 || slot >= span) {
+        throw new IllegalArgumentException("Partition " + dimension.name(code) + " is out of range");
+      }
+      visits[slot] += other.visits[otherSlot];
+      for (Map.Entry<Measure, double[]> sum : sums.entrySet()) {
+        sum.getValue()[slot] += other.sums.get(sum.getKey())[otherSlot];
+      }
+      if (distinctIds != null && other.distinctIds[otherSlot] != null) {
+        if (distinctIds[slot] == null) {
+          distinctIds[slot] = new IdBitmap();
+        }
+        distinctIds[slot].or(other.distinctIds[otherSlot]);
+      }
+      if (distinctIdSketches != null && other.distinctIdSketches[otherSlot] != null) {
+        if (distinctIdSketches[slot] == null) {
+          distinctIdSketches[slot] = new HyperLogLog(sketchPrecision);
+        }
+        distinctIdSketches[slot].merge(other.distinctIdSketches[otherSlot]);
+      }
+      for (Map.Entry<Measure, IntHistogram[]> histogram : histograms.entrySet()) {
+        IntHistogram otherHistogram = other.histograms.get(histogram.getKey())[otherSlot];
+        if (otherHistogram != null) {
+          histogram(histogram.getValue(), slot).merge(otherHistogram);
+        }
+      }
+      for (Map.Entry<Measure, QuantileSketch[]> sketch : quantileSketches.entrySet()) {
+        QuantileSketch otherSketch = other.quantileSketches.get(sketch.getKey())[otherSlot];
+        if (otherSketch != null) {
+          sketch(sketch.getValue(), slot).merge(otherSketch);
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes the accumulators of every partition with data. Partitions are identified by
+   * their {@link Dimension#name(int) names}, as codes are only stable within a run.
+   *
+   * Layout: the number of partitions {@code n}, their {@code n} names, then per partition
+   * its visits, its sum of each summed measure in measure order, its {@link IdBitmap}
+   * or {@link HyperLogLog} if distinct patients are counted, and the {@link IntHistogram}
+   * and then the {@link QuantileSketch} of each measure whose quantiles are requested, in
+   * measure order.
+   *
+   * @throws IllegalStateException if these aggregates hold clamped values or per-patient sums.
+   * @throws IOException if the output cannot be written.
+   */
+  void writeTo(DataOutputStream out) throws IOException {
+    requireMergeable("written");
+    int partitions = 0;
+    for (long count : visits) {
+      partitions += count == 0 ? 0 : 1;
+    }
+    out.writeInt(partitions);
+    for (int slot = 0; slot < span; slot++) {
+      if (visits[slot] != 0) {
+        out.writeUTF(dimension.name(minCode + slot));
+      }
+    }
+    for (int slot = 0; slot < span; slot++) {
+      if (visits[slot] == 0) {
+        continue;
+      }
+      out.writeLong(visits[slot]);
+      for (double[] sum : sums.values()) {
+        out.writeDouble(sum[slot]);
+      }
+      if (distinctIds != null) {
+        distinctIds[slot].writeTo(out);
+      }
+      if (distinctIdSketches != null) {
+        distinctIdSketches[slot].writeTo(out);
+      }
+      for (IntHistogram[] histogram : histograms.values()) {
+        histogram(histogram, slot).writeTo(out);
+      }
+      for (QuantileSketch[] sketch : quantileSketches.values()) {
+        sketch(sketch, slot).writeTo(out);
+      }
+    }
+  }
+
+  /**
+   * Reads aggregates written by {@link #writeTo(DataOutputStream)} from aggregates of the same
+   * aggregations and sketch precision.
+   *
+   * @throws IOException if the input cannot be read.
+   */
+  static <K> PartitionAggregates<K> readFrom(DataInputStream in, Dimension<K> dimension,
+      Set<AggregationEngine.Aggregation> aggregations, int sketchPrecision) throws IOException {
+    int partitions = in.readInt();
+    int[] codes = new int[partitions];
+    int min = 0;
+    int max = -1;
+    for (int i = 0; i < partitions; i++) {
+      codes[i] = dimension.codeOfName(in.readUTF());
+      min = i == 0 ? codes[i] : Math.min(min, codes[i]);
+      max = i == 0 ? codes[i] : Math.max(max, codes[i]);
+    }
+
+    PartitionAggregates<K> aggregates =
+        new PartitionAggregates<>(dimension, min, max - min + 1, aggregations, 0, sketchPrecision);
+    for (int code : codes) {
+      int slot = code - min;
+      aggregates.visits[slot] = in.readLong();
+      for (double[] sum : aggregates.sums.values()) {
+        sum[slot] = in.readDouble();
+      }
+      if (aggregates.distinctIds != null) {
+        aggregates.distinctIds[slot] = IdBitmap.readFrom(in);
+      }
+      if (aggregates.distinctIdSketches != null) {
+        aggregates.distinctIdSketches[slot] = HyperLogLog.readFrom(in);
+      }
+      for (IntHistogram[] histogram : aggregates.histograms.values()) {
+        histogram[slot] = IntHistogram.readFrom(in);
+      }
+      for (QuantileSketch[] sketch : aggregates.quantileSketches.values()) {
+        sketch[slot] = QuantileSketch.readFrom(in);
+      }
+    }
+    return aggregates;
+  }
+
+  /**
+   * Returns the set of all partition keys that have at least one visit aggregated,
+   * in order of their partition codes.
+   */
+  Set<K> keysWithData() {
+    Set<K> withData = new LinkedHashSet<>();
+    for (int slot = 0; slot < span; slot++) {
+      if (visits[slot] != 0) {
+        withData.add(dimension.key(minCode + slot));
+      }
+    }
+    return withData;
+  }
+
+  /** Returns the number of visits aggregated in the given partition. */
+  long count(K key) {
+    require(counted, Aggregate.COUNT, null);
+    int slot = slot(key);
+    return slot < 0 ? 0 : visits[slot];
+  }
+
+  /** Returns the sum of the measure over the visits in the given partition. */
+  double sum(K key, Measure measure) {
+    double[] sum = sums.get(measure);
+    require(sum != null, Aggregate.SUM, measure);
+    int slot = slot(key);
+    return slot < 0 ? 0 : sum[slot];
+  }
+
+  /** Returns the mean of the measure over the visits in the given partition, or NaN if it has none. */
+  double mean(K key, Measure measure) {
+    double[] sum = sums.get(measure);
+    require(sum != null && counted, Aggregate.MEAN, measure);
+    int slot = slot(key);
+    return slot < 0 ? Double.NaN : sum[slot] / visits[slot];
+  }
+
+  /**
+   * Returns the number of distinct patients with visits in the given partition, estimated if
+   * {@link #approximateDistinctIds()}.
+   */
+  int distinctIds(K key) {
+    require(distinctIds != null || distinctIdSketches != null, Aggregate.DISTINCT_IDS, null);
+    int slot = slot(key);
+    if (distinctIdSketches != null) {
+      return slot < 0 || distinctIdSketches[slot] == null
+          ? 0 : (int) Math.min(distinctIdSketches[slot].estimate(), Integer.MAX_VALUE);
+    }
+    return slot < 0 || distinctIds[slot] == null ? 0 : distinctIds[slot].cardinality();
+  }
+
+  /** Returns whether {@link #distinctIds(Object)} are estimates rather than exact counts. */
+  boolean approximateDistinctIds() {
+    return distinctIdSketches != null;
+  }
+
+  /**
+   * Returns the standard error of the number of distinct patients in the given partition,
+   * which is 0 for exact counts.
+   */
+  double distinctIdsStandardError(K key) {
+    return approximateDistinctIds()
+        ? distinctIds(key) * HyperLogLog.relativeStandardError(sketchPrecision) : 0;
+  }
+
+  /**
+   * Returns the clamped values of the measure for the visits aggregated in the given
+   * partition, in visit order. The returned array may be shared and must not be modified.
+   */
+  double[] clampedValues(K key, Measure measure) {
+    double[][] values = clampedValues.get(measure);
+    require(values != null, Aggregate.CLAMPED_VALUES, measure);
+    int slot = slot(key);
+    if (slot < 0) {
+      return new double[0];
+    }
+    // Arrays may have room for more values than were aggregated, e.g. with a per-partition limit.
+    return filled[slot] == values[slot].length ? values[slot] : Arrays.copyOf(values[slot], filled[slot]);
+  }
+
+  /**
+   * Returns the sum of the clamped values of the measure over the visits aggregated in the
+   * given partition, for each patient in order of their first visit. With a per-partition
+   * limit of {@code c} visits every sum lies in {@code [c * lower, c * upper]}.
+   */
+  double[] patientSums(K key, Measure measure) {
+    int index = Arrays.asList(patientSums).indexOf(measure);
+    require(index >= 0, Aggregate.PATIENT_SUMS, measure);
+    int slot = slot(key);
+    return slot < 0 || contributors[slot] == null ? new double[0] : contributors[slot].sums(index);
+  }
+
+  /**
+   * Returns the quantile of the measure over the visits in the given partition, interpolated
+   * between the values around position {@code q * (n - 1)} of its {@code n} values in ascending
+   * order. Quantiles of {@link Measure#integral integral} measures are exact, those of other
+   * measures are within the {@link QuantileSketch#DEFAULT_ACCURACY relative accuracy} of their
+   * sketch. Both take time in the range of the values, not in their number.
+   *
+   * @param key The partition key.
+   * @param measure The measure.
+   * @param q The quantile, from 0 to 1; 0.5 is the median.
+   * @return The quantile of the raw values, or NaN if the partition has no visits.
+   */
+  double quantile(K key, Measure measure, double q) {
+    IntHistogram[] histogram = histograms.get(measure);
+    QuantileSketch[] sketch = quantileSketches.get(measure);
+    require(histogram != null || sketch != null, Aggregate.QUANTILES, measure);
+    int slot = slot(key);
+    if (slot < 0) {
+      return Double.NaN;
+    }
+    return histogram != null ? histogram(histogram, slot).quantile(q) : sketch(sketch, slot).quantile(q);
+  }
+
+  /** Returns the histogram of the given slot, creating it if the slot has none yet. */
+  private static IntHistogram histogram(IntHistogram[] perPartition, int slot) {
+    if (perPartition[slot] == null) {
+      perPartition[slot] = new IntHistogram();
+    }
+    return perPartition[slot];
+  }
+
+  /** Returns the sketch of the given slot, creating it if the slot has none yet. */
+  private static QuantileSketch sketch(QuantileSketch[] perPartition, int slot) {
+    if (perPartition[slot] == null) {
+      perPartition[slot] = new QuantileSketch();
+    }
+    return perPartition[slot];
+  }
+
+  /** Returns the accumulator slot of the given key, or -1 if the partition has no visits. */
+  private int slot(K key) {
+    int code = dimension.codeOf(key);
+    int slot = code - minCode;
+    return code == Dimension.NONE || slot < 0 || slot >= span || visits[slot] == 0 ? -1 : slot;
+  }
+
+  private void requireMergeable(String action) {
+    if (contributors != null || filled != null) {
+      throw new IllegalStateException("Aggregates per " + dimension
+          + " with a per-partition limit, clamped values or per-patient sums cannot be " + action);
+    }
+  }
+
+  private void require(boolean computed, Aggregate aggregate, Measure measure) {
+    if (!computed) {
+      throw new IllegalStateException(
+          "Aggregate " + aggregate + (measure != null ? " of " + measure : "")
+              + " per " + dimension + " was not requested");
+    }
+  }
+}
@@ -0,0 +1,71 @@
+package dp.src;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import util.src.PatientTable;
+
+/**
+ * Groups a single table of patient visits by several {@link Dimension}s at once.
+ * The index is built in one pass over the rows, which computes the partition
+ * code of every row for every dimension. Each dimension's {@link Partitions}
+ * then only hold row indices into the shared table, so adding a dimension costs
+ * two int arrays rather than another copy of the visits.
+ */
+class PartitionIndex {
+  private final PatientTable table;
+  private final Map<Dimension<?>, Partitions<?>> partitions = new LinkedHashMap<>();
+
+  private PartitionIndex(PatientTable table) {
+    this.table = table;
+  }
+
+  /**
+   * Builds an index over the rows of the given table.
+   *
+   * @param table The shared table of visits.
+   * @param dimensions The dimensions to group the visits by.
+   * @return The index.
+   */
+  static PartitionIndex build(PatientTable table, Dimension<?>... dimensions) {
+    int rows = table.rows;
+    int[][] codes = new int[dimensions.length][rows];
+    for (int row = 0; row < rows; row++) {
+      for (int d = 0; d < dimensions.length; d++) {
+        codes[d][row] = dimensions[d].code(table, row);
+      }
+    }
+
+    int[] allRows = new int[rows];
+    for (int row = 0; row < rows; row++) {
+      allRows[row] = row;
+    }
+
+    PartitionIndex index = new PartitionIndex(table);
+    for (int d = 0; d < dimensions.length; d++) {
+      index.partitions.put(dimensions[d], new Partitions<>(dimensions[d], table, codes[d], allRows, rows, null));
+    }
+    return index;
+  }
+
+  /** Returns the shared table of visits. */
+  PatientTable table() {
+    return table;
+  }
+
+  /**
+   * Returns the visits grouped by the given dimension.
+   *
+   * @param dimension One of the dimensions the index was built with.
+   * @return The partitions of the dimension.
+   * @throws IllegalArgumentException if the index was not built with the dimension.
+   */
+  @SuppressWarnings("unchecked")
+  <K> Partitions<K> partitions(Dimension<K> dimension) {
+    Partitions<?> result = partitions.get(dimension);
+    if (result == null) {
+      throw new IllegalArgumentException("Visits are not indexed by " + dimension);
+    }
+    return (Partitions<K>) result;
+  }
+}
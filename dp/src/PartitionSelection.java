@@ -0,0 +1,177 @@
+package dp.src;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Privately selects the partitions of a dimension whose keys are not public, such as
+ * hospitals or doctors, so that a partition only a handful of patients contributed to
+ * is not revealed by appearing in a result.
+ *
+ * A partition is kept with a probability that only depends on its number of distinct
+ * patients after contribution bounding. The probabilities are those of the optimal
+ * (epsilon, delta) thresholding that the library's {@code PreAggSelectPartition}
+ * implements: {@code p(0) = 0} and
+ * <pre>
+ *   p(n) = min(e^eps * p(n - 1) + delta, 1 - e^-eps * (1 - p(n - 1) - delta), 1)
+ * </pre>
+ * with epsilon and delta split evenly over the partitions a patient contributes to.
+ * They are computed once per selection up to the {@link #threshold()} from which every
+ * partition is kept, where a {@code PreAggSelectPartition} per partition would set up its
+ * own secure random source and sum the series again for every candidate.
+ *
+ * As with the library, the caller is responsible for having bounded the contributions
+ * of every patient to the given number of partitions.
+ */
+final class PartitionSelection {
+  private final SecureRandom random = new SecureRandom();
+  private final double epsilon;
+  private final double delta;
+  /** The keep probability of a partition by its number of distinct patients, below the threshold. */
+  private final double[] keepProbabilities;
+
+  /**
+   * Creates a selection.
+   *
+   * @param epsilon The privacy budget spent on selecting the partitions.
+   * @param delta The probability of failing to hide a patient, spent on selecting the partitions.
+   * @param maxPartitionsContributed The maximum number of partitions a patient contributes to.
+   * @throws IllegalArgumentException if a parameter is out of range.
+   */
+  PartitionSelection(double epsilon, double delta, int maxPartitionsContributed) {
+    if (!(epsilon > 0) || Double.isInfinite(epsilon)) {
+      throw new IllegalArgumentException("Epsilon must be positive and finite: " + epsilon);
+    }
+    if (!(delta > 0 && delta < 1)) {
+      throw new IllegalArgumentException("Delta must be in (0, 1): " + delta);
+    }
+    if (maxPartitionsContributed < 1) {
+      throw new IllegalArgumentException("A patient must be allowed to contribute to at least one partition");
+    }
+    this.epsilon = epsilon;
+    this.delta = delta;
+
+    double partitionEpsilon = epsilon / maxPartitionsContributed;
+    double partitionDelta = delta / maxPartitionsContributed;
+    double growth = Math.exp(partitionEpsilon);
+    double[] probabilities = new double[64];
+    int size = 1;
+    double probability = 0;
+    while (true) {
+      probability = Math.min(growth * probability + partitionDelta,
+          1 - (1 - probability - partitionDelta) / growth);
+      if (probability >= 1) {
+        break;
+      }
+      if (size == probabilities.length) {
+        probabilities = Arrays.copyOf(probabilities, size * 2);
+      }
+      probabilities[size++] = probability;
+    }
+    this.keepProbabilities = Arrays.copyOf(probabilities, size);
+  }
+
+  /** Returns the privacy budget spent on selecting the partitions. */
+  double epsilon() {
+    return epsilon;
+  }
+
+  /** Returns the probability of failing to hide a patient, spent on selecting the partitions. */
+  double delta() {
+    return delta;
+  }
+
+  /** Returns the smallest number of distinct patients of a partition that is always kept. */
+  long threshold() {
+    return keepProbabilities.length;
+  }
+
+  /** Returns the probability of keeping a partition with the given number of distinct patients. */
+  double keepProbability(long distinctIds) {
+    if (distinctIds <= 0) {
+      return 0;
+    }
+    return distinctIds < keepProbabilities.length ? keepProbabilities[(int) distinctIds] : 1;
+  }
+
+  /** Decides whether to keep a partition with the given number of distinct patients. */
+  boolean keep(long distinctIds) {
+    if (distinctIds >= keepProbabilities.length) {
+      return true;
+    }
+    return distinctIds > 0 && random.nextDouble() < keepProbabilities[(int) distinctIds];
+  }
+
+  /**
+   * Selects the partitions to release from their distinct patients after bounding.
+   *
+   * Candidates below the threshold are grouped by their number of distinct patients, and
+   * within each group the kept candidates are found by drawing the geometrically distributed
+   * gaps between them. Each candidate of a group is still kept independently with the group's
+   * probability, but the random draws are proportional to the kept candidates rather than to
+   * all of them, most of which have a tiny chance of being kept.
+   *
+   * @param boundedVisits Aggregates with {@link Aggregate#DISTINCT_IDS} over visits where each
+   *     patient contributes to at most the {@code maxPartitionsContributed} of this selection.
+   * @return The kept partition keys, in the order of {@link PartitionAggregates#keysWithData()}.
+   */
+  <K> List<K> select(PartitionAggregates<K> boundedVisits) {
+    if (boundedVisits.approximateDistinctIds()) {
+      throw new IllegalArgumentException("Partitions must be selected from exact distinct patient counts");
+    }
+    List<K> candidates = new ArrayList<>(boundedVisits.keysWithData());
+    int[] distinctIds = new int[candidates.size()];
+    boolean[] kept = new boolean[candidates.size()];
+
+    // Group the candidates below the threshold by their count with a counting sort.
+    int groups = keepProbabilities.length;
+    int[] offsets = new int[groups + 1];
+    for (int i = 0; i < distinctIds.length; i++) {
+      distinctIds[i] = boundedVisits.distinctIds(candidates.get(i));
+      if (distinctIds[i] < groups) {
+        offsets[distinctIds[i] + 1]++;
+      } else {
+        kept[i] = true;
+      }
+    }
+    for (int count = 0; count < groups; count++) {
+      offsets[count + 1] += offsets[count];
+    }
+    int[] grouped = new int[offsets[groups]];
+    int[] next = Arrays.copyOf(offsets, groups);
+    for (int i = 0; i < distinctIds.length; i++) {
+      if (distinctIds[i] < groups) {
+        grouped[next[distinctIds[i]]++] = i;
+      }
+    }
+
+    // Partitions without patients are never kept, so the first group is skipped.
+    for (int count = 1; count < groups; count++) {
+      int size = offsets[count + 1] - offsets[count];
+      double logMiss = Math.log1p(-keepProbabilities[count]);
+      for (long position = gap(logMiss); position < size; position += gap(logMiss) + 1) {
+        kept[grouped[offsets[count] + (int) position]] = true;
+      }
+    }
+
+    List<K> selected = new ArrayList<>();
+    for (int i = 0; i < kept.length; i++) {
+      if (kept[i]) {
+        selected.add(candidates.get(i));
+      }
+    }
+    return selected;
+  }
+
+  /**
+   * Draws the number of candidates passed over before the next kept one, when each is kept
+   * with probability {@code 1 - e^logMiss}: a geometric draw by inversion. Gaps beyond any
+   * group size are capped so that advancing past them cannot overflow.
+   */
+  private long gap(double logMiss) {
+    double uniform = 1 - random.nextDouble(); // in (0, 1]
+    return (long) Math.min(Math.log(uniform) / logMiss, Integer.MAX_VALUE);
+  }
+}
@@ -0,0 +1,196 @@
+package dp.src;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import util.src.PatientTable;
+
+/**
+ * Patient visits grouped by the partitions of one {@link Dimension}. Visits are
+ * not copied: a partition is a run of row indices into the table shared by the
+ * whole {@link PartitionIndex}, and the rows of each partition keep the order of
+ * the table.
+ *
+ * @param <K> The type of the partition keys.
+ */
+class Partitions<K> {
+  private final Dimension<K> dimension;
+  private final PatientTable table;
+  /** Partition code of every row of the table, {@link Dimension#NONE} if it belongs to none. */
+  private final int[] rowCodes;
+  /** The smallest partition code, which maps to offset slot 0. */
+  private final int minCode;
+  /** Rows of the partition with code c are rows[offsets[c - minCode], offsets[c - minCode + 1]). */
+  private final int[] offsets;
+  private final int[] rows;
+  /** Which rows of the table are in these partitions, or null if every row with a code is. */
+  private final boolean[] members;
+
+  /**
+   * Groups the given rows of the table by their partition code with a stable counting sort.
+   * Rows that belong to no partition are left out.
+   *
+   * @param dimension The dimension the codes belong to.
+   * @param table The shared table of visits.
+   * @param rowCodes The partition code of every row of the table.
+   * @param candidates The rows to group, in the order they should keep within a partition.
+   * @param count The number of valid entries in {@code candidates}.
+   * @param members Which rows of the table are candidates, or null if every row is.
+   */
+  Partitions(
+      Dimension<K> dimension,
+      PatientTable table,
+      int[] rowCodes,
+      int[] candidates,
+      int count,
+      boolean[] members) {
+    this.dimension = dimension;
+    this.table = table;
+    this.rowCodes = rowCodes;
+    this.members = members;
+
+    int min = Integer.MAX_VALUE;
+    int max = Integer.MIN_VALUE;
+    int kept = 0;
+    for (int i = 0; i < count; i++) {
+      int code = rowCodes[candidates[i]];
+      if (code == Dimension.NONE) {
+        continue;
+      }
+      min = Math.min(min, code);
+      max = Math.max(max, code);
+      kept++;
+    }
+    if (kept == 0) {
+      min = 0;
+      max = -1;
+    }
+
+    minCode = min;
+    offsets = new int[max - min + 2];
+    for (int i = 0; i < count; i++) {
+      int code = rowCodes[candidates[i]];
+      if (code != Dimension.NONE) {
+        offsets[code - min + 1]++;
+      }
+    }
+    for (int slot = 1; slot < offsets.length; slot++) {
+      offsets[slot] += offsets[slot - 1];
+    }
+
+    rows = new int[kept];
+    int[] next = Arrays.copyOf(offsets, offsets.length - 1);
+    for (int i = 0; i < count; i++) {
+      int row = candidates[i];
+      int code = rowCodes[row];
+      if (code != Dimension.NONE) {
+        rows[next[code - min]++] = row;
+      }
+    }
+  }
+
+  /** Returns the dimension these partitions belong to. */
+  Dimension<K> dimension() {
+    return dimension;
+  }
+
+  /** Returns the shared table the rows point into. */
+  PatientTable table() {
+    return table;
+  }
+
+  /** Returns the partition code of the given row of the table. */
+  int codeOf(int row) {
+    return rowCodes[row];
+  }
+
+  /** Returns whether the given row of the table is in one of these partitions. */
+  boolean contains(int row) {
+    return rowCodes[row] != Dimension.NONE && (members == null || members[row]);
+  }
+
+  /** Returns the smallest partition code that may have visits. */
+  int minCode() {
+    return minCode;
+  }
+
+  /** Returns the number of partition codes from {@link #minCode()} on that may have visits. */
+  int codeSpan() {
+    return offsets.length - 1;
+  }
+
+  /** Returns the number of visits in the partition with the given code. */
+  int size(int code) {
+    int slot = code - minCode;
+    if (code == Dimension.NONE || slot < 0 || slot >= offsets.length - 1) {
+      return 0;
+    }
+    return offsets[slot + 1] - offsets[slot];
+  }
+
+  /**
+   * Returns the set of all partition keys that have at least one visit record,
+   * in order of their partition codes.
+   *
+   * @return A set of partition keys.
+   */
+  Set<K> keysWithData() {
+    Set<K> withData = new LinkedHashSet<>();
+    for (int slot = 0; slot < offsets.length - 1; slot++) {
+      if (offsets[slot] < offsets[slot + 1]) {
+        withData.add(dimension.key(minCode + slot));
+      }
+    }
+    return withData;
+  }
+
+  /**
+   * Returns the rows of every visit in these partitions, grouped by partition.
+   *
+   * @return A new array of row indices into the shared table.
+   */
+  int[] allRows() {
+    return rows.clone();
+  }
+
+  /** Returns the number of visits in these partitions. */
+  int size() {
+    return rows.length;
+  }
+
+  /**
+   * Returns the partitions of the given subset of rows, sharing the table.
+   * Rows keep their order within each partition.
+   *
+   * @param keep Whether to keep each row of the shared table, indexed by row.
+   * @return The partitions of the rows that are both in these partitions and kept.
+   */
+  Partitions<K> retain(boolean[] keep) {
+    int[] kept = new int[rows.length];
+    boolean[] keptMembers = new boolean[table.rows];
+    int count = 0;
+    for (int row : rows) {
+      if (keep[row]) {
+        kept[count++] = row;
+        keptMembers[row] = true;
+      }
+    }
+    return new Partitions<>(dimension, table, rowCodes, kept, count, keptMembers);
+  }
+
+  /**
+   * Returns the partitions of the rows that are also in the given partitions of the same table,
+   * e.g. the rows a patient keeps after being bounded by a finer dimension.
+   *
+   * @param other Partitions of the shared table, by any dimension.
+   * @return The partitions of the rows that are in both.
+   */
+  Partitions<K> retain(Partitions<?> other) {
+    boolean[] keep = new boolean[table.rows];
+    for (int row : other.rows) {
+      keep[row] = true;
+    }
+    return retain(keep);
+  }
+}
@@ -1,63 +1,75 @@
 package dp.src;
 
-import com.google.privacy.differentialprivacy.*;
-
-import util.src.PatientRecord;
-
-import java.nio.file.Path;
-import java.time.Year;
 import java.util.*;
 
 public class PatientCountPerAgeGroup {
     private static final String NON_PRIVATE_OUTPUT = "dp/out/non_private_counts_per_age_group.csv";
     private static final String PRIVATE_OUTPUT = "dp/out/private_counts_per_age_group.csv";
+    private static final String HEADER = "Age Group, Patient Counts";
+    private static final String NON_PRIVATE_ERROR_OUTPUT = "dp/out/non_private_counts_per_age_group_std_error.csv";
+    private static final String ERROR_HEADER = "Age Group, Patient Count Std Error";
 
-    private static final double LN_X = Math.log(2);
+    static final double LN_X = Math.log(2);
     private static final int MAX_CONTRIBUTED_AGE_GROUP = 2;
 
 
     private PatientCountPerAgeGroup() { }
 
-    public static void run(Path path) {
-        VisitsForAG visitsForAG = IOUtils.readAGVisits(path);
+    // Requests the aggregates this job reads
+    static void request(AggregationEngine engine) {
+        engine.request(Dimension.AGE_GROUP, Aggregate.DISTINCT_IDS);
+        engine.requestBounded(Dimension.AGE_GROUP, MAX_CONTRIBUTED_AGE_GROUP, Aggregate.DISTINCT_IDS);
+    }
 
-        Map<String, Integer> nonPrivatePtntAGCnt = getNonPrivateAGCount(visitsForAG);  // Calculate non-private patient counts per age group
-        Map<String, Integer> privatePtntAGCnt = getPrivateAGCount(visitsForAG); // Calculate private patient counts per age group
+    public static void run(AggregationEngine.Aggregates aggregates, ResultSink sink) {
+        PartitionAggregates<String> visits = aggregates.of(Dimension.AGE_GROUP);
+        Map<String, Integer> nonPrivatePtntAGCnt = getNonPrivateAGCount(visits); // Calculate non-private patient counts per age group
 
-        IOUtils.writeCountsPerAgeGroup(nonPrivatePtntAGCnt, NON_PRIVATE_OUTPUT); // Write non-private counts to file
-        IOUtils.writeCountsPerAgeGroup(privatePtntAGCnt, PRIVATE_OUTPUT); // Write private counts to file
-    
+        sink.write(NON_PRIVATE_OUTPUT, HEADER, nonPrivatePtntAGCnt, ResultSink.ValueType.INTEGER); // Write non-private counts to file
+        release(aggregates, sink, LN_X); // Write private counts to file
+        if (visits.approximateDistinctIds()) { // Approximate counts are written with their standard errors
+            sink.write(NON_PRIVATE_ERROR_OUTPUT, ERROR_HEADER, getNonPrivateCountErrors(visits), ResultSink.ValueType.DECIMAL);
+        }
     }
 
-    static Map<String, Integer> getNonPrivateAGCount(VisitsForAG visits){
-        Map<String, Integer> ptntPerAgeGroup = new HashMap<>();
-        for (String ageGrp : visits.getAGWithData()){
-            Set<Integer> uniquePtnt = new HashSet<>();
-            for (PatientRecord record : visits.getVisitsForAG(ageGrp)) {
-                uniquePtnt.add(record.id); // Collect unique patient names for the age group
-            }
-            ptntPerAgeGroup.put(ageGrp, uniquePtnt.size()); // Store the count of unique patients for the age group
-        }
-        return ptntPerAgeGroup;
+    // Releases anonymized patient counts per age group at the given privacy budget and writes them to the private output file
+    static void release(AggregationEngine.Aggregates aggregates, ResultSink sink, double epsilon) {
+        Map<String, Integer> privatePtntAGCnt = getPrivateAGCount(aggregates.bounded(Dimension.AGE_GROUP, MAX_CONTRIBUTED_AGE_GROUP), epsilon);
+        sink.write(PRIVATE_OUTPUT, HEADER, privatePtntAGCnt, ResultSink.ValueType.INTEGER);
     }
 
-    static Map<String, Integer> getPrivateAGCount(VisitsForAG visits){
-        Map<String, Integer> privateCnt = new HashMap<>();
+    // returns a map of age group to the raw number of unique patients
+    static Map<String, Integer> getNonPrivateAGCount(PartitionAggregates<String> visits) {
+        Map<String, Integer> ptntCnt = new HashMap<>();
+        for (String ageGrp : visits.keysWithData()) {
+            ptntCnt.put(ageGrp, visits.distinctIds(ageGrp)); // Store the count of unique patients for the age group
+        }
+        return ptntCnt;
+    }
 
-        VisitsForAG boundedVisitsForAG = ContributionBoundingUtils.boundContributedAG(visits, MAX_CONTRIBUTED_AGE_GROUP);
+    // returns a map of age group to the standard error of its approximate number of unique patients
+    static Map<String, Double> getNonPrivateCountErrors(PartitionAggregates<String> visits) {
+        Map<String, Double> errors = new HashMap<>();
+        for (String ageGrp : visits.keysWithData()) {
+            errors.put(ageGrp, visits.distinctIdsStandardError(ageGrp));
+        }
+        return errors;
+    }
 
-        for (String ageGrp : boundedVisitsForAG.getAGWithData()){
-            Set<Integer> uniquePtnt = new HashSet<>();
-            for (PatientRecord record : boundedVisitsForAG.getVisitsForAG(ageGrp)){
-                uniquePtnt.add(record.id); // Collect unique patient names for the age group
-            }
+    // returns a map of age group to the anonymized number of unique patients
+    // boundedVisits only holds visits left after limiting each patient to MAX_CONTRIBUTED_AGE_GROUP partitions
+    static Map<String, Integer> getPrivateAGCount(PartitionAggregates<String> boundedVisits, double epsilon) {
+        List<String> keys = new ArrayList<>(boundedVisits.keysWithData());
+        long[] counts = new long[keys.size()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = boundedVisits.distinctIds(keys.get(i)); // The number of unique patients in the age group
+        }
+        // Each patient is counted at most once per age group
+        long[] privateCounts = new BatchedRelease(epsilon, MAX_CONTRIBUTED_AGE_GROUP).counts(counts, 1);
 
-            Count dpCount = Count.builder()
-                .epsilon(LN_X)
-                .maxPartitionsContributed(MAX_CONTRIBUTED_AGE_GROUP)
-                .build();
-            dpCount.incrementBy(uniquePtnt.size());
-            privateCnt.put(ageGrp, (int) dpCount.computeResult());
+        Map<String, Integer> privateCnt = new HashMap<>();
+        for (int i = 0; i < counts.length; i++) {
+            privateCnt.put(keys.get(i), (int) privateCounts[i]);
         }
         return privateCnt;
     }
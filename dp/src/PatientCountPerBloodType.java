@@ -1,61 +1,74 @@
 package dp.src;
-import com.google.privacy.differentialprivacy.*;
 
-import util.src.PatientRecord;
-
-import java.nio.file.Path;
-import java.time.Year;
 import java.util.*;
 
 public class PatientCountPerBloodType {
     private static final String NON_PRIVATE_OUTPUT = "dp/out/non_private_counts_per_bloodType.csv";
     private static final String PRIVATE_OUTPUT = "dp/out/private_counts_per_bloodType.csv";
-    private static final double LN_X = Math.log(1.004); // Epsilon value
+    private static final String HEADER = "Blood Group, Patient Counts";
+    private static final String NON_PRIVATE_ERROR_OUTPUT = "dp/out/non_private_counts_per_bloodType_std_error.csv";
+    private static final String ERROR_HEADER = "Blood Group, Patient Count Std Error";
+    static final double LN_X = Math.log(1.004); // Epsilon value
     private static final int MAX_CONTRIBUTED_BLOOD_TYPE = 1; // 1 patient should not have more than 1 blood type 
 
     private PatientCountPerBloodType() { }
 
-    public static void run(Path path){
-        VisitsForBG visitsForBG = IOUtils.readBGVisits(path);
-
-        Map<String, Integer> nonPrivatePtntBGCount = getNonPrivateBGCount(visitsForBG); // Calculate non-private patient counts per blood type
-        Map<String, Integer> privatePtntBGCount = getPrivateBGCount(visitsForBG); // Calculate private patient counts per blood type
-
-        IOUtils.writeCountsPerBloodType(nonPrivatePtntBGCount, NON_PRIVATE_OUTPUT); // Write non-private counts to file
-        IOUtils.writeCountsPerBloodType(privatePtntBGCount, PRIVATE_OUTPUT); // Write private counts to file
+    // Requests the aggregates this job reads
+    static void request(AggregationEngine engine) {
+        engine.request(Dimension.BLOOD_TYPE, Aggregate.DISTINCT_IDS);
+        engine.requestBounded(Dimension.BLOOD_TYPE, MAX_CONTRIBUTED_BLOOD_TYPE, Aggregate.DISTINCT_IDS);
     }
 
-    static Map<String, Integer> getNonPrivateBGCount(VisitsForBG visits){
-        Map<String, Integer> ptntPerBloodType = new HashMap<>();
-        for (String bloodType : visits.getBGWithData()){
-            Set<Integer> uniquePtnt = new HashSet<>();
-            for (PatientRecord record : visits.getVisitsForBG(bloodType)){
-                uniquePtnt.add(record.id); // Collect unique patient names for the blood type
-            }
-            ptntPerBloodType.put(bloodType, uniquePtnt.size()); // Store the count of unique patients for the blood type
+    public static void run(AggregationEngine.Aggregates aggregates, ResultSink sink) {
+        PartitionAggregates<String> visits = aggregates.of(Dimension.BLOOD_TYPE);
+        Map<String, Integer> nonPrivatePtntBGCount = getNonPrivateBGCount(visits); // Calculate non-private patient counts per blood type
+
+        sink.write(NON_PRIVATE_OUTPUT, HEADER, nonPrivatePtntBGCount, ResultSink.ValueType.INTEGER); // Write non-private counts to file
+        release(aggregates, sink, LN_X); // Write private counts to file
+        if (visits.approximateDistinctIds()) { // Approximate counts are written with their standard errors
+            sink.write(NON_PRIVATE_ERROR_OUTPUT, ERROR_HEADER, getNonPrivateCountErrors(visits), ResultSink.ValueType.DECIMAL);
         }
-        return ptntPerBloodType;
     }
 
-    static Map<String, Integer> getPrivateBGCount(VisitsForBG visits){
-        Map<String, Integer> privateCnt = new HashMap<>();
+    // Releases anonymized patient counts per blood type at the given privacy budget and writes them to the private output file
+    static void release(AggregationEngine.Aggregates aggregates, ResultSink sink, double epsilon) {
+        Map<String, Integer> privatePtntBGCount = getPrivateBGCount(aggregates.bounded(Dimension.BLOOD_TYPE, MAX_CONTRIBUTED_BLOOD_TYPE), epsilon);
+        sink.write(PRIVATE_OUTPUT, HEADER, privatePtntBGCount, ResultSink.ValueType.INTEGER);
+    }
 
-        VisitsForBG boundedVisits = ContributionBoundingUtils.boundContributedBG(visits, MAX_CONTRIBUTED_BLOOD_TYPE);
+    // returns a map of blood type to the raw number of unique patients
+    static Map<String, Integer> getNonPrivateBGCount(PartitionAggregates<String> visits) {
+        Map<String, Integer> ptntCnt = new HashMap<>();
+        for (String bloodType : visits.keysWithData()) {
+            ptntCnt.put(bloodType, visits.distinctIds(bloodType)); // Store the count of unique patients for the blood type
+        }
+        return ptntCnt;
+    }
 
-        for (String bloodType : boundedVisits.getBGWithData()){
-            Set<Integer> uniquePtnt = new HashSet<>();
-            for (PatientRecord record : boundedVisits.getVisitsForBG(bloodType)){
-                uniquePtnt.add(record.id); // Collect unique patient names for the blood type
-            }
+    // returns a map of blood group to the standard error of its approximate number of unique patients
+    static Map<String, Double> getNonPrivateCountErrors(PartitionAggregates<String> visits) {
+        Map<String, Double> errors = new HashMap<>();
+        for (String bloodType : visits.keysWithData()) {
+            errors.put(bloodType, visits.distinctIdsStandardError(bloodType));
+        }
+        return errors;
+    }
 
-            Count dpCount = Count.builder()
-                .epsilon(LN_X)
-                .maxPartitionsContributed(MAX_CONTRIBUTED_BLOOD_TYPE)
-                .build();
-            dpCount.incrementBy(uniquePtnt.size()); // Report the number of unique patients in the blood type to DP count
-            privateCnt.put(bloodType, (int) dpCount.computeResult()); // DP count and store in the result
+    // returns a map of blood type to the anonymized number of unique patients
+    // boundedVisits only holds visits left after limiting each patient to MAX_CONTRIBUTED_BLOOD_TYPE partitions
+    static Map<String, Integer> getPrivateBGCount(PartitionAggregates<String> boundedVisits, double epsilon) {
+        List<String> keys = new ArrayList<>(boundedVisits.keysWithData());
+        long[] counts = new long[keys.size()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = boundedVisits.distinctIds(keys.get(i)); // The number of unique patients in the blood type
         }
+        // Each patient is counted at most once per blood type
+        long[] privateCounts = new BatchedRelease(epsilon, MAX_CONTRIBUTED_BLOOD_TYPE).counts(counts, 1);
 
+        Map<String, Integer> privateCnt = new HashMap<>();
+        for (int i = 0; i < counts.length; i++) {
+            privateCnt.put(keys.get(i), (int) privateCounts[i]);
+        }
         return privateCnt;
     }
 }
@@ -1,60 +1,74 @@
 package dp.src;
-import com.google.privacy.differentialprivacy.*;
 
-import util.src.PatientRecord;
-
-import java.nio.file.Path;
-import java.time.Year;
 import java.util.*;
 
 public class PatientCountPerCondition {
     private static final String NON_PRIVATE_OUTPUT = "dp/out/non_private_counts_per_conditionType.csv";
     private static final String PRIVATE_OUTPUT = "dp/out/private_counts_per_conditionType.csv";
+    private static final String HEADER = "Condition, Patient Count";
+    private static final String NON_PRIVATE_ERROR_OUTPUT = "dp/out/non_private_counts_per_conditionType_std_error.csv";
+    private static final String ERROR_HEADER = "Condition, Patient Count Std Error";
 
-    private static final double LN_X = Math.log(1.005); // Epsilon value
+    static final double LN_X = Math.log(1.005); // Epsilon value
     private static final int MAX_CONTRIBUTED_COND_TYPE = 2; // max number of condition types a patient can contribute to
 
     private PatientCountPerCondition() { }
 
-    public static void run(Path path){
-        VisitsForCT visitsForCT = IOUtils.readCTVisits(path);
+    // Requests the aggregates this job reads
+    static void request(AggregationEngine engine) {
+        engine.request(Dimension.CONDITION, Aggregate.DISTINCT_IDS);
+        engine.requestBounded(Dimension.CONDITION, MAX_CONTRIBUTED_COND_TYPE, Aggregate.DISTINCT_IDS);
+    }
+
+    public static void run(AggregationEngine.Aggregates aggregates, ResultSink sink) {
+        PartitionAggregates<String> visits = aggregates.of(Dimension.CONDITION);
+        Map<String, Integer> nonPrivatePtntCTCount = getNonPrivateCTCount(visits); // Calculate non-private patient counts per condition type
 
-        Map<String, Integer> nonPrivatePtntCTCount = getNonPrivateCTCount(visitsForCT); // Calculate non-private patient counts per condition type
-        Map<String, Integer> privatePtntCTCount = getPrivatePtntCTCount(visitsForCT); // Calculate private patient counts per condition type
+        sink.write(NON_PRIVATE_OUTPUT, HEADER, nonPrivatePtntCTCount, ResultSink.ValueType.INTEGER); // Write non-private counts to file
+        release(aggregates, sink, LN_X); // Write private counts to file
+        if (visits.approximateDistinctIds()) { // Approximate counts are written with their standard errors
+            sink.write(NON_PRIVATE_ERROR_OUTPUT, ERROR_HEADER, getNonPrivateCountErrors(visits), ResultSink.ValueType.DECIMAL);
+        }
+    }
 
-        IOUtils.writeCountsPerConditionType(nonPrivatePtntCTCount, NON_PRIVATE_OUTPUT); // Write non-private counts to file
-        IOUtils.writeCountsPerConditionType(privatePtntCTCount, PRIVATE_OUTPUT); // Write private counts to file
+    // Releases anonymized patient counts per condition type at the given privacy budget and writes them to the private output file
+    static void release(AggregationEngine.Aggregates aggregates, ResultSink sink, double epsilon) {
+        Map<String, Integer> privatePtntCTCount = getPrivatePtntCTCount(aggregates.bounded(Dimension.CONDITION, MAX_CONTRIBUTED_COND_TYPE), epsilon);
+        sink.write(PRIVATE_OUTPUT, HEADER, privatePtntCTCount, ResultSink.ValueType.INTEGER);
     }
 
-    static Map<String, Integer> getNonPrivateCTCount(VisitsForCT visit){
-        Map<String,Integer> ptntPerCond = new HashMap<>();
-        for (String cond : visit.getCTWithData()){
-            Set<Integer> uniquePtnt = new HashSet<>();
-            for (PatientRecord record : visit.getVisitsForCT(cond)) {
-                uniquePtnt.add(record.id); // Collect unique patient names for the condition type
-            }
-            ptntPerCond.put(cond, uniquePtnt.size()); // Store the count of unique patients for the condition type
+    // returns a map of condition type to the raw number of unique patients
+    static Map<String, Integer> getNonPrivateCTCount(PartitionAggregates<String> visits) {
+        Map<String, Integer> ptntCnt = new HashMap<>();
+        for (String cond : visits.keysWithData()) {
+            ptntCnt.put(cond, visits.distinctIds(cond)); // Store the count of unique patients for the condition type
         }
-        return ptntPerCond;
+        return ptntCnt;
     }
 
-    static Map<String, Integer> getPrivatePtntCTCount(VisitsForCT visits){
-        Map<String, Integer> privateCnt = new HashMap<>();
+    // returns a map of condition to the standard error of its approximate number of unique patients
+    static Map<String, Double> getNonPrivateCountErrors(PartitionAggregates<String> visits) {
+        Map<String, Double> errors = new HashMap<>();
+        for (String cond : visits.keysWithData()) {
+            errors.put(cond, visits.distinctIdsStandardError(cond));
+        }
+        return errors;
+    }
 
-        VisitsForCT boundedVisits = ContributionBoundingUtils.boundContributedCT(visits, MAX_CONTRIBUTED_COND_TYPE);
-        
-        for (String cond: boundedVisits.getCTWithData()){
-            Set<Integer> uniquePtnt = new HashSet<>();
-            for (PatientRecord record : boundedVisits.getVisitsForCT(cond)){
-                uniquePtnt.add(record.id); // Collect unique patient names for the condition type
-            }
-
-            Count dpCount = Count.builder()
-                .epsilon(LN_X)
-                .maxPartitionsContributed(MAX_CONTRIBUTED_COND_TYPE)
-                .build();
-            dpCount.incrementBy(uniquePtnt.size()); // Report the number of unique patients in the condition type to DP count
-            privateCnt.put(cond, (int) dpCount.computeResult()); // DP count and store in the result
+    // returns a map of condition type to the anonymized number of unique patients
+    // boundedVisits only holds visits left after limiting each patient to MAX_CONTRIBUTED_COND_TYPE partitions
+    static Map<String, Integer> getPrivatePtntCTCount(PartitionAggregates<String> boundedVisits, double epsilon) {
+        List<String> keys = new ArrayList<>(boundedVisits.keysWithData());
+        long[] counts = new long[keys.size()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = boundedVisits.distinctIds(keys.get(i)); // The number of unique patients in the condition type
+        }
+        // Each patient is counted at most once per condition type
+        long[] privateCounts = new BatchedRelease(epsilon, MAX_CONTRIBUTED_COND_TYPE).counts(counts, 1);
+
+        Map<String, Integer> privateCnt = new HashMap<>();
+        for (int i = 0; i < counts.length; i++) {
+            privateCnt.put(keys.get(i), (int) privateCounts[i]);
         }
         return privateCnt;
     }
@@ -0,0 +1,127 @@
+package dp.src;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Calculates the raw and anonymized number of distinct patients per partition of a
+ * dimension whose keys are not public, such as hospitals, doctors or medications, or
+ * the cells of a {@link ContingencyCube}, and writes them to {@code dp/out/non_private_counts_per_<name>.csv} and
+ * {@code dp/out/private_counts_per_<name>.csv}.
+ *
+ * Which partitions appear in the private output is itself decided privately: the bounded
+ * distinct patient counts first pass a {@link PartitionSelection}, and only the partitions
+ * it keeps are counted. Half of the privacy budget is spent on the selection and half on
+ * the counts.
+ *
+ * @param <K> The type of the partition keys.
+ */
+class PatientCountPerSelectedKey<K> {
+  static final double LN_X = Math.log(3);
+
+  /** The probability of failing to hide a patient, spent on selecting the partitions. */
+  static final double DELTA = 1e-5;
+
+  private final Dimension<K> dimension;
+  private final Dimension<?> boundedBy;
+  private final int maxContributedPartitions;
+  private final double epsilon;
+  private final String nonPrivateOutput;
+  private final String privateOutput;
+  private final String header;
+  private final String nonPrivateErrorOutput;
+  private final String errorHeader;
+
+  /**
+   * Creates the job for one dimension.
+   * @param dimension The dimension to count patients per.
+   * @param name The name of the dimension in the output file names, e.g. {@code "hospital"}.
+   * @param column The name of the key column of the output, e.g. {@code "Hospital"}.
+   * @param maxContributedPartitions The maximum number of partitions a single patient is counted in.
+   */
+  PatientCountPerSelectedKey(Dimension<K> dimension, String name, String column, int maxContributedPartitions) {
+    this(dimension, dimension, name, column, maxContributedPartitions, LN_X);
+  }
+
+  /**
+   * Creates the job for one dimension whose patients are bounded in a finer dimension, such as
+   * a cuboid of a {@link ContingencyCube} bounded in the cube's finest cuboid.
+   * @param dimension The dimension to count patients per.
+   * @param boundedBy The dimension the patients are bounded in, which {@code dimension} must coarsen.
+   * @param name The name of the dimension in the output file names, e.g. {@code "hospital"}.
+   * @param column The name of the key column of the output, e.g. {@code "Hospital"}.
+   * @param maxContributedPartitions The maximum number of partitions of {@code boundedBy} a single patient is counted in.
+   * @param epsilon The privacy budget {@link #run} releases the counts at.
+   */
+  PatientCountPerSelectedKey(Dimension<K> dimension, Dimension<?> boundedBy, String name, String column,
+      int maxContributedPartitions, double epsilon) {
+    this.dimension = dimension;
+    this.boundedBy = boundedBy;
+    this.maxContributedPartitions = maxContributedPartitions;
+    this.epsilon = epsilon;
+    this.nonPrivateOutput = "dp/out/non_private_counts_per_" + name + ".csv";
+    this.privateOutput = "dp/out/private_counts_per_" + name + ".csv";
+    this.header = column + ", Patient Counts";
+    this.nonPrivateErrorOutput = "dp/out/non_private_counts_per_" + name + "_std_error.csv";
+    this.errorHeader = column + ", Patient Count Std Error";
+  }
+
+  /**
+   * Requests the aggregates this job reads.
+   * @param engine The engine computing the aggregates of every job.
+   */
+  void request(AggregationEngine engine) {
+    engine.request(dimension, Aggregate.DISTINCT_IDS);
+    engine.requestBounded(dimension, boundedBy, maxContributedPartitions, Aggregate.DISTINCT_IDS);
+  }
+
+  /**
+   * Calculates raw and anonymized patient counts from the shared aggregates, and writes the
+   * results to CSV files.
+   * @param aggregates The aggregates requested by {@link #request(AggregationEngine)}.
+   * @param sink Receives the result tables.
+   */
+  void run(AggregationEngine.Aggregates aggregates, ResultSink sink) {
+    PartitionAggregates<K> visits = aggregates.of(dimension);
+    Map<K, Integer> nonPrivateCounts = new HashMap<>();
+    for (K key : visits.keysWithData()) {
+      nonPrivateCounts.put(key, visits.distinctIds(key));
+    }
+
+    sink.write(nonPrivateOutput, header, nonPrivateCounts, ResultSink.ValueType.INTEGER);
+    release(aggregates, sink, epsilon);
+    if (visits.approximateDistinctIds()) {
+      Map<K, Double> errors = new HashMap<>();
+      for (K key : visits.keysWithData()) {
+        errors.put(key, visits.distinctIdsStandardError(key));
+      }
+      sink.write(nonPrivateErrorOutput, errorHeader, errors, ResultSink.ValueType.DECIMAL);
+    }
+  }
+
+  /**
+   * Selects the partitions to release and calculates their anonymized patient counts at the
+   * given privacy budget, and writes them to the private output file.
+   * @param aggregates The aggregates requested by {@link #request(AggregationEngine)}.
+   * @param sink Receives the result table.
+   * @param epsilon The privacy budget spent on the selection and counts together.
+   */
+  void release(AggregationEngine.Aggregates aggregates, ResultSink sink, double epsilon) {
+    PartitionAggregates<K> boundedVisits = aggregates.bounded(dimension, boundedBy, maxContributedPartitions);
+    List<K> keys = new PartitionSelection(epsilon / 2, DELTA, maxContributedPartitions).select(boundedVisits);
+
+    long[] counts = new long[keys.size()];
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = boundedVisits.distinctIds(keys.get(i));
+    }
+    // Each patient is counted at most once per partition
+    long[] privateCounts = new BatchedRelease(epsilon / 2, maxContributedPartitions).counts(counts, 1);
+
+    Map<K, Integer> privateCountsPerKey = new HashMap<>();
+    for (int i = 0; i < counts.length; i++) {
+      privateCountsPerKey.put(keys.get(i), (int) privateCounts[i]);
+    }
+    sink.write(privateOutput, header, privateCountsPerKey, ResultSink.ValueType.INTEGER);
+  }
+}
@@ -1,10 +1,5 @@
 package dp.src;
 
-import com.google.privacy.differentialprivacy.*;
-
-import util.src.PatientRecord;
-
-import java.nio.file.Path;
 import java.time.Year;
 import java.util.*;
 
@@ -16,58 +11,70 @@ import java.util.*;
 public class PatientsCountPerYear {
     private static final String NON_PRIVATE_OUTPUT = "dp/out/non_private_counts_per_year.csv";
     private static final String PRIVATE_OUTPUT = "dp/out/private_counts_per_year.csv";
+    private static final String HEADER = "Year, Patient Count";
+    private static final String NON_PRIVATE_ERROR_OUTPUT = "dp/out/non_private_counts_per_year_std_error.csv";
+    private static final String ERROR_HEADER = "Year, Patient Count Std Error";
 
-    private static final double LN_X = Math.log(1.005); // Epsilon value for differential privacy
+    static final double LN_X = Math.log(1.005); // Epsilon value for differential privacy
     private static final int MAX_CONTRIBUTED_YEARS = 2; // max number of years a patient can contribute to
     
 
-    public static void run(Path path){ 
-        VisitsForYear visitsForYear = IOUtils.readYearlyVisits(path);
-        
-        Map<Year, Integer> nonPrivatePtntCnt = getNonPrivatePatientCount(visitsForYear); // calc non-private patient/year counts
-        Map<Year, Integer> privatePtntCnt = getPrivatePatientCount(visitsForYear); // calc private patient/year counts
+    // Requests the aggregates this job reads
+    static void request(AggregationEngine engine) {
+        engine.request(Dimension.YEAR, Aggregate.DISTINCT_IDS);
+        engine.requestBounded(Dimension.YEAR, MAX_CONTRIBUTED_YEARS, Aggregate.DISTINCT_IDS);
+    }
+
+    public static void run(AggregationEngine.Aggregates aggregates, ResultSink sink) {
+        PartitionAggregates<Year> visits = aggregates.of(Dimension.YEAR);
+        Map<Year, Integer> nonPrivatePtntCnt = getNonPrivatePatientCount(visits); // Calculate non-private patient counts per year
 
-        IOUtils.writeCountPerYear(nonPrivatePtntCnt, NON_PRIVATE_OUTPUT); // Write non-private counts to file
-        IOUtils.writeCountPerYear(privatePtntCnt, PRIVATE_OUTPUT); // Write private counts to file
+        sink.write(NON_PRIVATE_OUTPUT, HEADER, nonPrivatePtntCnt, ResultSink.ValueType.INTEGER); // Write non-private counts to file
+        release(aggregates, sink, LN_X); // Write private counts to file
+        if (visits.approximateDistinctIds()) { // Approximate counts are written with their standard errors
+            sink.write(NON_PRIVATE_ERROR_OUTPUT, ERROR_HEADER, getNonPrivateCountErrors(visits), ResultSink.ValueType.DECIMAL);
+        }
+    }
 
+    // Releases anonymized patient counts per year at the given privacy budget and writes them to the private output file
+    static void release(AggregationEngine.Aggregates aggregates, ResultSink sink, double epsilon) {
+        Map<Year, Integer> privatePtntCnt = getPrivatePatientCount(aggregates.bounded(Dimension.YEAR, MAX_CONTRIBUTED_YEARS), epsilon);
+        sink.write(PRIVATE_OUTPUT, HEADER, privatePtntCnt, ResultSink.ValueType.INTEGER);
     }
-    
-    // returns a map of Year to the raw number of unique patients admitted in that year 
-    static Map<Year, Integer> getNonPrivatePatientCount(VisitsForYear visits) {
-        Map<Year, Integer> ptntCntPerYear = new HashMap<>();
-        for (Year year : visits.getYearsWithData()) {
-            Set<Integer> uniquePatients = new HashSet<>();
-            for (PatientRecord record : visits.getVisitsForYear(year)) {
-                uniquePatients.add(record.id);
-            }
-            ptntCntPerYear.put(year, uniquePatients.size());
+
+    // returns a map of year to the raw number of unique patients
+    static Map<Year, Integer> getNonPrivatePatientCount(PartitionAggregates<Year> visits) {
+        Map<Year, Integer> ptntCnt = new HashMap<>();
+        for (Year year : visits.keysWithData()) {
+            ptntCnt.put(year, visits.distinctIds(year)); // Store the count of unique patients for the year
         }
-        return ptntCntPerYear;
+        return ptntCnt;
+    }
 
+    // returns a map of year to the standard error of its approximate number of unique patients
+    static Map<Year, Double> getNonPrivateCountErrors(PartitionAggregates<Year> visits) {
+        Map<Year, Double> errors = new HashMap<>();
+        for (Year year : visits.keysWithData()) {
+            errors.put(year, visits.distinctIdsStandardError(year));
+        }
+        return errors;
     }
-    // returns a map of Year to the anonymized number of unique patients admitted in that year
-    // data is anonymized using differential privacy
-    static Map<Year, Integer> getPrivatePatientCount(VisitsForYear visits){
-        Map<Year, Integer> privateCnt = new HashMap<>();
-        
-        // Bound the contribution: limit each patient to MAX_CONTRIBUTED_YEARS 
-        VisitsForYear boundedVisits = ContributionBoundingUtils.boundContributedYears(visits, MAX_CONTRIBUTED_YEARS);
-        
-        for (Year year : boundedVisits.getYearsWithData()){
-            Set<Integer> uniquePtnt = new HashSet<>();
-            for (PatientRecord record : boundedVisits.getVisitsForYear(year)) {
-                uniquePtnt.add(record.id);
-            }
 
-            Count dpCount = Count.builder()
-                .epsilon(LN_X)
-                .maxPartitionsContributed(MAX_CONTRIBUTED_YEARS)
-                .build();
-            
-            dpCount.incrementBy(uniquePtnt.size());
-            privateCnt.put(year, (int) dpCount.computeResult());
+    // returns a map of year to the anonymized number of unique patients
+    // boundedVisits only holds visits left after limiting each patient to MAX_CONTRIBUTED_YEARS partitions
+    static Map<Year, Integer> getPrivatePatientCount(PartitionAggregates<Year> boundedVisits, double epsilon) {
+        List<Year> keys = new ArrayList<>(boundedVisits.keysWithData());
+        long[] counts = new long[keys.size()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = boundedVisits.distinctIds(keys.get(i)); // The number of unique patients in the year
+        }
+        // Each patient is counted at most once per year
+        long[] privateCounts = new BatchedRelease(epsilon, MAX_CONTRIBUTED_YEARS).counts(counts, 1);
+
+        Map<Year, Integer> privateCnt = new HashMap<>();
+        for (int i = 0; i < counts.length; i++) {
+            privateCnt.put(keys.get(i), (int) privateCounts[i]);
         }
         return privateCnt;
     }
-
-}
\ No newline at end of file
+}
@@ -0,0 +1,251 @@
+package dp.src;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A mergeable sketch of the distribution of real values, such as billing amounts, that
+ * answers quantiles with a bounded relative error. Values are counted in logarithmic
+ * buckets: bucket {@code i} holds the magnitudes in {@code (gamma^(i-1), gamma^i]} with
+ * {@code gamma = (1 + a) / (1 - a)} for a relative accuracy {@code a}, and is represented
+ * by the one value within a relative distance {@code a} of all of them. Positive and
+ * negative values are counted in buckets of their own, and magnitudes below
+ * {@link #MIN_MAGNITUDE} count as zero.
+ *
+ * Adding a value costs O(1) and a quantile O(buckets), where the number of buckets grows
+ * with the logarithm of the ratio of the largest to the smallest magnitude rather than
+ * with the number of values: about 1100 buckets cover 1 to 50000 at 0.5%. Sketches of the
+ * same accuracy merge by adding their bucket counts, so partial sketches of a stream
+ * combine into the sketch of the whole, e.g. across incremental runs.
+ */
+final class QuantileSketch {
+
+  /** The relative accuracy of the sketches of the DP jobs. */
+  static final double DEFAULT_ACCURACY = 0.005;
+
+  /** Magnitudes below this are counted as zero. */
+  static final double MIN_MAGNITUDE = 1e-6;
+
+  private final double accuracy;
+  private final double gamma;
+  private final double logGamma;
+  private final Buckets positive = new Buckets();
+  private final Buckets negative = new Buckets();
+  private long zeros = 0;
+  private long count = 0;
+
+  /** Creates an empty sketch with the {@link #DEFAULT_ACCURACY}. */
+  QuantileSketch() {
+    this(DEFAULT_ACCURACY);
+  }
+
+  /**
+   * Creates an empty sketch.
+   *
+   * @param accuracy The relative error of every quantile, in (0, 1).
+   * @throws IllegalArgumentException if the accuracy is out of range.
+   */
+  QuantileSketch(double accuracy) {
+    if (!(accuracy > 0 && accuracy < 1)) {
+      throw new IllegalArgumentException("Relative accuracy must be in (0, 1): " + accuracy);
+    }
+    this.accuracy = accuracy;
+    this.gamma = (1 + accuracy) / (1 - accuracy);
+    this.logGamma = Math.log(gamma);
+  }
+
+  /** Adds a value; NaN values are ignored. */
+  void add(double value) {
+    if (Double.isNaN(value)) {
+      return;
+    }
+    if (value >= MIN_MAGNITUDE) {
+      positive.add(index(value), 1);
+    } else if (value <= -MIN_MAGNITUDE) {
+      negative.add(index(-value), 1);
+    } else {
+      zeros++;
+    }
+    count++;
+  }
+
+  /**
+   * Adds the values of another sketch to this one.
+   *
+   * @throws IllegalArgumentException if the sketches have different accuracies.
+   */
+  void merge(QuantileSketch other) {
+    if (other.accuracy != accuracy) {
+      throw new IllegalArgumentException(
+          "Cannot merge sketches of accuracy " + other.accuracy + " into accuracy " + accuracy);
+    }
+    positive.merge(other.positive);
+    negative.merge(other.negative);
+    zeros += other.zeros;
+    count += other.count;
+  }
+
+  /** Returns the number of values added. */
+  long count() {
+    return count;
+  }
+
+  /** Returns the relative error of every quantile. */
+  double accuracy() {
+    return accuracy;
+  }
+
+  /**
+   * Returns the quantile of the values, interpolated linearly between the estimates of the two
+   * values around position {@code q * (count() - 1)} of the values in ascending order, as
+   * {@link util.src.IntHistogram#quantile(double)} does for exact values. Each estimate is
+   * within the relative accuracy of the value it stands for.
+   *
+   * @param q The quantile, from 0 to 1.
+   * @return The quantile, or NaN if no value was added.
+   * @throws IllegalArgumentException if the quantile is not in [0, 1].
+   */
+  double quantile(double q) {
+    if (!(q >= 0 && q <= 1)) {
+      throw new IllegalArgumentException("Quantile must be in [0, 1]: " + q);
+    }
+    if (count == 0) {
+      return Double.NaN;
+    }
+    double position = q * (count - 1);
+    long lower = (long) Math.floor(position);
+    double lowerValue = valueAt(lower);
+    double upperValue = lower == position ? lowerValue : valueAt(lower + 1);
+    return lowerValue + (position - lower) * (upperValue - lowerValue);
+  }
+
+  /**
+   * Writes the sketch: its accuracy, the number of zeros, then the positive and the negative
+   * buckets as their first index, their number and every count.
+   *
+   * @throws IOException if the output cannot be written.
+   */
+  void writeTo(DataOutput out) throws IOException {
+    out.writeDouble(accuracy);
+    out.writeLong(zeros);
+    positive.writeTo(out);
+    negative.writeTo(out);
+  }
+
+  /**
+   * Reads a sketch written by {@link #writeTo(DataOutput)}.
+   *
+   * @throws IOException if the input cannot be read.
+   */
+  static QuantileSketch readFrom(DataInput in) throws IOException {
+    QuantileSketch sketch;
+    try {
+      sketch = new QuantileSketch(in.readDouble());
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Invalid sketch", e);
+    }
+    sketch.zeros = in.readLong();
+    sketch.positive.readFrom(in);
+    sketch.negative.readFrom(in);
+    sketch.count = sketch.zeros + sketch.positive.total + sketch.negative.total;
+    return sketch;
+  }
+
+  /** Returns the estimate of the value at the given position of the values in ascending order. */
+  private double valueAt(long rank) {
+    // Negative values come first, largest magnitude first.
+    if (rank < negative.total) {
+      return -value(negative.indexAtRank(negative.total - 1 - rank));
+    }
+    rank -= negative.total;
+    if (rank < zeros) {
+      return 0;
+    }
+    return value(positive.indexAtRank(rank - zeros));
+  }
+
+  /** Returns the bucket index of a magnitude; infinite magnitudes share the bucket of the largest finite one. */
+  private int index(double magnitude) {
+    return (int) Math.ceil(Math.log(Math.min(magnitude, Double.MAX_VALUE)) / logGamma);
+  }
+
+  /** Returns the value representing the bucket with the given index. */
+  private double value(int index) {
+    return 2 * Math.pow(gamma, index) / (gamma + 1);
+  }
+
+  /** The counts of a range of bucket indices, grown as values arrive. */
+  private static final class Buckets {
+    private long[] counts = new long[0];
+    private int offset = 0;
+    private long total = 0;
+
+    void add(int index, long times) {
+      if (index < offset || index >= offset + counts.length) {
+        cover(index);
+      }
+      counts[index - offset] += times;
+      total += times;
+    }
+
+    void merge(Buckets other) {
+      for (int i = 0; i < other.counts.length; i++) {
+        if (other.counts[i] != 0) {
+          add(other.offset + i, other.counts[i]);
+        }
+      }
+    }
+
+    /** Returns the index of the bucket holding the value at the given position, in ascending order. */
+    int indexAtRank(long rank) {
+      long below = 0;
+      for (int i = 0; ; i++) {
+        below += counts[i];
+        if (below > rank) {
+          return offset + i;
+        }
+      }
+    }
+
+    void writeTo(DataOutput out) throws IOException {
+      out.writeInt(offset);
+      out.writeInt(counts.length);
+      for (long bucket : counts) {
+        out.writeLong(bucket);
+      }
+    }
+
+    void readFrom(DataInput in) throws IOException {
+      int first = in.readInt();
+      int length = in.readInt();
+      if (length < 0 || (long) first + length > Integer.MAX_VALUE) {
+        throw new IOException("Invalid sketch buckets: " + length + " from " + first);
+      }
+      for (int i = 0; i < length; i++) {
+        add(first + i, in.readLong());
+      }
+    }
+
+    /** Grows the counts to cover the given index, with room to spare on that side. */
+    private void cover(int index) {
+      if (counts.length == 0) {
+        counts = new long[64];
+        offset = index - 32;
+        return;
+      }
+      int from = Math.min(offset, index);
+      int to = Math.max(offset + counts.length, index + 1);
+      int slack = to - from;
+      if (index < offset) {
+        from -= slack;
+      } else {
+        to += slack;
+      }
+      long[] grown = new long[to - from];
+      System.arraycopy(counts, 0, grown, offset - from, counts.length);
+      counts = grown;
+      offset = from;
+    }
+  }
+}
@@ -0,0 +1,123 @@
+package dp.src;
+
+import com.google.privacy.differentialprivacy.BoundedQuantiles;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Calculates the raw and anonymized quantiles of a measure per partition of a dimension,
+ * e.g. the quartiles of the age per condition, and writes them to
+ * {@code dp/out/non_private_<measure>_quantiles_per_<name>.csv} and
+ * {@code dp/out/private_<measure>_quantiles_per_<name>.csv}. Every row holds one quantile
+ * of one partition, keyed by the partition and the quantile, e.g. {@code Cancer|p50}.
+ *
+ * Both are read from aggregates of the engine's single scan over the visits. The raw
+ * quantiles come from the {@link Aggregate#QUANTILES} summary of every partition, so each
+ * one takes time in the range of the values rather than a sort of them. The anonymized
+ * quantiles are computed with the library's {@code BoundedQuantiles}, fed the clamped values
+ * left after bounding; all quantiles of a partition are read from the same noisy quantile
+ * tree, so they share the privacy budget of the partition.
+ *
+ * @param <K> The type of the partition keys.
+ */
+class QuantilesPerKey<K> {
+  static final double LN_X = Math.log(3);
+
+  /** The quantiles released for every partition. */
+  static final double[] RANKS = {0.1, 0.25, 0.5, 0.75, 0.9};
+
+  private final Dimension<K> dimension;
+  private final Measure measure;
+  private final int maxPartitionContributions;
+  private final int maxContributionsPerPartition;
+  private final String nonPrivateOutput;
+  private final String privateOutput;
+  private final String header;
+
+  /**
+   * Creates the job for one measure and dimension.
+   * @param dimension The dimension to compute quantiles per.
+   * @param name The name of the dimension in the output file names, e.g. {@code "condition"}.
+   * @param column The name of the key column of the output, e.g. {@code "Condition"}.
+   * @param measure The measure to compute quantiles of.
+   * @param maxPartitionContributions The maximum number of partitions a single patient contributes to.
+   * @param maxContributionsPerPartition The maximum number of visits of a single patient per partition.
+   */
+  QuantilesPerKey(Dimension<K> dimension, String name, String column, Measure measure,
+      int maxPartitionContributions, int maxContributionsPerPartition) {
+    this.dimension = dimension;
+    this.measure = measure;
+    this.maxPartitionContributions = maxPartitionContributions;
+    this.maxContributionsPerPartition = maxContributionsPerPartition;
+    String measureName = measure.name().toLowerCase(Locale.ROOT);
+    this.nonPrivateOutput = "dp/out/non_private_" + measureName + "_quantiles_per_" + name + ".csv";
+    this.privateOutput = "dp/out/private_" + measureName + "_quantiles_per_" + name + ".csv";
+    this.header = column + CellDictionary.SEPARATOR + "Quantile, "
+        + measureName.substring(0, 1).toUpperCase(Locale.ROOT) + measureName.substring(1);
+  }
+
+  /**
+   * Requests the aggregates this job reads.
+   * @param engine The engine computing the aggregates of every job.
+   */
+  void request(AggregationEngine engine) {
+    engine.request(dimension, measure, Aggregate.QUANTILES);
+    engine.requestBounded(dimension, maxPartitionContributions, maxContributionsPerPartition,
+        measure, Aggregate.CLAMPED_VALUES);
+  }
+
+  /**
+   * Calculates raw and anonymized quantiles from the shared aggregates, and writes the results
+   * to CSV files.
+   * @param aggregates The aggregates requested by {@link #request(AggregationEngine)}.
+   * @param sink Receives the result tables.
+   */
+  void run(AggregationEngine.Aggregates aggregates, ResultSink sink) {
+    PartitionAggregates<K> visits = aggregates.of(dimension);
+    Map<String, Double> nonPrivateQuantiles = new LinkedHashMap<>();
+    for (K key : visits.keysWithData()) {
+      for (double rank : RANKS) {
+        nonPrivateQuantiles.put(row(key, rank), visits.quantile(key, measure, rank));
+      }
+    }
+
+    sink.write(nonPrivateOutput, header, nonPrivateQuantiles, ResultSink.ValueType.DECIMAL);
+    release(aggregates, sink, LN_X);
+  }
+
+  /**
+   * Calculates anonymized quantiles at the given privacy budget, and writes them to the private
+   * output file.
+   * @param aggregates The aggregates requested by {@link #request(AggregationEngine)}.
+   * @param sink Receives the result table.
+   * @param epsilon The privacy budget spent on each partition.
+   */
+  void release(AggregationEngine.Aggregates aggregates, ResultSink sink, double epsilon) {
+    PartitionAggregates<K> boundedVisits =
+        aggregates.bounded(dimension, maxPartitionContributions, maxContributionsPerPartition);
+    Map<String, Double> privateQuantiles = new LinkedHashMap<>();
+    for (K key : boundedVisits.keysWithData()) {
+      BoundedQuantiles quantiles = BoundedQuantiles.builder()
+          .epsilon(epsilon)
+          .maxPartitionsContributed(maxPartitionContributions)
+          .maxContributionsPerPartition(maxContributionsPerPartition)
+          .lower(measure.lower)
+          .upper(measure.upper)
+          .build();
+      for (double value : boundedVisits.clampedValues(key, measure)) {
+        quantiles.addEntry(value);
+      }
+      for (double rank : RANKS) {
+        privateQuantiles.put(row(key, rank), quantiles.computeResult(rank));
+      }
+    }
+    sink.write(privateOutput, header, privateQuantiles, ResultSink.ValueType.DECIMAL);
+  }
+
+  /** Returns the key of the row of a quantile of a partition, e.g. {@code Cancer|p50}. */
+  private static String row(Object key, double rank) {
+    return key + CellDictionary.SEPARATOR + "p" + Math.round(rank * 100);
+  }
+}
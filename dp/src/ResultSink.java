@@ -0,0 +1,327 @@
+package dp.src;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Collects the result tables of the DP jobs and writes them as CSV.
+ * Every table is a set of typed rows: a partition key, a numeric value and the
+ * {@link ValueType} that decides how the value is rendered. Rows are encoded
+ * straight into a byte buffer with hand-rolled number formatting that produces
+ * the same text as {@code %d} and {@code %.2f}, and each file is written with a
+ * single call.
+ *
+ * By default each table goes to its own file. A sink created with
+ * {@link #combined(Path)} instead collects every table into a single long-format
+ * CSV file with one "Output,Key,Value" row per result, which is written when the
+ * sink is closed. Tables appear in the combined file in order of their output
+ * name, whatever order they were written in.
+ *
+ * A sink created with {@link #inMemory()} writes no files and keeps every table for
+ * the caller to read back with {@link #table(String)}.
+ *
+ * A {@link #tagged(String) tagged} view of a sink appends a tag to the name of every
+ * table written through it, so that the same table can be written once per setting,
+ * e.g. once per privacy budget of an epsilon sweep.
+ *
+ * A sink may be shared by jobs running on different threads.
+ */
+class ResultSink implements AutoCloseable {
+
+  /** How the value column of a table is rendered. */
+  enum ValueType {
+    /** Whole numbers, rendered like {@code %d}. */
+    INTEGER,
+    /** Real numbers, rendered with two decimals like {@code %.2f}. */
+    DECIMAL
+  }
+
+  /** Bytes reserved per row up front; the buffer grows if a row needs more. */
+  private static final int ROW_SIZE_ESTIMATE = 32;
+
+  /** Magnitudes below this are scaled to cents in a double without losing the rounding decision. */
+  private static final double FAST_DECIMAL_LIMIT = 1e9;
+
+  private final Path combinedFile;
+  /** The encoded rows of each table of the combined file, by output name. */
+  private final Map<String, Encoder> combined;
+  /** The rows of each table of an in-memory sink, by output name. */
+  private final Map<String, Map<?, ? extends Number>> tables;
+  /** Appended to the output name of every table written through this sink. */
+  private final String tag;
+
+  private ResultSink(Path combinedFile) {
+    this(combinedFile, combinedFile == null ? null : new TreeMap<>(), null, "");
+  }
+
+  private ResultSink(Path combinedFile, Map<String, Encoder> combined,
+      Map<String, Map<?, ? extends Number>> tables, String tag) {
+    this.combinedFile = combinedFile;
+    this.combined = combined;
+    this.tables = tables;
+    this.tag = tag;
+  }
+
+  /** Returns a sink that writes every table to its own file. */
+  static ResultSink perFile() {
+    return new ResultSink(null);
+  }
+
+  /** Returns a sink that collects every table into the given file. */
+  static ResultSink combined(Path file) {
+    return new ResultSink(file);
+  }
+
+  /** Returns a sink that keeps every table in memory instead of writing it. */
+  static ResultSink inMemory() {
+    return new ResultSink(null, null, new ConcurrentHashMap<>(), "");
+  }
+
+  /**
+   * Returns the rows of a table written to an in-memory sink.
+   *
+   * @param output The output name of the table: its file name without extension, with any tag.
+   * @return The rows as written, or null if no such table was written.
+   * @throws IllegalStateException if this sink does not keep its tables in memory.
+   */
+  Map<?, ? extends Number> table(String output) {
+    if (tables == null) {
+      throw new IllegalStateException("Only an in-memory sink keeps its tables");
+    }
+    return tables.get(output);
+  }
+
+  /** Returns the output names of the tables written to an in-memory sink. */
+  Set<String> outputs() {
+    if (tables == null) {
+      throw new IllegalStateException("Only an in-memory sink keeps its tables");
+    }
+    return tables.keySet();
+  }
+
+  /**
+   * Returns a view of this sink that appends the given tag to the output name of every
+   * table, before the file extension. The view writes its tables to this sink's files and
+   * does not need to be closed itself.
+   *
+   * @param tag The tag, e.g. {@code "_eps0.5"}.
+   */
+  ResultSink tagged(String tag) {
+    return new ResultSink(combinedFile, combined, tables, this.tag + tag);
+  }
+
+  /**
+   * Writes a result table. Rows are written in the iteration order of the map.
+   *
+   * @param file The path of the table's own output CSV file, before any tag is appended.
+   * @param header The header line of the table, without a line break.
+   * @param rows The partition keys and their values.
+   * @param type How the values are rendered.
+   * @throws IllegalStateException if the file cannot be written.
+   */
+  void write(String file, String header, Map<?, ? extends Number> rows, ValueType type) {
+    if (!tag.isEmpty()) {
+      file = withTag(file);
+    }
+    if (tables != null) {
+      tables.put(outputName(file), rows);
+      return;
+    }
+    if (combined != null) {
+      String output = outputName(file);
+      Encoder encoder = new Encoder(rows.size() * (output.length() + ROW_SIZE_ESTIMATE));
+      rows.forEach((key, value) -> {
+        encoder.append(output).append(',');
+        appendRow(encoder, key, value, type);
+      });
+      synchronized (combined) {
+        combined.put(output, encoder);
+      }
+      return;
+    }
+
+    Encoder encoder = new Encoder(header.length() + 1 + rows.size() * ROW_SIZE_ESTIMATE);
+    encoder.append(header).append('\n');
+    rows.forEach((key, value) -> appendRow(encoder, key, value, type));
+    encoder.writeTo(Paths.get(file));
+  }
+
+  /**
+   * Writes the combined output file, if this sink collects one and is not a tagged view.
+   *
+   * @throws IllegalStateException if the file cannot be written.
+   */
+  @Override
+  public void close() {
+    if (combined == null || !tag.isEmpty()) {
+      return;
+    }
+    synchronized (combined) {
+      Encoder file = new Encoder(1024);
+      file.append("Output,Key,Value\n");
+      combined.values().forEach(file::append);
+      file.writeTo(combinedFile);
+    }
+  }
+
+  private static void appendRow(Encoder encoder, Object key, Number value, ValueType type) {
+    encoder.append(String.valueOf(key)).append(',');
+    if (type == ValueType.INTEGER) {
+      encoder.appendLong(value.longValue());
+    } else {
+      encoder.appendDecimal(value.doubleValue());
+    }
+    encoder.append('\n');
+  }
+
+  /** Inserts the tag into the file name of the given output path, before its extension. */
+  private String withTag(String file) {
+    int extension = file.lastIndexOf('.');
+    if (extension <= file.lastIndexOf('/') + 1) {
+      return file + tag;
+    }
+    return file.substring(0, extension) + tag + file.substring(extension);
+  }
+
+  /** Returns the file name of the given output path without its extension. */
+  private static String outputName(String file) {
+    String name = Paths.get(file).getFileName().toString();
+    int extension = name.lastIndexOf('.');
+    return extension > 0 ? name.substring(0, extension) : name;
+  }
+
+  /** A growable byte buffer that encodes text and numbers without intermediate strings. */
+  private static class Encoder {
+    private byte[] buffer;
+    private int size = 0;
+
+    Encoder(int capacity) {
+      buffer = new byte[Math.max(capacity, 16)];
+    }
+
+    Encoder append(char c) {
+      ensureCapacity(1);
+      buffer[size++] = (byte) c;
+      return this;
+    }
+
+    Encoder append(Encoder other) {
+      ensureCapacity(other.size);
+      System.arraycopy(other.buffer, 0, buffer, size, other.size);
+      size += other.size;
+      return this;
+    }
+
+    Encoder append(String text) {
+      int length = text.length();
+      ensureCapacity(length);
+      for (int i = 0; i < length; i++) {
+        char c = text.charAt(i);
+        if (c >= 0x80) {
+          // Not plain ASCII, let the charset encoder deal with the rest.
+          byte[] encoded = text.substring(i).getBytes(StandardCharsets.UTF_8);
+          ensureCapacity(encoded.length);
+          System.arraycopy(encoded, 0, buffer, size, encoded.length);
+          size += encoded.length;
+          return this;
+        }
+        buffer[size++] = (byte) c;
+      }
+      return this;
+    }
+
+    /** Appends the value as {@code %d} would. */
+    Encoder appendLong(long value) {
+      if (value == Long.MIN_VALUE) {
+        return append(Long.toString(value));
+      }
+      ensureCapacity(20);
+      if (value < 0) {
+        buffer[size++] = '-';
+        value = -value;
+      }
+      int end = size + digitCount(value);
+      for (int i = end - 1; i >= size; i--) {
+        buffer[i] = (byte) ('0' + value % 10);
+        value /= 10;
+      }
+      size = end;
+      return this;
+    }
+
+    /**
+     * Appends the value as {@code %.2f} would: the shortest decimal representation
+     * of the double rounded half-up to two decimals.
+     */
+    Encoder appendDecimal(double value) {
+      if (Double.isNaN(value)) {
+        return append("NaN");
+      }
+      if (Double.isInfinite(value)) {
+        return append(value > 0 ? "Infinity" : "-Infinity");
+      }
+
+      // The sign is kept for values that round to zero, including -0.0.
+      if (Double.doubleToRawLongBits(value) < 0) {
+        append('-');
+        value = -value;
+      }
+
+      long cents;
+      double scaled = value * 100;
+      double fraction = scaled - Math.floor(scaled);
+      if (value < FAST_DECIMAL_LIMIT && Math.abs(fraction - 0.5) > 1e-3) {
+        cents = Math.round(scaled);
+      } else {
+        // Close to a tie or too large to scale exactly: round the decimal digits themselves.
+        BigDecimal rounded = new BigDecimal(Double.toString(value)).setScale(2, RoundingMode.HALF_UP);
+        if (rounded.precision() > 18) {
+          return append(rounded.toPlainString());
+        }
+        cents = rounded.unscaledValue().longValue();
+      }
+
+      appendLong(cents / 100);
+      ensureCapacity(3);
+      int remainder = (int) (cents % 100);
+      buffer[size++] = '.';
+      buffer[size++] = (byte) ('0' + remainder / 10);
+      buffer[size++] = (byte) ('0' + remainder % 10);
+      return this;
+    }
+
+    void writeTo(Path file) {
+      try (OutputStream out = Files.newOutputStream(file)) {
+        out.write(buffer, 0, size);
+      } catch (IOException e) {
+        throw new IllegalStateException("Failed to write to file: " + file, e);
+      }
+    }
+
+    private void ensureCapacity(int bytes) {
+      if (size + bytes > buffer.length) {
+        buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + bytes));
+      }
+    }
+
+    private static int digitCount(long value) {
+      int digits = 1;
+      while (value >= 10) {
+        value /= 10;
+        digits++;
+      }
+      return digits;
+    }
+  }
+}
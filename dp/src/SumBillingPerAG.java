@@ -1,11 +1,5 @@
 package dp.src;
 
-import com.google.privacy.differentialprivacy.*;
-
-import util.src.PatientRecord;
-
-import java.nio.file.Path;
-import java.time.Year;
 import java.util.*;
 
 /**
@@ -16,91 +10,94 @@ import java.util.*;
 public class SumBillingPerAG {
     private static final String NON_PRIVATE_OUTPUT = "dp/out/non_private_sums_billing_per_AgeGroup.csv";
     private static final String PRIVATE_OUTPUT = "dp/out/private_sums_billing_per_AgeGroup.csv";
+    private static final String HEADER = "Age Group,SumBilling";
 
-    private static final double LN_X = Math.log(1.1);
+    static final double LN_X = Math.log(1.1);
 
     /**
      * The maximum number of different age groups a single patient can contribute to.
      * All contributions to additional age groups will be discarded.
      */
     private static final int MAX_PARTITION_CONTRIBUTIONS = 2;
-    /** Minimum billing amount expected for a single visit. */
-    private static final int MIN_EUROS_SPENT = 0;
-    /** Maximum billing amount expected for a single visit. */
-    private static final int MAX_EUROS_SPENT = 50000;
+
+    /**
+     * The maximum number of visits of a single patient summed per age group.
+     * Additional visits of the patient in that age group will be discarded.
+     */
+    private static final int MAX_CONTRIBUTIONS_PER_PARTITION = 2;
 
     private SumBillingPerAG() { }
 
     /**
-     * Reads patient data for all age groups, calculates raw and anonymized sums of billing amounts
-     * per age group, and writes the results to CSV files.
-     * @param path The path to the input CSV file containing patient records.
+     * Requests the aggregates this job reads.
+     * @param engine The engine computing the aggregates of every job.
+     */
+    static void request(AggregationEngine engine) {
+        engine.request(Dimension.AGE_GROUP, Measure.BILL, Aggregate.SUM);
+        engine.requestBounded(Dimension.AGE_GROUP, MAX_PARTITION_CONTRIBUTIONS, MAX_CONTRIBUTIONS_PER_PARTITION,
+                Measure.BILL, Aggregate.PATIENT_SUMS);
+    }
+
+    /**
+     * Calculates raw and anonymized sums of billing amounts per age group from the shared
+     * aggregates, and writes the results to CSV files.
+     * @param aggregates The aggregates requested by {@link #request(AggregationEngine)}.
+     * @param sink Receives the result tables.
      */
-    public static void run(Path path) {
-        VisitsForAG visitsForAG = IOUtils.readAGVisits(path);
+    public static void run(AggregationEngine.Aggregates aggregates, ResultSink sink) {
+        Map<String, Double> nonPrivateSums = getNonPrivateSums(aggregates.of(Dimension.AGE_GROUP));
 
-        Map<String, Double> nonPrivateSums = getNonPrivateSums(visitsForAG);
-        Map<String, Double> privateSums = getPrivateSums(visitsForAG);
+        sink.write(NON_PRIVATE_OUTPUT, HEADER, nonPrivateSums, ResultSink.ValueType.DECIMAL);
+        release(aggregates, sink, LN_X);
+    }
 
-        IOUtils.writeSumsBillingPerAG(nonPrivateSums, NON_PRIVATE_OUTPUT);
-        IOUtils.writeSumsBillingPerAG(privateSums, PRIVATE_OUTPUT);
+    /**
+     * Calculates anonymized sums of billing amounts per age group
+     * at the given privacy budget, and writes them to the private output file.
+     *
+     * @param aggregates The aggregates requested by {@link #request(AggregationEngine)}.
+     * @param sink Receives the result table.
+     * @param epsilon The privacy budget spent on each partition.
+     */
+    static void release(AggregationEngine.Aggregates aggregates, ResultSink sink, double epsilon) {
+        Map<String, Double> privateSums = getPrivateSums(aggregates.bounded(
+                Dimension.AGE_GROUP, MAX_PARTITION_CONTRIBUTIONS, MAX_CONTRIBUTIONS_PER_PARTITION), epsilon);
+        sink.write(PRIVATE_OUTPUT, HEADER, privateSums, ResultSink.ValueType.DECIMAL);
     }
 
     /** Returns the total raw billing amount for each age group. */
-    static Map<String, Double> getNonPrivateSums(VisitsForAG visits) {
+    static Map<String, Double> getNonPrivateSums(PartitionAggregates<String> visits) {
         Map<String, Double> sumsPerAG = new HashMap<>();
-        for (String AG : visits.getAGWithData()) {
-            double sum = 0;
-            for (PatientRecord r : visits.getVisitsForAG(AG)) {
-                sum += r.bill;
-            }
-            sumsPerAG.put(AG, sum);
+        for (String AG : visits.keysWithData()) {
+            sumsPerAG.put(AG, visits.sum(AG, Measure.BILL));
         }
         return sumsPerAG;
     }
 
-    /** Returns the total anonymized billing amount for each age group. */
-    private static Map<String, Double> getPrivateSums(VisitsForAG visits) {
-        Map<String, Double> privateSumsPerAG = new HashMap<>();
-
-        // Pre-process the data set: limit the number of age groups a patient can contribute to.
-        VisitsForAG boundedVisits =
-                ContributionBoundingUtils.boundContributedAG(visits, MAX_PARTITION_CONTRIBUTIONS);
-
-        for (String AG : boundedVisits.getAGWithData()) {
-            BoundedSum dpSum =
-                    BoundedSum.builder()
-                            .epsilon(LN_X)
-                            // The data was pre-processed so that each patient may contribute to at most
-                            // MAX_PARTITION_CONTRIBUTIONS partitions (age groups).
-                            // Note: while the library accepts this limit as a configurable parameter,
-                            // it doesn't pre-process the data to ensure this limit is respected.
-                            // It is the responsibility of the caller to ensure the data passed to the library
-                            // is capped to get the correct privacy guarantee.
-                            .maxPartitionsContributed(MAX_PARTITION_CONTRIBUTIONS)
-                            // BoundedSum will clamp the input values to these bounds.
-                            .lower(MIN_EUROS_SPENT)
-                            .upper(MAX_EUROS_SPENT)
-                            .build();
-
-
-            // For each patient, pre-aggregate their spending for the Age Group.
-            Map<Integer, Double> patientToAGSpending = new HashMap<>();
-            for (PatientRecord r : boundedVisits.getVisitsForAG(AG)) {
-                int id = r.id;
-                if (patientToAGSpending.containsKey(id)) {
-                    double newAmount = patientToAGSpending.get(id) + r.bill;
-                    patientToAGSpending.put(id, newAmount);
-                } else {
-                    patientToAGSpending.put(id, (double) r.bill);
-                }
+    /**
+     * Returns the total anonymized billing amount for each age group.
+     * @param boundedVisits Aggregates over visits where each patient contributes to at most
+     *     {@link #MAX_PARTITION_CONTRIBUTIONS} age groups and {@link #MAX_CONTRIBUTIONS_PER_PARTITION}
+     *     visits per age group, summed per patient.
+     */
+    private static Map<String, Double> getPrivateSums(PartitionAggregates<String> boundedVisits, double epsilon) {
+        List<String> keys = new ArrayList<>(boundedVisits.keysWithData());
+        double[] sums = new double[keys.size()];
+        for (int i = 0; i < sums.length; i++) {
+            for (double patientBill : boundedVisits.patientSums(keys.get(i), Measure.BILL)) {
+                sums[i] += patientBill;
             }
+        }
 
-            for (PatientRecord r : boundedVisits.getVisitsForAG(AG)) {
-                dpSum.addEntry(r.bill);
-            }
+        // The data was pre-processed so that each patient may contribute to at most
+        // MAX_PARTITION_CONTRIBUTIONS partitions (age groups), and every patient sum holds at most
+        // MAX_CONTRIBUTIONS_PER_PARTITION clamped bills, so each patient adds one bounded entry per age group.
+        double[] privateSums = new BatchedRelease(epsilon, MAX_PARTITION_CONTRIBUTIONS).sums(sums,
+                MAX_CONTRIBUTIONS_PER_PARTITION * Measure.BILL.lower, MAX_CONTRIBUTIONS_PER_PARTITION * Measure.BILL.upper);
 
-            privateSumsPerAG.put(AG, (double) dpSum.computeResult());
+        Map<String, Double> privateSumsPerAG = new HashMap<>();
+        for (int i = 0; i < sums.length; i++) {
+            privateSumsPerAG.put(keys.get(i), privateSums[i]);
         }
 
         return privateSumsPerAG;
@@ -1,11 +1,8 @@
 package dp.src;
 
-import com.google.privacy.differentialprivacy.*;
-
-import util.src.PatientRecord;
-
-import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -16,91 +13,93 @@ import java.util.Map;
 public class SumBillingPerBG {
   private static final String NON_PRIVATE_OUTPUT = "dp/out/non_private_sums_billing_per_BlooodGroup.csv";
   private static final String PRIVATE_OUTPUT = "dp/out/private_sums_billing_per_BloodGroup.csv";
+  private static final String HEADER = "Blood Group,SumBilling";
 
-  private static final double LN_X = Math.log(1.1); //epsilon value set as ln(1.1)
+  static final double LN_X = Math.log(1.1); //epsilon value set as ln(1.1)
 
   /**
    * The maximum number of different blood groups a single patient can contribute to.
    * All contributions to additional blood groups will be discarded.
    */
   private static final int MAX_PARTITION_CONTRIBUTIONS = 1;
-  /** Minimum billing amount expected for a single visit. */
-  private static final int MIN_EUROS_SPENT = 0;
-  /** Maximum billing amount expected for a single visit. */
-  private static final int MAX_EUROS_SPENT = 50000;
+
+  /**
+   * The maximum number of visits of a single patient summed per blood group.
+   * Additional visits of the patient in that blood group will be discarded.
+   */
+  private static final int MAX_CONTRIBUTIONS_PER_PARTITION = 2;
 
   private SumBillingPerBG() { }
 
   /**
-   * Reads patient data for all blood groups, calculates raw and anonymized sums of billing amounts
-   * per blood group, and writes the results to CSV files.
-   * @param path The path to the input CSV file containing patient records.
+   * Requests the aggregates this job reads.
+   * @param engine The engine computing the aggregates of every job.
    */
-  public static void run(Path path) {
-    VisitsForBG visitsForBG = IOUtils.readBGVisits(path);
+  static void request(AggregationEngine engine) {
+    engine.request(Dimension.BLOOD_TYPE, Measure.BILL, Aggregate.SUM);
+    engine.requestBounded(Dimension.BLOOD_TYPE, MAX_PARTITION_CONTRIBUTIONS, MAX_CONTRIBUTIONS_PER_PARTITION,
+        Measure.BILL, Aggregate.PATIENT_SUMS);
+  }
 
-    Map<String, Integer> nonPrivateSums = getNonPrivateSums(visitsForBG);
-    Map<String, Integer> privateSums = getPrivateSums(visitsForBG);
+  /**
+   * Calculates raw and anonymized sums of billing amounts per blood group from the shared
+   * aggregates, and writes the results to CSV files.
+   * @param aggregates The aggregates requested by {@link #request(AggregationEngine)}.
+   * @param sink Receives the result tables.
+   */
+  public static void run(AggregationEngine.Aggregates aggregates, ResultSink sink) {
+    Map<String, Long> nonPrivateSums = getNonPrivateSums(aggregates.of(Dimension.BLOOD_TYPE));
 
-    IOUtils.writeSumsBillingPerBG(nonPrivateSums, NON_PRIVATE_OUTPUT);
-    IOUtils.writeSumsBillingPerBG(privateSums, PRIVATE_OUTPUT);
+    sink.write(NON_PRIVATE_OUTPUT, HEADER, nonPrivateSums, ResultSink.ValueType.INTEGER);
+    release(aggregates, sink, LN_X);
   }
 
-  /** Returns the total raw billing amount for each blood group. */
-  static Map<String, Integer> getNonPrivateSums(VisitsForBG visits) {
-    Map<String, Integer> sumsPerBG = new HashMap<>();
-    for (String BG : visits.getBGWithData()) {
-      int sum = 0;
-      for (PatientRecord r : visits.getVisitsForBG(BG)) {
-        sum += r.bill;
-      }
-      sumsPerBG.put(BG, sum);
+  /**
+   * Calculates anonymized sums of billing amounts per blood type
+   * at the given privacy budget, and writes them to the private output file.
+   * @param aggregates The aggregates requested by {@link #request(AggregationEngine)}.
+   * @param sink Receives the result table.
+   * @param epsilon The privacy budget spent on each partition.
+   */
+  static void release(AggregationEngine.Aggregates aggregates, ResultSink sink, double epsilon) {
+    Map<String, Integer> privateSums = getPrivateSums(aggregates.bounded(
+        Dimension.BLOOD_TYPE, MAX_PARTITION_CONTRIBUTIONS, MAX_CONTRIBUTIONS_PER_PARTITION), epsilon);
+    sink.write(PRIVATE_OUTPUT, HEADER, privateSums, ResultSink.ValueType.INTEGER);
+  }
+
+  /** Returns the total raw billing amount for each blood group, rounded to whole euros. */
+  static Map<String, Long> getNonPrivateSums(PartitionAggregates<String> visits) {
+    Map<String, Long> sumsPerBG = new HashMap<>();
+    for (String BG : visits.keysWithData()) {
+      sumsPerBG.put(BG, Math.round(visits.sum(BG, Measure.BILL)));
     }
     return sumsPerBG;
   }
 
-  /** Returns the total anonymized billing amount for each blood group. */
-  private static Map<String, Integer> getPrivateSums(VisitsForBG visits) {
-    Map<String, Integer> privateSumsPerBG = new HashMap<>();
-
-    // Pre-process the data set: limit the number of blood groups a patient can contribute to.
-    VisitsForBG boundedVisits =
-            ContributionBoundingUtils.boundContributedBG(visits, MAX_PARTITION_CONTRIBUTIONS);
-
-    for (String BG : boundedVisits.getBGWithData()) {
-      BoundedSum dpSum =
-              BoundedSum.builder()
-                      .epsilon(LN_X)
-                      // The data was pre-processed so that each patient may contribute to at most
-                      // MAX_PARTITION_CONTRIBUTIONS partitions (blood groups).
-                      // Note: while the library accepts this limit as a configurable parameter,
-                      // it doesn't pre-process the data to ensure this limit is respected.
-                      // It is the responsibility of the caller to ensure the data passed to the library
-                      // is capped to get the correct privacy guarantee.
-                      .maxPartitionsContributed(MAX_PARTITION_CONTRIBUTIONS)
-                      // BoundedSum will clamp the input values to these bounds.
-                      .lower(MIN_EUROS_SPENT)
-                      .upper(MAX_EUROS_SPENT)
-                      .build();
-
-
-      // For each patient, pre-aggregate their spending for the Blood Type.
-      Map<Integer, Double> patientToBGSpending = new HashMap<>();
-      for (PatientRecord r : boundedVisits.getVisitsForBG(BG)) {
-        int id = r.id;
-        if (patientToBGSpending.containsKey(id)) {
-          double newAmount = patientToBGSpending.get(id) + r.bill;
-          patientToBGSpending.put(id, newAmount);
-        } else {
-          patientToBGSpending.put(id, (double) r.bill);
-        }
+  /**
+   * Returns the total anonymized billing amount for each blood group.
+   * @param boundedVisits Aggregates over visits where each patient contributes to at most
+   *     {@link #MAX_PARTITION_CONTRIBUTIONS} blood groups and {@link #MAX_CONTRIBUTIONS_PER_PARTITION}
+   *     visits per blood group, summed per patient.
+   */
+  private static Map<String, Integer> getPrivateSums(PartitionAggregates<String> boundedVisits, double epsilon) {
+    List<String> keys = new ArrayList<>(boundedVisits.keysWithData());
+    double[] sums = new double[keys.size()];
+    for (int i = 0; i < sums.length; i++) {
+      for (double patientBill : boundedVisits.patientSums(keys.get(i), Measure.BILL)) {
+        sums[i] += patientBill;
       }
+    }
 
-      for (PatientRecord r : boundedVisits.getVisitsForBG(BG)) {
-        dpSum.addEntry(r.bill);
-      }
+    // The data was pre-processed so that each patient may contribute to at most
+    // MAX_PARTITION_CONTRIBUTIONS partitions (blood groups), and every patient sum holds at most
+    // MAX_CONTRIBUTIONS_PER_PARTITION clamped bills, so each patient adds one bounded entry per blood group.
+    double[] privateSums = new BatchedRelease(epsilon, MAX_PARTITION_CONTRIBUTIONS).sums(sums,
+        MAX_CONTRIBUTIONS_PER_PARTITION * Measure.BILL.lower, MAX_CONTRIBUTIONS_PER_PARTITION * Measure.BILL.upper);
 
-      privateSumsPerBG.put(BG, (int) dpSum.computeResult());
+    Map<String, Integer> privateSumsPerBG = new HashMap<>();
+    for (int i = 0; i < sums.length; i++) {
+      privateSumsPerBG.put(keys.get(i), (int) privateSums[i]);
     }
 
     return privateSumsPerBG;
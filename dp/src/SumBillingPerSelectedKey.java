@@ -0,0 +1,111 @@
+package dp.src;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Calculates the raw and anonymized total billing amount per partition of a dimension
+ * whose keys are not public, such as hospitals, doctors or medications, and writes them to
+ * {@code dp/out/non_private_sums_billing_per_<name>.csv} and
+ * {@code dp/out/private_sums_billing_per_<name>.csv}.
+ *
+ * Which partitions appear in the private output is itself decided privately: the bounded
+ * distinct patient counts first pass a {@link PartitionSelection}, and only the partitions
+ * it keeps are summed. The counts and the sums are read from the same bounded visits, as
+ * bounded views that only differ in their per-partition limit share their bounding. Half of
+ * the privacy budget is spent on the selection and half on the sums.
+ */
+class SumBillingPerSelectedKey {
+  static final double LN_X = Math.log(3);
+
+  /** The probability of failing to hide a patient, spent on selecting the partitions. */
+  static final double DELTA = 1e-5;
+
+  /**
+   * The maximum number of visits of a single patient summed per partition.
+   * Additional visits of the patient to that partition will be discarded.
+   */
+  private static final int MAX_CONTRIBUTIONS_PER_PARTITION = 2;
+
+  private final Dimension<String> dimension;
+  private final int maxPartitionContributions;
+  private final String nonPrivateOutput;
+  private final String privateOutput;
+  private final String header;
+
+  /**
+   * Creates the job for one dimension.
+   * @param dimension The dimension to sum billing amounts per.
+   * @param name The name of the dimension in the output file names, e.g. {@code "hospital"}.
+   * @param column The name of the key column of the output, e.g. {@code "Hospital"}.
+   * @param maxPartitionContributions The maximum number of partitions a single patient contributes to.
+   */
+  SumBillingPerSelectedKey(Dimension<String> dimension, String name, String column, int maxPartitionContributions) {
+    this.dimension = dimension;
+    this.maxPartitionContributions = maxPartitionContributions;
+    this.nonPrivateOutput = "dp/out/non_private_sums_billing_per_" + name + ".csv";
+    this.privateOutput = "dp/out/private_sums_billing_per_" + name + ".csv";
+    this.header = column + ",SumBilling";
+  }
+
+  /**
+   * Requests the aggregates this job reads.
+   * @param engine The engine computing the aggregates of every job.
+   */
+  void request(AggregationEngine engine) {
+    engine.request(dimension, Measure.BILL, Aggregate.SUM);
+    engine.requestBounded(dimension, maxPartitionContributions, Aggregate.DISTINCT_IDS);
+    engine.requestBounded(dimension, maxPartitionContributions, MAX_CONTRIBUTIONS_PER_PARTITION,
+        Measure.BILL, Aggregate.PATIENT_SUMS);
+  }
+
+  /**
+   * Calculates raw and anonymized sums of billing amounts from the shared aggregates, and
+   * writes the results to CSV files.
+   * @param aggregates The aggregates requested by {@link #request(AggregationEngine)}.
+   * @param sink Receives the result tables.
+   */
+  void run(AggregationEngine.Aggregates aggregates, ResultSink sink) {
+    PartitionAggregates<String> visits = aggregates.of(dimension);
+    Map<String, Long> nonPrivateSums = new HashMap<>();
+    for (String key : visits.keysWithData()) {
+      nonPrivateSums.put(key, Math.round(visits.sum(key, Measure.BILL)));
+    }
+
+    sink.write(nonPrivateOutput, header, nonPrivateSums, ResultSink.ValueType.INTEGER);
+    release(aggregates, sink, LN_X);
+  }
+
+  /**
+   * Selects the partitions to release and calculates their anonymized sums of billing amounts
+   * at the given privacy budget, and writes them to the private output file.
+   * @param aggregates The aggregates requested by {@link #request(AggregationEngine)}.
+   * @param sink Receives the result table.
+   * @param epsilon The privacy budget spent on the selection and sums together.
+   */
+  void release(AggregationEngine.Aggregates aggregates, ResultSink sink, double epsilon) {
+    List<String> keys = new PartitionSelection(epsilon / 2, DELTA, maxPartitionContributions)
+        .select(aggregates.bounded(dimension, maxPartitionContributions));
+
+    PartitionAggregates<String> boundedVisits =
+        aggregates.bounded(dimension, maxPartitionContributions, MAX_CONTRIBUTIONS_PER_PARTITION);
+    double[] sums = new double[keys.size()];
+    for (int i = 0; i < sums.length; i++) {
+      for (double patientBill : boundedVisits.patientSums(keys.get(i), Measure.BILL)) {
+        sums[i] += patientBill;
+      }
+    }
+
+    // Every patient sum holds at most MAX_CONTRIBUTIONS_PER_PARTITION clamped bills, so each
+    // patient adds one bounded entry to each of at most maxPartitionContributions partitions.
+    double[] privateSums = new BatchedRelease(epsilon / 2, maxPartitionContributions).sums(sums,
+        MAX_CONTRIBUTIONS_PER_PARTITION * Measure.BILL.lower, MAX_CONTRIBUTIONS_PER_PARTITION * Measure.BILL.upper);
+
+    Map<String, Long> privateSumsPerKey = new HashMap<>();
+    for (int i = 0; i < sums.length; i++) {
+      privateSumsPerKey.put(keys.get(i), Math.round(privateSums[i]));
+    }
+    sink.write(privateOutput, header, privateSumsPerKey, ResultSink.ValueType.INTEGER);
+  }
+}
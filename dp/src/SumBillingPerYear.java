@@ -1,10 +1,5 @@
 package dp.src;
 
-import com.google.privacy.differentialprivacy.*;
-
-import util.src.PatientRecord;
-
-import java.nio.file.Path;
 import java.time.Year;
 import java.util.*;
 
@@ -16,91 +11,93 @@ import java.util.*;
 public class SumBillingPerYear {
   private static final String NON_PRIVATE_OUTPUT = "dp/out/non_private_sums_billing_per_year.csv";
   private static final String PRIVATE_OUTPUT = "dp/out/private_sums_billing_per_year.csv";
+  private static final String HEADER = "Year,SumBilling";
 
-  private static final double LN_X = Math.log(1.05);
+  static final double LN_X = Math.log(1.05);
 
   /**
    * The maximum number of different years a single patient can contribute to.
    * All contributions to additional years will be discarded.
    */
   private static final int MAX_PARTITION_CONTRIBUTIONS = 2;
-  /** Minimum billing amount expected for a single visit. */
-  private static final int MIN_EUROS_SPENT = 0;
-  /** Maximum billing amount expected for a single visit. */
-  private static final int MAX_EUROS_SPENT = 50000;
+
+  /**
+   * The maximum number of visits of a single patient summed per year.
+   * Additional visits of the patient in that year will be discarded.
+   */
+  private static final int MAX_CONTRIBUTIONS_PER_PARTITION = 2;
 
   private SumBillingPerYear() { }
 
   /**
-   * Reads patient data for all years, calculates raw and anonymized sums of billing amounts
-   * per year, and writes the results to CSV files.
-   * @param path The path to the input CSV file containing patient records.
+   * Requests the aggregates this job reads.
+   * @param engine The engine computing the aggregates of every job.
    */
-  public static void run(Path path) {
-    VisitsForYear visitsForYear = IOUtils.readYearlyVisits(path);
+  static void request(AggregationEngine engine) {
+    engine.request(Dimension.YEAR, Measure.BILL, Aggregate.SUM);
+    engine.requestBounded(Dimension.YEAR, MAX_PARTITION_CONTRIBUTIONS, MAX_CONTRIBUTIONS_PER_PARTITION,
+        Measure.BILL, Aggregate.PATIENT_SUMS);
+  }
 
-    Map<Year, Integer> nonPrivateSums = getNonPrivateSums(visitsForYear);
-    Map<Year, Integer> privateSums = getPrivateSums(visitsForYear);
+  /**
+   * Calculates raw and anonymized sums of billing amounts per year from the shared
+   * aggregates, and writes the results to CSV files.
+   * @param aggregates The aggregates requested by {@link #request(AggregationEngine)}.
+   * @param sink Receives the result tables.
+   */
+  public static void run(AggregationEngine.Aggregates aggregates, ResultSink sink) {
+    Map<Year, Long> nonPrivateSums = getNonPrivateSums(aggregates.of(Dimension.YEAR));
 
-    IOUtils.writeSumsBillingPerYear(nonPrivateSums, NON_PRIVATE_OUTPUT);
-    IOUtils.writeSumsBillingPerYear(privateSums, PRIVATE_OUTPUT);
+    sink.write(NON_PRIVATE_OUTPUT, HEADER, nonPrivateSums, ResultSink.ValueType.INTEGER);
+    release(aggregates, sink, LN_X);
   }
 
-  /** Returns the total raw billing amount for each year. */
-  static Map<Year, Integer> getNonPrivateSums(VisitsForYear visits) {
-    Map<Year, Integer> sumsPerYear = new HashMap<>();
-    for (Year y : visits.getYearsWithData()) {
-      int sum = 0;
-      for (PatientRecord r : visits.getVisitsForYear(y)) {
-        sum += r.bill;
-      }
-      sumsPerYear.put(y, sum);
+  /**
+   * Calculates anonymized sums of billing amounts per year
+   * at the given privacy budget, and writes them to the private output file.
+   * @param aggregates The aggregates requested by {@link #request(AggregationEngine)}.
+   * @param sink Receives the result table.
+   * @param epsilon The privacy budget spent on each partition.
+   */
+  static void release(AggregationEngine.Aggregates aggregates, ResultSink sink, double epsilon) {
+    Map<Year, Integer> privateSums = getPrivateSums(aggregates.bounded(
+        Dimension.YEAR, MAX_PARTITION_CONTRIBUTIONS, MAX_CONTRIBUTIONS_PER_PARTITION), epsilon);
+    sink.write(PRIVATE_OUTPUT, HEADER, privateSums, ResultSink.ValueType.INTEGER);
+  }
+
+  /** Returns the total raw billing amount for each year, rounded to whole euros. */
+  static Map<Year, Long> getNonPrivateSums(PartitionAggregates<Year> visits) {
+    Map<Year, Long> sumsPerYear = new HashMap<>();
+    for (Year y : visits.keysWithData()) {
+      sumsPerYear.put(y, Math.round(visits.sum(y, Measure.BILL)));
     }
     return sumsPerYear;
   }
 
-  /** Returns the total anonymized billing amount for each year. */
-  private static Map<Year, Integer> getPrivateSums(VisitsForYear visits) {
-    Map<Year, Integer> privateSumsPerYear = new HashMap<>();
-
-    // Pre-process the data set: limit the number of years a patient can contribute to.
-    VisitsForYear boundedVisits =
-            ContributionBoundingUtils.boundContributedYears(visits, MAX_PARTITION_CONTRIBUTIONS);
-
-    for (Year y : boundedVisits.getYearsWithData()) {
-      BoundedSum dpSum =
-              BoundedSum.builder()
-                      .epsilon(LN_X)
-                      // The data was pre-processed so that each patient may contribute to at most
-                      // MAX_PARTITION_CONTRIBUTIONS partitions (years).
-                      // Note: while the library accepts this limit as a configurable parameter,
-                      // it doesn't pre-process the data to ensure this limit is respected.
-                      // It is the responsibility of the caller to ensure the data passed to the library
-                      // is capped to get the correct privacy guarantee.
-                      .maxPartitionsContributed(MAX_PARTITION_CONTRIBUTIONS)
-                      // BoundedSum will clamp the input values to these bounds.
-                      .lower(MIN_EUROS_SPENT)
-                      .upper(MAX_EUROS_SPENT)
-                      .build();
-
-
-      // For each patient, pre-aggregate their spending for the year.
-      Map<Integer, Double> patientToYearSpending = new HashMap<>();
-      for (PatientRecord r : boundedVisits.getVisitsForYear(y)) {
-        int id = r.id;
-        if (patientToYearSpending.containsKey(id)) {
-          double newAmount = patientToYearSpending.get(id) + r.bill;
-          patientToYearSpending.put(id, newAmount);
-        } else {
-          patientToYearSpending.put(id, (double) r.bill);
-        }
+  /**
+   * Returns the total anonymized billing amount for each year.
+   * @param boundedVisits Aggregates over visits where each patient contributes to at most
+   *     {@link #MAX_PARTITION_CONTRIBUTIONS} years and {@link #MAX_CONTRIBUTIONS_PER_PARTITION}
+   *     visits per year, summed per patient.
+   */
+  private static Map<Year, Integer> getPrivateSums(PartitionAggregates<Year> boundedVisits, double epsilon) {
+    List<Year> keys = new ArrayList<>(boundedVisits.keysWithData());
+    double[] sums = new double[keys.size()];
+    for (int i = 0; i < sums.length; i++) {
+      for (double patientBill : boundedVisits.patientSums(keys.get(i), Measure.BILL)) {
+        sums[i] += patientBill;
       }
+    }
 
-      for (PatientRecord r : boundedVisits.getVisitsForYear(y)) {
-        dpSum.addEntry(r.bill);
-      }
+    // The data was pre-processed so that each patient may contribute to at most
+    // MAX_PARTITION_CONTRIBUTIONS partitions (years), and every patient sum holds at most
+    // MAX_CONTRIBUTIONS_PER_PARTITION clamped bills, so each patient adds one bounded entry per year.
+    double[] privateSums = new BatchedRelease(epsilon, MAX_PARTITION_CONTRIBUTIONS).sums(sums,
+        MAX_CONTRIBUTIONS_PER_PARTITION * Measure.BILL.lower, MAX_CONTRIBUTIONS_PER_PARTITION * Measure.BILL.upper);
 
-      privateSumsPerYear.put(y, (int) dpSum.computeResult());
+    Map<Year, Integer> privateSumsPerYear = new HashMap<>();
+    for (int i = 0; i < sums.length; i++) {
+      privateSumsPerYear.put(keys.get(i), (int) privateSums[i]);
     }
 
     return privateSumsPerYear;
@@ -0,0 +1,256 @@
+package dp.src;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Estimates the error distribution of the private statistics of the DP jobs by Monte-Carlo
+ * simulation. The aggregates are computed once; every trial then releases the private tables
+ * of each job again with fresh noise and compares every released value with the value of the
+ * same partition in the job's non-private table, e.g. {@code private_counts_per_year} with
+ * {@code non_private_counts_per_year}. The non-private tables are computed once per job.
+ * A partition that partition selection leaves out of a release is counted as released with
+ * value zero, so its error is minus its non-private value, and the share of such partitions
+ * is reported as well.
+ *
+ * Trials are independent of each other, so they are split into chunks that run on a
+ * work-stealing pool. Every release draws its noise from its own secure random source, so the
+ * threads do not contend for one.
+ */
+final class UtilityEvaluation {
+
+  /** The default path of the summary table. */
+  static final String OUTPUT = "dp/out/utility_evaluation.csv";
+
+  /** The quantiles of the absolute error that are reported. */
+  static final double[] QUANTILES = {0.5, 0.9, 0.95, 0.99};
+
+  private static final String PRIVATE_PREFIX = "private_";
+  private static final String NON_PRIVATE_PREFIX = "non_private_";
+  private static final String STD_ERROR_SUFFIX = "_std_error";
+
+  /** Chunks of trials per thread, so that threads finishing early can steal work. */
+  private static final int CHUNKS_PER_THREAD = 4;
+
+  /**
+   * The error summary of one private table at one epsilon. Errors are released minus
+   * non-private values, over every trial and partition of the non-private table, including
+   * the partitions missing from a release.
+   *
+   * @param output The output name of the private table.
+   * @param epsilon The privacy budget the table was released with.
+   * @param partitions The number of partitions of the non-private table.
+   * @param suppressed The fraction of partitions missing from the releases, over every trial.
+   * @param trials The number of trials.
+   * @param bias The mean error.
+   * @param rmse The root mean squared error.
+   * @param meanRelativeError The mean absolute error relative to the non-private value, over
+   *     partitions whose non-private value is not zero.
+   * @param errorQuantiles The absolute error at each of {@link #QUANTILES}.
+   */
+  record Summary(String output, double epsilon, int partitions, double suppressed, int trials, double bias,
+      double rmse, double meanRelativeError, double[] errorQuantiles) { }
+
+  /** The errors of one private table, and which partitions were missing from the release, per trial and partition. */
+  private record Statistic(String output, Object[] keys, double[] truth, double[] errors, boolean[] suppressed) { }
+
+  /** The private tables of one job released at one epsilon. */
+  private record Release(Main.Job job, double epsilon, List<Statistic> statistics) {
+
+    /** Releases the tables again and records the errors of the given trial. */
+    void trial(AggregationEngine.Aggregates aggregates, int trial) {
+      ResultSink sink = ResultSink.inMemory();
+      job.release().at(aggregates, sink, epsilon);
+      for (Statistic statistic : statistics) {
+        Map<?, ? extends Number> rows = sink.table(statistic.output());
+        int offset = trial * statistic.keys().length;
+        for (int partition = 0; partition < statistic.keys().length; partition++) {
+          Number released = rows.get(statistic.keys()[partition]);
+          // A partition missing from the release reads as zero to its users, so it is off by its whole value.
+          statistic.suppressed()[offset + partition] = released == null;
+          statistic.errors()[offset + partition] = (released == null ? 0 : released.doubleValue())
+              - statistic.truth()[partition];
+        }
+      }
+    }
+  }
+
+  private UtilityEvaluation() {}
+
+  /**
+   * Runs the given number of trials of every job.
+   *
+   * @param aggregates The aggregates requested by the jobs.
+   * @param jobs The jobs to evaluate.
+   * @param epsilons The privacy budgets to release every job at, or null to release each job
+   *     at its own budget.
+   * @param trials The number of trials per job and epsilon.
+   * @param parallelism The number of threads the trials run on.
+   * @return The summary of every private table at every epsilon, in the order of the jobs.
+   * @throws IllegalStateException if a private table has no non-private counterpart.
+   */
+  static List<Summary> evaluate(AggregationEngine.Aggregates aggregates, Collection<Main.Job> jobs,
+      double[] epsilons, int trials, int parallelism) {
+    if (trials < 1) {
+      throw new IllegalArgumentException("At least one trial is needed: " + trials);
+    }
+
+    List<Release> releases = new ArrayList<>();
+    for (Main.Job job : jobs) {
+      for (double epsilon : epsilons != null ? epsilons : new double[] {job.epsilon()}) {
+        releases.add(new Release(job, epsilon, statistics(aggregates, job, epsilon, trials)));
+      }
+    }
+
+    int chunks = Math.min(trials, parallelism * CHUNKS_PER_THREAD);
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    try {
+      List<ForkJoinTask<?>> tasks = new ArrayList<>();
+      for (int chunk = 0; chunk < chunks; chunk++) {
+        int from = (int) ((long) trials * chunk / chunks);
+        int to = (int) ((long) trials * (chunk + 1) / chunks);
+        // Every trial writes its own slice of the error arrays, so chunks share no state.
+        tasks.add(pool.submit(() -> {
+          for (int trial = from; trial < to; trial++) {
+            for (Release release : releases) {
+              release.trial(aggregates, trial);
+            }
+          }
+        }));
+      }
+      tasks.forEach(ForkJoinTask::join);
+    } finally {
+      pool.shutdown();
+    }
+
+    List<Summary> summaries = new ArrayList<>();
+    for (Release release : releases) {
+      for (Statistic statistic : release.statistics()) {
+        summaries.add(summarize(statistic, release.epsilon(), trials));
+      }
+    }
+    return summaries;
+  }
+
+  /**
+   * Writes the summaries as a CSV table.
+   *
+   * @throws IllegalStateException if the file cannot be written.
+   */
+  static void write(List<Summary> summaries, Path file) {
+    StringBuilder table = new StringBuilder("Output,Epsilon,Partitions,Suppressed,Trials,Bias,RMSE,Mean Relative Error");
+    for (double quantile : QUANTILES) {
+      table.append(",Abs Error p").append(Math.round(quantile * 100));
+    }
+    table.append('\n');
+    for (Summary summary : summaries) {
+      table.append(summary.output()).append(',').append(format(summary.epsilon()))
+          .append(',').append(summary.partitions()).append(',').append(format(summary.suppressed()))
+          .append(',').append(summary.trials())
+          .append(',').append(format(summary.bias())).append(',').append(format(summary.rmse()))
+          .append(',').append(format(summary.meanRelativeError()));
+      for (double error : summary.errorQuantiles()) {
+        table.append(',').append(format(error));
+      }
+      table.append('\n');
+    }
+    try {
+      Files.write(file, table.toString().getBytes(StandardCharsets.UTF_8));
+    } catch (IOException e) {
+      throw new IllegalStateException("Failed to write to file: " + file, e);
+    }
+  }
+
+  /**
+   * Releases the job once to find its private tables, pairs each with the job's non-private
+   * table of the same name, or else with the only non-private table of the job, and sets up
+   * their error arrays.
+   */
+  private static List<Statistic> statistics(AggregationEngine.Aggregates aggregates, Main.Job job,
+      double epsilon, int trials) {
+    ResultSink truth = ResultSink.inMemory();
+    job.run().accept(aggregates, truth);
+    ResultSink probe = ResultSink.inMemory();
+    job.release().at(aggregates, probe, epsilon);
+
+    List<String> nonPrivate = new ArrayList<>();
+    for (String output : new TreeSet<>(truth.outputs())) {
+      if (output.startsWith(NON_PRIVATE_PREFIX) && !output.endsWith(STD_ERROR_SUFFIX)) {
+        nonPrivate.add(output);
+      }
+    }
+
+    List<Statistic> statistics = new ArrayList<>();
+    for (String output : new TreeSet<>(probe.outputs())) {
+      String named = NON_PRIVATE_PREFIX + output.substring(output.startsWith(PRIVATE_PREFIX) ? PRIVATE_PREFIX.length() : 0);
+      Map<?, ? extends Number> rows = nonPrivate.contains(named) ? truth.table(named)
+          : nonPrivate.size() == 1 ? truth.table(nonPrivate.get(0))
+          : null;
+      if (rows == null) {
+        throw new IllegalStateException("No non-private table to compare " + output + " with");
+      }
+      Object[] keys = rows.keySet().toArray();
+      double[] values = new double[keys.length];
+      for (int partition = 0; partition < keys.length; partition++) {
+        values[partition] = rows.get(keys[partition]).doubleValue();
+      }
+      int cells = Math.toIntExact((long) trials * keys.length);
+      statistics.add(new Statistic(output, keys, values, new double[cells], new boolean[cells]));
+    }
+    return statistics;
+  }
+
+  private static Summary summarize(Statistic statistic, double epsilon, int trials) {
+    double[] errors = statistic.errors();
+    double[] absolute = new double[errors.length];
+    int measured = 0;
+    int suppressed = 0;
+    double sum = 0;
+    double squares = 0;
+    double relative = 0;
+    int relativeCount = 0;
+    for (int i = 0; i < errors.length; i++) {
+      double error = errors[i];
+      if (statistic.suppressed()[i]) {
+        suppressed++;
+      }
+      sum += error;
+      squares += error * error;
+      absolute[measured++] = Math.abs(error);
+      double value = statistic.truth()[i % statistic.keys().length];
+      if (value != 0) {
+        relative += Math.abs(error) / Math.abs(value);
+        relativeCount++;
+      }
+    }
+
+    Arrays.sort(absolute, 0, measured);
+    double[] quantiles = new double[QUANTILES.length];
+    for (int q = 0; q < QUANTILES.length; q++) {
+      // Nearest rank: the smallest error at least the given fraction of errors do not exceed.
+      int rank = (int) Math.ceil(QUANTILES[q] * measured);
+      quantiles[q] = measured == 0 ? Double.NaN : absolute[Math.max(0, rank - 1)];
+    }
+    return new Summary(statistic.output(), epsilon, statistic.keys().length,
+        errors.length == 0 ? Double.NaN : (double) suppressed / errors.length, trials,
+        measured == 0 ? Double.NaN : sum / measured,
+        measured == 0 ? Double.NaN : Math.sqrt(squares / measured),
+        relativeCount == 0 ? Double.NaN : relative / relativeCount,
+        quantiles);
+  }
+
+  private static String format(double value) {
+    return String.format(Locale.ROOT, "%.6g", value);
+  }
+}
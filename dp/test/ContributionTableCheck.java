@@ -0,0 +1,116 @@
+package dp.src;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import util.src.Debug;
+import util.src.Status;
+
+/**
+ * Checks a {@link ContributionTable} against a plain map of sets on random streams of visits,
+ * in bitmask and slot mode and with enough patients to grow the table several times:
+ * <ul>
+ *   <li>{@link ContributionTable#tryContribute} keeps the first {@code maxPartitions}
+ *       distinct partitions of every patient;</li>
+ *   <li>a {@link ContributionTable#reservoirs reservoir} never holds more than
+ *       {@code maxPartitions} partitions of a patient, and holds exactly the ones whose
+ *       lowest offered priority is smallest.</li>
+ * </ul>
+ */
+public class ContributionTableCheck {
+
+  private static final int VISITS = 100_000;
+
+  public static void main(String[] args) {
+    SplittableRandom random = new SplittableRandom(args.length > 0 ? Long.parseLong(args[0]) : 13);
+    int checks = 0;
+    for (int partitionSlots : new int[] {1, 8, 64, 65, 1000}) {
+      for (int maxPartitions : new int[] {1, 2, 5}) {
+        for (int patients : new int[] {10, 5000}) {
+          checkFirstPartitions(random, partitionSlots, maxPartitions, patients);
+          checkReservoirs(random, partitionSlots, maxPartitions, patients);
+          checks += 2;
+        }
+      }
+    }
+    Debug.print(Status.INFO, "ContributionTable matches the reference model in " + checks + " runs");
+  }
+
+  private static void checkFirstPartitions(SplittableRandom random, int partitionSlots, int maxPartitions,
+      int patients) {
+    ContributionTable table = new ContributionTable(partitionSlots, maxPartitions);
+    Map<Integer, Set<Integer>> expected = new HashMap<>();
+    for (int visit = 0; visit < VISITS; visit++) {
+      int id = randomId(random, patients);
+      int partition = random.nextInt(partitionSlots);
+      Set<Integer> partitions = expected.computeIfAbsent(id, key -> new HashSet<>());
+      boolean allowed = partitions.contains(partition) || partitions.size() < maxPartitions;
+      if (allowed) {
+        partitions.add(partition);
+      }
+      check(table.tryContribute(id, partition) == allowed,
+          "tryContribute(" + id + ", " + partition + ") should be " + allowed);
+    }
+    compare(table, expected, "tryContribute", partitionSlots, maxPartitions);
+  }
+
+  private static void checkReservoirs(SplittableRandom random, int partitionSlots, int maxPartitions,
+      int patients) {
+    ContributionTable table = ContributionTable.reservoirs(maxPartitions);
+    // The lowest priority offered for every partition of every patient.
+    Map<Integer, Map<Integer, Long>> lowest = new HashMap<>();
+    for (int visit = 0; visit < VISITS; visit++) {
+      int id = randomId(random, patients);
+      int partition = random.nextInt(partitionSlots);
+      long priority = random.nextLong();
+      lowest.computeIfAbsent(id, key -> new HashMap<>()).merge(partition, priority, Math::min);
+      table.offer(id, partition, priority);
+    }
+
+    Map<Integer, Set<Integer>> expected = new HashMap<>();
+    lowest.forEach((id, priorities) -> {
+      List<Map.Entry<Integer, Long>> ranked = new ArrayList<>(priorities.entrySet());
+      ranked.sort(Map.Entry.comparingByValue());
+      Set<Integer> kept = new LinkedHashSet<>();
+      for (int i = 0; i < Math.min(maxPartitions, ranked.size()); i++) {
+        kept.add(ranked.get(i).getKey());
+      }
+      expected.put(id, kept);
+    });
+    compare(table, expected, "reservoirs", partitionSlots, maxPartitions);
+  }
+
+  /** Checks that the table holds exactly the expected partitions of every patient, and no other patient. */
+  private static void compare(ContributionTable table, Map<Integer, Set<Integer>> expected, String mode,
+      int partitionSlots, int maxPartitions) {
+    String run = mode + " with " + partitionSlots + " slots and at most " + maxPartitions + " partitions";
+    check(table.size() == expected.size(), run + ": " + table.size() + " patients, expected " + expected.size());
+    expected.forEach((id, partitions) -> {
+      int contributed = 0;
+      for (int partition = 0; partition < partitionSlots; partition++) {
+        boolean contributes = table.contributes(id, partition);
+        check(contributes == partitions.contains(partition),
+            run + ": patient " + id + " contributes to " + partition + " should be " + !contributes);
+        contributed += contributes ? 1 : 0;
+      }
+      check(contributed <= maxPartitions, run + ": patient " + id + " contributes to " + contributed);
+    });
+    check(!table.contributes(Integer.MIN_VALUE, 0), run + ": unknown patient contributes");
+  }
+
+  /** Returns one of the given number of patient ids, spread over the whole int range. */
+  private static int randomId(SplittableRandom random, int patients) {
+    return random.nextInt(patients) * 0x9E3779B1;
+  }
+
+  private static void check(boolean condition, String message) {
+    if (!condition) {
+      throw new AssertionError(message);
+    }
+  }
+}
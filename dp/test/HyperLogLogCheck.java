@@ -0,0 +1,118 @@
+package dp.src;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.SplittableRandom;
+import util.src.Debug;
+import util.src.Status;
+
+/**
+ * Checks the error of {@link HyperLogLog} estimates against the exact number of distinct
+ * ids, counted with a {@link HashSet}:
+ * <ul>
+ *   <li>every estimate is within three {@link HyperLogLog#relativeStandardError() relative
+ *       standard errors} of the exact count, from the linear counting range of small sets to
+ *       sets many times larger than the number of registers;</li>
+ *   <li>over many sets, the root mean square of the relative errors stays close to the
+ *       relative standard error itself, so the bound is not met by chance;</li>
+ *   <li>adding an id again, merging the sketches of two overlapping shards, and reading a
+ *       sketch back from {@code writeTo} all leave the estimate of the whole unchanged.</li>
+ * </ul>
+ */
+public class HyperLogLogCheck {
+
+  private static final int[] PRECISIONS = {4, 8, 10, 12, 14};
+
+  private static final int[] CARDINALITIES = {1, 10, 100, 1000, 10_000, 100_000, 500_000};
+
+  /** The number of sets the root mean square error is measured over. */
+  private static final int TRIALS = 50;
+
+  public static void main(String[] args) throws IOException {
+    SplittableRandom random = new SplittableRandom(args.length > 0 ? Long.parseLong(args[0]) : 18);
+    int checks = 0;
+    for (int precision : PRECISIONS) {
+      for (int cardinality : CARDINALITIES) {
+        checkBound(random, precision, cardinality);
+        checks++;
+      }
+      checkMeanError(random, precision);
+    }
+    Debug.print(Status.INFO, "HyperLogLog estimates are within 3 standard errors in " + checks + " sets");
+  }
+
+  /** Checks a single set of distinct ids, its duplicates, its shards and its serialized form. */
+  private static void checkBound(SplittableRandom random, int precision, int cardinality) throws IOException {
+    Set<Integer> ids = new HashSet<>();
+    while (ids.size() < cardinality) {
+      ids.add(random.nextInt());
+    }
+
+    HyperLogLog whole = new HyperLogLog(precision);
+    HyperLogLog left = new HyperLogLog(precision);
+    HyperLogLog right = new HyperLogLog(precision);
+    for (int id : ids) {
+      whole.add(id);
+      // The shards overlap, so their merge must not count the shared ids twice.
+      int shard = random.nextInt(3);
+      if (shard != 1) {
+        left.add(id);
+      }
+      if (shard != 0) {
+        right.add(id);
+      }
+    }
+
+    long estimate = whole.estimate();
+    double error = Math.abs(estimate - cardinality) / (double) cardinality;
+    String set = cardinality + " ids at precision " + precision;
+    check(error <= 3 * whole.relativeStandardError() || Math.abs(estimate - cardinality) <= 1,
+        set + ": estimate " + estimate + " is off by " + error + ", more than 3 * " + whole.relativeStandardError());
+
+    for (int id : ids) {
+      whole.add(id);
+    }
+    check(whole.estimate() == estimate, set + ": adding the ids again changed the estimate");
+
+    left.merge(right);
+    check(left.estimate() == estimate, set + ": merged shards estimate " + left.estimate() + ", not " + estimate);
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    whole.writeTo(new DataOutputStream(bytes));
+    HyperLogLog read = HyperLogLog.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    check(read.precision() == precision && read.estimate() == estimate, set + ": read back differently");
+  }
+
+  /** Checks the root mean square of the relative error over many sets of a size beyond linear counting. */
+  private static void checkMeanError(SplittableRandom random, int precision) {
+    int cardinality = 10 << precision;
+    double squares = 0;
+    for (int trial = 0; trial < TRIALS; trial++) {
+      HyperLogLog sketch = new HyperLogLog(precision);
+      Set<Integer> ids = new HashSet<>();
+      while (ids.size() < cardinality) {
+        int id = random.nextInt();
+        if (ids.add(id)) {
+          sketch.add(id);
+        }
+      }
+      double error = (sketch.estimate() - cardinality) / (double) cardinality;
+      squares += error * error;
+    }
+    double rootMeanSquare = Math.sqrt(squares / TRIALS);
+    double standardError = HyperLogLog.relativeStandardError(precision);
+    check(rootMeanSquare <= 1.3 * standardError,
+        "Precision " + precision + ": root mean square error " + rootMeanSquare + " exceeds 1.3 * " + standardError);
+  }
+
+  private static void check(boolean condition, String message) {
+    if (!condition) {
+      throw new AssertionError(message);
+    }
+  }
+}
@@ -0,0 +1,200 @@
+package dp.src;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.SplittableRandom;
+import util.src.Debug;
+import util.src.Status;
+
+/**
+ * Checks an {@link IdBitmap} against a {@link HashSet} of the same ids, and against a
+ * {@link BitSet} where the ids are small enough for one, on random sets shaped to reach
+ * every kind of container:
+ * <ul>
+ *   <li>sparse ids over the whole int range, negative ones included, so every key holds
+ *       a small array;</li>
+ *   <li>dense ids within a few keys, so containers pass the array limit and become
+ *       bitmaps, including a key filled to exactly the limit and one past it;</li>
+ *   <li>runs of consecutive ids, which fill whole keys in order.</li>
+ * </ul>
+ * For every pair of sets it checks {@code add}, {@code contains}, {@code cardinality}, that
+ * {@code or} yields the union and leaves its argument unchanged, and that a set read back
+ * from {@code writeTo} holds the same ids.
+ */
+public class IdBitmapCheck {
+
+  /** The largest number of values an array container holds, as in {@link IdBitmap}. */
+  private static final int ARRAY_LIMIT = 4096;
+
+  private static final int ROUNDS = 5;
+
+  public static void main(String[] args) {
+    SplittableRandom random = new SplittableRandom(args.length > 0 ? Long.parseLong(args[0]) : 17);
+    int checks = 0;
+    for (int round = 0; round < ROUNDS; round++) {
+      for (Shape left : Shape.values()) {
+        for (Shape right : Shape.values()) {
+          Set<Integer> leftIds = new HashSet<>();
+          Set<Integer> rightIds = new HashSet<>();
+          IdBitmap leftBitmap = build(left, random, leftIds);
+          IdBitmap rightBitmap = build(right, random, rightIds);
+          checkUnion(leftBitmap, leftIds, rightBitmap, rightIds, random);
+          checks++;
+        }
+      }
+    }
+    checkLimits();
+    checkDense(random);
+    Debug.print(Status.INFO, "IdBitmap matches HashSet and BitSet in " + checks + " unions of random sets");
+  }
+
+  /** The shapes of random id sets. */
+  private enum Shape {
+    SPARSE, DENSE, RUNS, EMPTY
+  }
+
+  /** Adds random ids of the given shape to a new bitmap and to the expected ids, checking every add. */
+  private static IdBitmap build(Shape shape, SplittableRandom random, Set<Integer> expected) {
+    IdBitmap bitmap = new IdBitmap();
+    switch (shape) {
+      case SPARSE:
+        for (int i = random.nextInt(2000); i > 0; i--) {
+          add(bitmap, expected, random.nextInt());
+        }
+        break;
+      case DENSE:
+        // A few keys around 0, each drawn from often enough to pass the array limit.
+        for (int i = random.nextInt(3 * ARRAY_LIMIT, 6 * ARRAY_LIMIT); i > 0; i--) {
+          add(bitmap, expected, random.nextInt(-(1 << 16), 1 << 17));
+        }
+        break;
+      case RUNS:
+        for (int run = random.nextInt(1, 4); run > 0; run--) {
+          int start = random.nextInt(-(1 << 20), 1 << 20);
+          int length = random.nextInt(1, 2 * (1 << 16));
+          for (int id = start; id < start + length; id++) {
+            add(bitmap, expected, id);
+          }
+        }
+        break;
+      case EMPTY:
+        break;
+    }
+    compare(bitmap, expected, random, shape.toString());
+    return bitmap;
+  }
+
+  private static void add(IdBitmap bitmap, Set<Integer> expected, int id) {
+    boolean added = expected.add(id);
+    check(bitmap.add(id) == added, "add(" + id + ") should return " + added);
+  }
+
+  /** Checks that the union of two sets is the union of their ids, and that both stay valid. */
+  private static void checkUnion(IdBitmap left, Set<Integer> leftIds, IdBitmap right, Set<Integer> rightIds,
+      SplittableRandom random) {
+    left.or(right);
+    leftIds.addAll(rightIds);
+    compare(left, leftIds, random, "union");
+    compare(right, rightIds, random, "argument of or");
+    compare(copy(left), leftIds, random, "union read back");
+
+    // Adding to the union must not reach into the containers it took from its argument.
+    for (int id : rightIds) {
+      left.add(id ^ 1);
+      leftIds.add(id ^ 1);
+      if (random.nextInt(100) == 0) {
+        break;
+      }
+    }
+    compare(right, rightIds, random, "argument of or after adding to the union");
+
+    left.or(left);
+    compare(left, leftIds, random, "union with itself");
+  }
+
+  /** Checks a key filled to exactly the array limit and one past it, from both ends. */
+  private static void checkLimits() {
+    for (int size : new int[] {ARRAY_LIMIT - 1, ARRAY_LIMIT, ARRAY_LIMIT + 1}) {
+      IdBitmap ascending = new IdBitmap();
+      IdBitmap descending = new IdBitmap();
+      BitSet expected = new BitSet();
+      for (int i = 0; i < size; i++) {
+        ascending.add(3 << 16 | i * 15);
+        descending.add(3 << 16 | (size - 1 - i) * 15);
+        expected.set(3 << 16 | i * 15);
+      }
+      compare(ascending, expected, "ascending key of " + size);
+      compare(descending, expected, "descending key of " + size);
+      compare(copy(ascending), expected, "ascending key of " + size + " read back");
+
+      // Two arrays under the limit whose union is over it.
+      IdBitmap odd = new IdBitmap();
+      for (int i = 0; i < size; i++) {
+        odd.add(3 << 16 | i * 15 + 1);
+        expected.set(3 << 16 | i * 15 + 1);
+      }
+      ascending.or(odd);
+      compare(ascending, expected, "union of two keys of " + size);
+    }
+  }
+
+  /** Checks non-negative dense sets against a {@link BitSet}, which tracks them exactly. */
+  private static void checkDense(SplittableRandom random) {
+    for (int round = 0; round < ROUNDS; round++) {
+      IdBitmap bitmap = new IdBitmap();
+      BitSet expected = new BitSet();
+      int range = random.nextInt(1, 1 << 20);
+      for (int i = random.nextInt(range); i > 0; i--) {
+        int id = random.nextInt(range);
+        check(bitmap.add(id) != expected.get(id), "add(" + id + ") should return " + !expected.get(id));
+        expected.set(id);
+      }
+      compare(bitmap, expected, "dense range of " + range);
+    }
+  }
+
+  private static void compare(IdBitmap bitmap, Set<Integer> expected, SplittableRandom random, String set) {
+    check(bitmap.cardinality() == expected.size(),
+        set + ": cardinality " + bitmap.cardinality() + ", expected " + expected.size());
+    for (int id : expected) {
+      check(bitmap.contains(id), set + ": missing " + id);
+    }
+    for (int i = 0; i < 2000; i++) {
+      int id = i % 2 == 0 ? random.nextInt() : random.nextInt(-(1 << 20), 1 << 20);
+      check(bitmap.contains(id) == expected.contains(id), set + ": contains(" + id + ") should be " + !bitmap.contains(id));
+    }
+  }
+
+  private static void compare(IdBitmap bitmap, BitSet expected, String set) {
+    check(bitmap.cardinality() == expected.cardinality(),
+        set + ": cardinality " + bitmap.cardinality() + ", expected " + expected.cardinality());
+    int limit = Math.max(expected.length(), 1 << 16) + 64;
+    for (int id = 0; id < limit; id++) {
+      check(bitmap.contains(id) == expected.get(id), set + ": contains(" + id + ") should be " + expected.get(id));
+    }
+  }
+
+  /** Returns the set read back from what {@link IdBitmap#writeTo} wrote. */
+  private static IdBitmap copy(IdBitmap bitmap) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      bitmap.writeTo(new DataOutputStream(bytes));
+      return IdBitmap.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static void check(boolean condition, String message) {
+    if (!condition) {
+      throw new AssertionError(message);
+    }
+  }
+}
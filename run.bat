@@ -8,15 +8,20 @@ set module="%~1"
 
 IF %module% == "--statistics" (
     javac -cp util/build statistics/src/*.java -d statistics/build
-    java -cp statistics/build;util/build statistics.src.Main %2 %3
+    java -cp statistics/build;util/build statistics.src.Main %2 %3 %4 %5
 ) ELSE IF %module% == "--inference" (
     javac -cp util/build inference/src/*.java -d inference/build
     java -cp inference/build;util/build inference.src.Main %2 %3 %4 %5
 ) ELSE IF %module% == "--dp" (
     javac -cp util/build;dp/lib/* dp/src/*.java -d dp/build
     mkdir dp\out
-    java -cp dp/build;util/build;dp/lib/* dp.src.Main %2
+    java -cp dp/build;util/build;dp/lib/* dp.src.Main %2 %3 %4 %5 %6 %7 %8 %9
     echo Files written to dp/out
+) ELSE IF %module% == "--check" (
+    javac -cp util/build util/test/*.java -d util/build
+    for %%f in (util\test\*.java) do java -cp util/build util.src.%%~nf || exit /b 1
+    javac -cp util/build;dp/lib/* dp/src/*.java dp/test/*.java -d dp/build
+    for %%f in (dp\test\*.java) do java -cp dp/build;util/build;dp/lib/* dp.src.%%~nf || exit /b 1
 ) ELSE (
     echo "Unknown command. Usage ./run.bat <module> <args>"
 )
@@ -5,15 +5,24 @@ module=$1
 
 if [[ $module == "--statistics" ]]; then
     javac -cp util/build statistics/src/*.java -d statistics/build
-    java -cp statistics/build:util/build statistics.src.Main $2 $3
+    java -cp statistics/build:util/build statistics.src.Main "${@:2}"
 elif [[ $module == "--inference" ]]; then
     javac -cp util/build inference/src/*.java -d inference/build
     java -cp inference/build:util/build inference.src.Main $2 $3 $4 $5
 elif [[ $module == "--dp" ]]; then
     javac -cp util/build:dp/lib/* dp/src/*.java -d dp/build
 	mkdir dp/out
-    java -cp dp/build:util/build:dp/lib/* dp.src.Main $2
+    java -cp dp/build:util/build:dp/lib/* dp.src.Main "${@:2}"
     echo Files written to dp/out
+elif [[ $module == "--check" ]]; then
+    javac -cp util/build util/test/*.java -d util/build
+    for check in util/test/*.java; do
+        java -cp util/build util.src.$(basename $check .java) || exit 1
+    done
+    javac -cp util/build:dp/lib/* dp/src/*.java dp/test/*.java -d dp/build
+    for check in dp/test/*.java; do
+        java -cp dp/build:util/build:dp/lib/* dp.src.$(basename $check .java) || exit 1
+    done
 else
     echo "Unknown command. Usage ./run.sh <module> <args>"
 fi
@@ -16,7 +16,7 @@ import util.src.*;
 public class Main {
 
     public static void main(String[] args) {
-		Stream<String> lines = checkUsage(args);
+		Supplier<Optional<PatientTable>> reader = checkUsage(args);
 
 		Debug.print(
 			Status.DEBUG, 
@@ -25,7 +25,7 @@ public class Main {
 			"File: " + args[1]
 		);
 
-		Optional<List<PatientRecord>> opt = parseCSV(lines);
+		Optional<PatientTable> opt = reader.get();
 
 		Debug.print(Status.DEBUG, "Finished parsing csv, calculating aggregate statistics...");
 		
@@ -42,43 +42,23 @@ public class Main {
 		return;
 	}
     
-	private static void calcAgeStatistics(List<PatientRecord> list) {
-		int min = list
-			.stream()
-			.mapToInt(record -> record.age)
-			.min()
-			.getAsInt();
-
-		int max = list
-			.stream()
-			.mapToInt(record -> record.age)
-			.max()
-			.getAsInt();
-
-		double average = list
-			.stream()
-			.mapToInt(record -> record.age)
-			.average()
-			.orElseThrow();
+	private static void calcAgeStatistics(PatientTable table) {
+		// Ages come from a small range, so counting them in one pass answers every statistic,
+		// including the median, without sorting the records.
+		IntHistogram ages = new IntHistogram();
+		for (int row = 0; row < table.rows; row++)
+			ages.add(table.age(row));
 
-		int sum = list
-			.stream()
-			.mapToInt(record -> record.age)
-			.sum();
-
-		double median = list
-			.stream()
-			.mapToInt(record -> record.age)
-			.sorted()
-			.skip((list.size() - 1) / 2)
-			.limit(2 - (list.size() % 2))
-			.average()
-			.getAsDouble();
+		int min = ages.min();
+		int max = ages.max();
+		double average = (double) ages.sum() / ages.count();
+		int sum = (int) ages.sum();
+		double median = ages.median();
 
 		Debug.print(
 			Status.INFO, 
 			"Age statistics:",
-			"Number of records = " + list.size(),
+			"Number of records = " + table.rows,
 			"Age range = (" + min + " - " + max + ")",
 			"Average age = " + average,
 			"Age sum = " + sum,
@@ -86,23 +66,25 @@ public class Main {
 		);
 	}
     
-	private static void calcGenderStatistics(List<PatientRecord> list) {
-        long count = list
-            .stream()
-            .filter((record) -> record.gender.equals("Male"))
+	private static void calcGenderStatistics(PatientTable table) {
+		int male = table.gender.find("Male");
+
+        long count = IntStream
+            .range(0, table.rows)
+            .filter((row) -> table.gender.code(row) == male)
             .count();
 
-		double averageMale = list
-			.stream()
-            .filter((record) -> record.gender.equals("Male"))
-			.mapToInt(record -> record.age)
+		double averageMale = IntStream
+			.range(0, table.rows)
+            .filter((row) -> table.gender.code(row) == male)
+			.map(table::age)
 			.average()
 			.orElseThrow();
 
-		double averageFemale = list
-			.stream()
-            .filter((record) -> !record.gender.equals("Male"))
-			.mapToInt(record -> record.age)
+		double averageFemale = IntStream
+			.range(0, table.rows)
+            .filter((row) -> table.gender.code(row) != male)
+			.map(table::age)
 			.average()
 			.orElseThrow();
 
@@ -110,24 +92,16 @@ public class Main {
 			Status.INFO, 
 			"Gender statistics:",
 			"Number of males = " + count,
-			"Number of females = " + (list.size() - count),
+			"Number of females = " + (table.rows - count),
             "Average age of males = " + averageMale,
             "Average age of females = " + averageFemale
 		);
 	}
 
-	private static void calcDiagnosisStatistics(List<PatientRecord> list) {  
-        Map<String, Long> cumulativeDistribution = list
-			.stream()
-			.map((record) -> record.condition)
-			.collect(Collectors.groupingBy(Function.identity(), Collectors.counting()));
+	private static void calcDiagnosisStatistics(PatientTable table) {  
+        Map<String, Long> cumulativeDistribution = countBy(table, table.condition, (row) -> true);
 
-        Map<String, Double> averageAgeByDiagnosis = list
-            .stream()
-            .collect(Collectors.groupingBy(
-                (record) -> record.condition, 
-                Collectors.averagingDouble((record) -> record.age)
-            ));
+        Map<String, Double> averageAgeByDiagnosis = averageAgeBy(table, table.condition);
 
 		Debug.print(
 			Status.INFO, 
@@ -137,54 +111,22 @@ public class Main {
 		);		
 	}
 
-	private static void calcBloodtypeStatistics(List<PatientRecord> list) {
-		Map<String, Long> cumulativeDistribution = list
-			.stream()
-			.map((record) -> record.bloodType)
-			.collect(Collectors.groupingBy(Function.identity(), Collectors.counting()));
-
-		Map<String, Long> arthritisDistribution = list
-			.stream()
-			.filter((record) -> record.condition.equals("Arthritis"))
-			.map((record) -> record.bloodType)
-			.collect(Collectors.groupingBy(Function.identity(), Collectors.counting()));
-
-		Map<String, Long> asthmaDistribution = list
-			.stream()
-			.filter((record) -> record.condition.equals("Asthma"))
-			.map((record) -> record.bloodType)
-			.collect(Collectors.groupingBy(Function.identity(), Collectors.counting()));
+	private static void calcBloodtypeStatistics(PatientTable table) {
+		Map<String, Long> cumulativeDistribution = countBy(table, table.bloodType, (row) -> true);
+
+		Map<String, Long> arthritisDistribution = countBy(table, table.bloodType, withCondition(table, "Arthritis"));
+
+		Map<String, Long> asthmaDistribution = countBy(table, table.bloodType, withCondition(table, "Asthma"));
 		
-		Map<String, Long> cancerDistribution = list
-			.stream()
-			.filter((record) -> record.condition.equals("Cancer"))
-			.map((record) -> record.bloodType)
-			.collect(Collectors.groupingBy(Function.identity(), Collectors.counting()));
-
-		Map<String, Long> diabetesDistribution = list
-			.stream()
-			.filter((record) -> record.condition.equals("Diabetes"))
-			.map((record) -> record.bloodType)
-			.collect(Collectors.groupingBy(Function.identity(), Collectors.counting()));
-
-        Map<String, Long> hypertensionDistribution = list
-			.stream()
-			.filter((record) -> record.condition.equals("Hypertension"))
-			.map((record) -> record.bloodType)
-			.collect(Collectors.groupingBy(Function.identity(), Collectors.counting()));
-
-		Map<String, Long> obesityDistribution = list
-			.stream()
-			.filter((record) -> record.condition.equals("Obesity"))
-			.map((record) -> record.bloodType)
-			.collect(Collectors.groupingBy(Function.identity(), Collectors.counting()));
-
-        Map<String, Double> averageAgeByBloodtype = list
-            .stream()
-            .collect(Collectors.groupingBy(
-                (record) -> record.bloodType, 
-                Collectors.averagingDouble((record) -> record.age)
-            ));
+		Map<String, Long> cancerDistribution = countBy(table, table.bloodType, withCondition(table, "Cancer"));
+
+		Map<String, Long> diabetesDistribution = countBy(table, table.bloodType, withCondition(table, "Diabetes"));
+
+        Map<String, Long> hypertensionDistribution = countBy(table, table.bloodType, withCondition(table, "Hypertension"));
+
+		Map<String, Long> obesityDistribution = countBy(table, table.bloodType, withCondition(table, "Obesity"));
+
+        Map<String, Double> averageAgeByBloodtype = averageAgeBy(table, table.bloodType);
 
 		Debug.print(
 			Status.INFO, 
@@ -201,13 +143,68 @@ public class Main {
 		);
 	}
 
-    private static Optional<List<PatientRecord>> parseCSV(Stream<String> lines) {
+	/** Accepts the rows of the given condition. */
+	private static IntPredicate withCondition(PatientTable table, String condition) {
+		int code = table.condition.find(condition);
+		return (row) -> table.condition.code(row) == code;
+	}
+
+	/**
+	 * Counts the accepted rows of every value of a column. Values are added in the order they
+	 * first appear and through computeIfAbsent, as groupingBy adds them, so that values sharing
+	 * a hash bucket print in the same order.
+	 */
+	private static Map<String, Long> countBy(PatientTable table, PatientTable.Categorical column, IntPredicate filter) {
+		long[] counts = new long[column.cardinality()];
+		int[] order = new int[counts.length];
+		int seen = 0;
+		for (int row = 0; row < table.rows; row++) {
+			if (!filter.test(row))
+				continue;
+			int code = column.code(row);
+			if (counts[code]++ == 0)
+				order[seen++] = code;
+		}
+
+		Map<String, Long> result = new HashMap<>();
+		for (int i = 0; i < seen; i++) {
+			int code = order[i];
+			result.computeIfAbsent(column.value(code), value -> counts[code]);
+		}
+		return result;
+	}
+
+	/** Averages the age of the rows of every value of a column, adding the values like {@link #countBy}. */
+	private static Map<String, Double> averageAgeBy(PatientTable table, PatientTable.Categorical column) {
+		long[] counts = new long[column.cardinality()];
+		long[] sums = new long[counts.length];
+		int[] order = new int[counts.length];
+		int seen = 0;
+		for (int row = 0; row < table.rows; row++) {
+			int code = column.code(row);
+			if (counts[code]++ == 0)
+				order[seen++] = code;
+			sums[code] += table.age(row);
+		}
+
+		Map<String, Double> result = new HashMap<>();
+		for (int i = 0; i < seen; i++) {
+			int code = order[i];
+			result.computeIfAbsent(column.value(code), value -> (double) sums[code] / counts[code]);
+		}
+		return result;
+	}
+
+    private static Optional<PatientTable> parseCSV(Path path, int limit, boolean snapshot) {
 		try {
-			List<PatientRecord> records = new ArrayList<>();
-			lines.skip(1) // skip header row in csv file
-				.map(line -> line.split(","))
-				.forEach(values -> records.add(new PatientRecord(values)));
-			return Optional.of(records);
+			PatientTable.Builder builder = new PatientTable.Builder();
+			PatientRecordReader.stream(path, limit, builder::add);
+			PatientTable table = builder.build();
+
+			// A snapshot must hold the whole file, so only cache a parse the limit did not cut short.
+			if (snapshot && table.rows < limit)
+				writeSnapshot(path, table);
+			return Optional.of(table);
 		}
 		catch (Exception e) {
 			Debug.print(Status.ERROR, e.toString());
@@ -215,22 +212,90 @@ public class Main {
 		return Optional.empty();
 	}
 
-    public static Stream<String> checkUsage(String[] args) {
+	private static Optional<PatientTable> parseMappedCSV(Path path, int limit, boolean snapshot) {
+		try {
+			// Compressed files cannot be split, so the sequential parse is the one that stops at the limit.
+			if (PatientRecordReader.isCompressed(path))
+				return parseCSV(path, limit, snapshot);
+
+			PatientTable table = PatientTable.fromRecords(PatientRecordReader.readParallel(path, limit));
+			// A snapshot must hold the whole file, so only cache a parse the limit did not cut short.
+			if (snapshot && table.rows < limit)
+				writeSnapshot(path, table);
+			return Optional.of(table);
+		}
+		catch (Exception e) {
+			Debug.print(Status.ERROR, e.toString());
+		}
+		return Optional.empty();
+	}
+
+	private static Optional<PatientTable> readSnapshot(Path path, int limit) {
+		try {
+			Optional<PatientTable> table = PatientSnapshot.load(path);
+			if (table.isPresent()) {
+				Debug.print(Status.DEBUG, "Loaded snapshot " + PatientSnapshot.snapshotPath(path));
+				return Optional.of(table.get().head(limit));
+			}
+		}
+		catch (Exception e) {
+			Debug.print(Status.WARNING, "Ignoring unreadable snapshot: " + e);
+		}
+		return Optional.empty();
+	}
+
+	private static void writeSnapshot(Path path, PatientTable table) {
+		try {
+			PatientSnapshot.write(path, table);
+		}
+		catch (Exception e) {
+			Debug.print(Status.WARNING, "Could not write snapshot: " + e);
+		}
+	}
+
+    public static Supplier<Optional<PatientTable>> checkUsage(String[] args) {
 		try {
 			return parseArgs(args);
 		}
 		catch(Exception e) {
-			String usage = "Usage: ./run.bat --statistics <limit> <file>";
+			String usage = "Usage: ./run.bat --statistics <limit> <file> [--parallel-parse] [--snapshot]";
 			Debug.print(Status.ERROR, e.toString(), usage);
 			System.exit(-1);
 		}
         return null;
 	}
     
-	private static Stream<String> parseArgs(String[] args) throws IOException {
-		if (args.length != 2)
+	private static Supplier<Optional<PatientTable>> parseArgs(String[] args) throws IOException {
+		if (args.length < 2)
 			throw new RuntimeException("Invalid argument count.");
-		else 
-			return Files.lines(Paths.get(args[1])).limit(Integer.parseInt(args[0]) + 1);
+
+		int limit = Integer.parseInt(args[0]);
+		Path path = Paths.get(args[1]);
+		if (!Files.isRegularFile(path))
+			throw new NoSuchFileException(args[1]);
+
+		boolean parallel = false;
+		boolean snapshot = false;
+		for (int i = 2; i < args.length; i++) {
+			if (args[i].equals("--parallel-parse"))
+				parallel = true;
+			else if (args[i].equals("--snapshot"))
+				snapshot = true;
+			else
+				throw new RuntimeException("Unknown option: " + args[i]);
+		}
+
+		boolean parseInParallel = parallel;
+		boolean useSnapshot = snapshot;
+		return () -> {
+			if (useSnapshot) {
+				Optional<PatientTable> cached = readSnapshot(path, limit);
+				if (cached.isPresent())
+					return cached;
+			}
+			return parseInParallel
+				? parseMappedCSV(path, limit, useSnapshot)
+				: parseCSV(path, limit, useSnapshot);
+		};
 	}
 }
@@ -0,0 +1,146 @@
+package util.src;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Maps the values of a low-cardinality string column to small integer codes
+ * and a single shared canonical string per value. Codes are dense, start at 0
+ * and are assigned in order of first appearance, so they can be used directly
+ * as array indices.
+ *
+ * The shared instances below are used by every {@link PatientRecord}, so equal
+ * categorical values across all records are the same string object and carry
+ * the same code. A dictionary is safe to use from several parsing threads.
+ */
+public class Dictionary {
+
+    // Must be initialized before the shared instances below.
+    private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+    public static final Dictionary AGE_GROUP = new Dictionary();
+    public static final Dictionary GENDER = new Dictionary();
+    public static final Dictionary BLOOD_TYPE = new Dictionary();
+    public static final Dictionary CONDITION = new Dictionary();
+    public static final Dictionary HOSPITAL = new Dictionary();
+    public static final Dictionary PROVIDER = new Dictionary();
+    public static final Dictionary ADMISSION_TYPE = new Dictionary();
+    public static final Dictionary MEDICATION = new Dictionary();
+    public static final Dictionary TEST_RESULTS = new Dictionary();
+
+    /** Position of this dictionary among all instances, used to index per-thread lookups. */
+    final int index = INSTANCES.getAndIncrement();
+
+    private final Map<String, Integer> codes = new ConcurrentHashMap<>();
+    private volatile String[] values = new String[16];
+    private volatile int size = 0;
+
+    /** Returns the code for the given value, assigning a new one if it has not been seen. */
+    public int code(String value) {
+        Integer code = codes.get(value);
+        return code != null ? code : add(value);
+    }
+
+    /** Returns the code for the given value, or -1 if it has not been seen. */
+    public int find(String value) {
+        Integer code = codes.get(value);
+        return code != null ? code : -1;
+    }
+
+    /** Returns the canonical string for the given value. */
+    public String intern(String value) {
+        return value(code(value));
+    }
+
+    /** Returns the canonical string for the given code. */
+    public String value(int code) {
+        return values[code];
+    }
+
+    /** Returns the number of codes assigned so far. */
+    public int size() {
+        return size;
+    }
+
+    /** Creates a lookup for byte encoded values; see {@link ByteLookup}. */
+    public ByteLookup newByteLookup() {
+        return new ByteLookup();
+    }
+
+    private synchronized int add(String value) {
+        Integer existing = codes.get(value);
+        if (existing != null)
+            return existing;
+
+        int code = size;
+        String[] current = values;
+        if (code == current.length) {
+            current = Arrays.copyOf(current, code * 2);
+        }
+        current[code] = value;
+        values = current;
+        size = code + 1;
+        // Publishing the code last makes the value visible to any thread that reads the code.
+        codes.put(value, code);
+        return code;
+    }
+
+    /**
+     * A single-threaded front for a dictionary that resolves UTF-8 bytes straight
+     * to a code. Values seen before by this lookup are found without creating a
+     * string; only the first occurrence of each value goes to the shared
+     * dictionary. Each parsing thread should own its own lookup.
+     */
+    public class ByteLookup {
+        private byte[][] keys = new byte[16][];
+        private int[] keyCodes = new int[16];
+        private int count = 0;
+
+        private ByteLookup() {}
+
+        /** Returns the code of the value stored as UTF-8 in {@code buffer[offset, offset + length)}. */
+        public int code(byte[] buffer, int offset, int length) {
+            int mask = keys.length - 1;
+            int slot = hash(buffer, offset, length) & mask;
+            while (keys[slot] != null) {
+                if (Arrays.equals(keys[slot], 0, keys[slot].length, buffer, offset, offset + length))
+                    return keyCodes[slot];
+                slot = (slot + 1) & mask;
+            }
+
+            int code = Dictionary.this.code(new String(buffer, offset, length, StandardCharsets.UTF_8));
+            keys[slot] = Arrays.copyOfRange(buffer, offset, offset + length);
+            keyCodes[slot] = code;
+            if (++count * 2 > keys.length)
+                grow();
+            return code;
+        }
+
+        private void grow() {
+            byte[][] oldKeys = keys;
+            int[] oldCodes = keyCodes;
+            keys = new byte[oldKeys.length * 2][];
+            keyCodes = new int[oldKeys.length * 2];
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] == null)
+                    continue;
+                int slot = hash(oldKeys[i], 0, oldKeys[i].length) & mask;
+                while (keys[slot] != null)
+                    slot = (slot + 1) & mask;
+                keys[slot] = oldKeys[i];
+                keyCodes[slot] = oldCodes[i];
+            }
+        }
+
+        private int hash(byte[] buffer, int offset, int length) {
+            int h = 1;
+            for (int i = offset; i < offset + length; i++)
+                h = 31 * h + buffer[i];
+            return h ^ (h >>> 16);
+        }
+    }
+}
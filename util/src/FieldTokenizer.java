@@ -0,0 +1,224 @@
+package util.src;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+
+/**
+ * Walks the comma separated fields of a single CSV line held in a raw byte
+ * buffer and decodes them in place. Numbers and dates are decoded straight from
+ * the bytes, so no intermediate strings or split arrays are created; only fields
+ * that are kept as strings are materialized.
+ *
+ * A tokenizer is reusable: call {@link #reset} for every line. It is not thread
+ * safe, so each parsing thread should own its own instance.
+ */
+public class FieldTokenizer {
+
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    /** Largest number of digits that is decoded exactly through a double. */
+    private static final int MAX_FAST_DIGITS = 15;
+
+    /** Resolves the dates the fast path does not, see {@link #nextDate()}. */
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("M/d/yy");
+
+    /**
+     * Decoded dates for every possible M/d/yy value. Dates in the dataset only
+     * span a few years, so after warm up every row reuses shared instances.
+     */
+    private static final LocalDate[] DATE_CACHE = new LocalDate[100 * 12 * 31];
+
+    private byte[] buffer;
+    private int position;
+    private int end;
+
+    /** This tokenizer's own lookups into the shared dictionaries, indexed by dictionary. */
+    private Dictionary.ByteLookup[] lookups = new Dictionary.ByteLookup[0];
+
+    /**
+     * Points the tokenizer at the line stored in {@code buffer[start, end)}.
+     *
+     * @return This tokenizer, positioned at the first field.
+     */
+    public FieldTokenizer reset(byte[] buffer, int start, int end) {
+        this.buffer = buffer;
+        this.position = start;
+        this.end = end;
+        return this;
+    }
+
+    /** Skips the current field. */
+    public void skip() {
+        position = fieldEnd() + 1;
+    }
+
+    /** Returns the current field as a string and advances to the next field. */
+    public String nextString() {
+        int stop = fieldEnd();
+        String value = new String(buffer, position, stop - position, StandardCharsets.UTF_8);
+        position = stop + 1;
+        return value;
+    }
+
+    /**
+     * Returns the dictionary code of the current field and advances to the
+     * next field. A string is only created the first time this tokenizer sees
+     * a value.
+     */
+    public int nextCode(Dictionary dictionary) {
+        int stop = fieldEnd();
+        if (dictionary.index >= lookups.length)
+            lookups = Arrays.copyOf(lookups, dictionary.index + 1);
+        Dictionary.ByteLookup lookup = lookups[dictionary.index];
+        if (lookup == null)
+            lookup = lookups[dictionary.index] = dictionary.newByteLookup();
+
+        int code = lookup.code(buffer, position, stop - position);
+        position = stop + 1;
+        return code;
+    }
+
+    /** Decodes the current field as a decimal integer and advances to the next field. */
+    public int nextInt() {
+        int stop = fieldEnd();
+        int i = position;
+        boolean negative = i < stop && buffer[i] == '-';
+        if (negative || (i < stop && buffer[i] == '+'))
+            i++;
+        if (i == stop || stop - i > 9)
+            return slowInt(stop);
+
+        int value = 0;
+        for (; i < stop; i++) {
+            int digit = buffer[i] - '0';
+            if (digit < 0 || digit > 9)
+                return slowInt(stop);
+            value = value * 10 + digit;
+        }
+        position = stop + 1;
+        return negative ? -value : value;
+    }
+
+    /**
+     * Decodes the current field as a plain decimal number ("123.45") and
+     * advances to the next field. Values with more than {@value #MAX_FAST_DIGITS}
+     * digits or in scientific notation fall back to {@link Float#parseFloat}.
+     */
+    public float nextFloat() {
+        int stop = fieldEnd();
+        int i = position;
+        boolean negative = i < stop && buffer[i] == '-';
+        if (negative || (i < stop && buffer[i] == '+'))
+            i++;
+
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean fraction = false;
+        for (; i < stop; i++) {
+            byte b = buffer[i];
+            if (b >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                digits++;
+                if (fraction)
+                    scale++;
+            } else if (b == '.' && !fraction) {
+                fraction = true;
+            } else {
+                return slowFloat(stop);
+            }
+        }
+        if (digits == 0 || digits > MAX_FAST_DIGITS)
+            return slowFloat(stop);
+
+        // Both operands are exact doubles, so the quotient is correctly rounded.
+        double value = mantissa / POWERS_OF_TEN[scale];
+        position = stop + 1;
+        return (float) (negative ? -value : value);
+    }
+
+    /**
+     * Decodes the current field as an "M/d/yy" date (the same pattern as
+     * {@code DateTimeFormatter.ofPattern("M/d/yy")}, i.e. years 2000 - 2099)
+     * and advances to the next field. Fields that are not a valid date of the
+     * plain form, such as "2/30/21", fall back to that formatter, which resolves
+     * them the same way: a day past the end of the month is clamped to it.
+     *
+     * @throws DateTimeParseException if the field is not a valid date.
+     */
+    public LocalDate nextDate() {
+        int stop = fieldEnd();
+        int i = position;
+
+        int month = 0;
+        int monthDigits = 0;
+        for (; i < stop && buffer[i] != '/' && monthDigits <= 2; i++, monthDigits++)
+            month = month * 10 + (buffer[i] - '0');
+        int monthEnd = i++;
+
+        int day = 0;
+        int dayDigits = 0;
+        for (; i < stop && buffer[i] != '/' && dayDigits <= 2; i++, dayDigits++)
+            day = day * 10 + (buffer[i] - '0');
+        int dayEnd = i++;
+
+        if (monthDigits < 1 || monthDigits > 2 || dayDigits < 1 || dayDigits > 2 || stop - i != 2
+                || !digits(position, monthEnd) || !digits(monthEnd + 1, dayEnd) || !digits(i, stop)
+                || month < 1 || month > 12 || day < 1 || day > 31)
+            return slowDate(stop);
+        int year = (buffer[i] - '0') * 10 + (buffer[i + 1] - '0');
+
+        int slot = (year * 12 + month - 1) * 31 + day - 1;
+        LocalDate date = DATE_CACHE[slot];
+        if (date == null) {
+            if (day > YearMonth.of(2000 + year, month).lengthOfMonth())
+                return slowDate(stop);
+            date = LocalDate.of(2000 + year, month, day);
+            DATE_CACHE[slot] = date;
+        }
+        position = stop + 1;
+        return date;
+    }
+
+    /** Returns whether {@code buffer[from, to)} holds only decimal digits. */
+    private boolean digits(int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer[i] < '0' || buffer[i] > '9')
+                return false;
+        }
+        return true;
+    }
+
+    private int slowInt(int stop) {
+        int value = Integer.parseInt(new String(buffer, position, stop - position, StandardCharsets.UTF_8));
+        position = stop + 1;
+        return value;
+    }
+
+    private LocalDate slowDate(int stop) {
+        LocalDate value = LocalDate.parse(new String(buffer, position, stop - position, StandardCharsets.UTF_8), DATE_FORMAT);
+        position = stop + 1;
+        return value;
+    }
+
+    private float slowFloat(int stop) {
+        float value = Float.parseFloat(new String(buffer, position, stop - position, StandardCharsets.UTF_8));
+        position = stop + 1;
+        return value;
+    }
+
+    /** Returns the offset of the comma (or line end) terminating the current field. */
+    private int fieldEnd() {
+        int i = position;
+        while (i < end && buffer[i] != ',')
+            i++;
+        return i;
+    }
+}
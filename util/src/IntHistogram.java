@@ -0,0 +1,209 @@
+package util.src;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.NoSuchElementException;
+
+/**
+ * Counts how often every value of a stream of integers from a bounded domain, such as
+ * ages, occurs. The counts are kept for the range of values seen so far, so the
+ * histogram is filled in a single pass of O(1) per value, and any order statistic is
+ * then found exactly by walking the counts: a median or percentile costs O(n + range)
+ * rather than the O(n log n) of sorting the values. Histograms of the same stream split
+ * in parts can be merged.
+ */
+public class IntHistogram {
+
+    /** The largest range of values a histogram counts, which bounds its memory. */
+    public static final int MAX_RANGE = 1 << 24;
+
+    /** Counts of the values {@code offset} to {@code offset + counts.length - 1}. */
+    private long[] counts = new long[0];
+    private int offset = 0;
+    private long count = 0;
+    private long sum = 0;
+    private int min = Integer.MAX_VALUE;
+    private int max = Integer.MIN_VALUE;
+
+    /**
+     * Adds a value.
+     *
+     * @throws IllegalArgumentException if the values would span more than {@link #MAX_RANGE}.
+     */
+    public void add(int value) {
+        add(value, 1);
+    }
+
+    /**
+     * Adds a value the given number of times.
+     *
+     * @throws IllegalArgumentException if the values would span more than {@link #MAX_RANGE}.
+     */
+    public void add(int value, long times) {
+        if (times <= 0)
+            return;
+        long slot = (long) value - offset;
+        if (slot < 0 || slot >= counts.length)
+            cover(value);
+        counts[value - offset] += times;
+        count += times;
+        sum += value * times;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Adds the values of another histogram to this one.
+     *
+     * @throws IllegalArgumentException if the values would span more than {@link #MAX_RANGE}.
+     */
+    public void merge(IntHistogram other) {
+        for (int i = 0; i < other.counts.length; i++)
+            add(other.offset + i, other.counts[i]);
+    }
+
+    /** Returns the number of values added. */
+    public long count() {
+        return count;
+    }
+
+    /** Returns the sum of the values added. */
+    public long sum() {
+        return sum;
+    }
+
+    /**
+     * Returns the smallest value added.
+     *
+     * @throws NoSuchElementException if no value was added.
+     */
+    public int min() {
+        requireValues();
+        return min;
+    }
+
+    /**
+     * Returns the largest value added.
+     *
+     * @throws NoSuchElementException if no value was added.
+     */
+    public int max() {
+        requireValues();
+        return max;
+    }
+
+    /**
+     * Returns the value at the given position of the values in ascending order.
+     *
+     * @param rank The position, from 0 to {@code count() - 1}.
+     * @throws IndexOutOfBoundsException if there is no value at that position.
+     */
+    public int valueAt(long rank) {
+        if (rank < 0 || rank >= count)
+            throw new IndexOutOfBoundsException("Rank " + rank + " of " + count + " values");
+        long below = 0;
+        for (int i = min - offset; ; i++) {
+            below += counts[i];
+            if (below > rank)
+                return offset + i;
+        }
+    }
+
+    /**
+     * Returns the quantile of the values, interpolated linearly between the two values
+     * around position {@code q * (count() - 1)} of the values in ascending order. The
+     * quantile 0.5 is the median: the middle value, or the mean of the two middle values.
+     *
+     * @param q The quantile, from 0 to 1.
+     * @throws IllegalArgumentException if the quantile is not in [0, 1].
+     * @throws NoSuchElementException if no value was added.
+     */
+    public double quantile(double q) {
+        if (!(q >= 0 && q <= 1))
+            throw new IllegalArgumentException("Quantile must be in [0, 1]: " + q);
+        requireValues();
+        double position = q * (count - 1);
+        long lower = (long) Math.floor(position);
+        long upper = (long) Math.ceil(position);
+        // Both order statistics are found in one walk over the counts.
+        long below = 0;
+        int lowerValue = 0;
+        for (int i = min - offset; ; i++) {
+            if (below <= lower && lower < below + counts[i])
+                lowerValue = offset + i;
+            below += counts[i];
+            if (below > upper) {
+                int upperValue = offset + i;
+                return lowerValue + (position - lower) * (upperValue - lowerValue);
+            }
+        }
+    }
+
+    /** Returns the median of the values, see {@link #quantile(double)}. */
+    public double median() {
+        return quantile(0.5);
+    }
+
+    /**
+     * Writes the histogram: the smallest value, the number of counts and every count from
+     * the smallest to the largest value.
+     *
+     * @throws IOException if the output cannot be written.
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        if (count == 0) {
+            out.writeInt(0);
+            out.writeInt(0);
+            return;
+        }
+        out.writeInt(min);
+        out.writeInt(max - min + 1);
+        for (int value = min; value <= max; value++)
+            out.writeLong(counts[value - offset]);
+    }
+
+    /**
+     * Reads a histogram written by {@link #writeTo(DataOutput)}.
+     *
+     * @throws IOException if the input cannot be read.
+     */
+    public static IntHistogram readFrom(DataInput in) throws IOException {
+        IntHistogram histogram = new IntHistogram();
+        int min = in.readInt();
+        int range = in.readInt();
+        if (range < 0 || range > MAX_RANGE)
+            throw new IOException("Invalid histogram range: " + range);
+        for (int i = 0; i < range; i++)
+            histogram.add(min + i, in.readLong());
+        return histogram;
+    }
+
+    /** Grows the counts to cover the given value, with room to spare on that side. */
+    private void cover(int value) {
+        if (counts.length == 0) {
+            counts = new long[16];
+            offset = (int) Math.max(Integer.MIN_VALUE, Math.min((long) value - 8, (long) Integer.MAX_VALUE + 1 - 16));
+            return;
+        }
+        long from = Math.min(offset, (long) value);
+        long to = Math.max((long) offset + counts.length, (long) value + 1);
+        if (to - from > MAX_RANGE)
+            throw new IllegalArgumentException("Values span more than " + MAX_RANGE + ": " + value
+                    + " and " + (value < offset ? max : min));
+        long slack = Math.min(to - from, MAX_RANGE - (to - from));
+        if (value < offset)
+            from = Math.max(from - slack, (long) Integer.MIN_VALUE);
+        else
+            to = Math.min(to + slack, (long) Integer.MAX_VALUE + 1);
+        long[] grown = new long[(int) (to - from)];
+        System.arraycopy(counts, 0, grown, (int) (offset - from), counts.length);
+        counts = grown;
+        offset = (int) from;
+    }
+
+    private void requireValues() {
+        if (count == 0)
+            throw new NoSuchElementException("No values were added");
+    }
+}
@@ -5,6 +5,16 @@ import java.time.format.DateTimeFormatter;
 
 public class PatientRecord {
 
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("M/d/yy");
+
+    /** Age group labels for ages 1 - 120, computed once and shared by every record. */
+    private static final String[] AGE_GROUPS = new String[121];
+
+    static {
+        for (int age = 1; age < AGE_GROUPS.length; age++)
+            AGE_GROUPS[age] = Dictionary.AGE_GROUP.intern(formatAgeGroup(age));
+    }
+
     public int id;
     public String name;
     public int age;
@@ -23,12 +33,21 @@ public class PatientRecord {
     public String medication;
     public String testResults;
 
+    // Dictionary codes of the categorical fields above, see Dictionary. The parsing
+    // constructors fill them in; call encode() after assigning those fields directly.
+    public int ageGroupCode;
+    public int genderCode;
+    public int bloodTypeCode;
+    public int conditionCode;
+    public int hospitalCode;
+    public int providerCode;
+    public int admissionTypeCode;
+    public int medicationCode;
+    public int testResultsCode;
+
     public PatientRecord() {}
 
     public PatientRecord(String[] record) {
-
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("M/d/yy");
-
         id = Integer.parseInt(record[0]);
         name = record[1];
         age = Integer.parseInt(record[2]);
@@ -36,23 +55,90 @@ public class PatientRecord {
         gender = record[3];
         bloodType = record[4];
         condition = record[5];
-        admissionDate = LocalDate.parse(record[6], formatter);
+        admissionDate = LocalDate.parse(record[6], DATE_FORMAT);
         doctor = record[7];
         hospital = record[8];
         provider = record[9];
         bill = Float.parseFloat(record[10]);
         roomNumber = Integer.parseInt(record[11]);
         admissionType = record[12];
-        dischargeDate = LocalDate.parse(record[13], formatter);
+        dischargeDate = LocalDate.parse(record[13], DATE_FORMAT);
         medication = record[14];
         testResults = record[15];
+        encode();
     }
 
+    /**
+     * Decodes a record directly from the fields of a CSV line, without
+     * splitting the line into intermediate strings first.
+     *
+     * @param fields A tokenizer positioned at the first field of the line.
+     */
+    public PatientRecord(FieldTokenizer fields) {
+        id = fields.nextInt();
+        name = fields.nextString();
+        age = fields.nextInt();
+        ageGroup = calculateAgeGroup(this.age);
+        ageGroupCode = Dictionary.AGE_GROUP.code(ageGroup);
+        genderCode = fields.nextCode(Dictionary.GENDER);
+        gender = Dictionary.GENDER.value(genderCode);
+        bloodTypeCode = fields.nextCode(Dictionary.BLOOD_TYPE);
+        bloodType = Dictionary.BLOOD_TYPE.value(bloodTypeCode);
+        conditionCode = fields.nextCode(Dictionary.CONDITION);
+        condition = Dictionary.CONDITION.value(conditionCode);
+        admissionDate = fields.nextDate();
+        doctor = fields.nextString();
+        hospitalCode = fields.nextCode(Dictionary.HOSPITAL);
+        hospital = Dictionary.HOSPITAL.value(hospitalCode);
+        providerCode = fields.nextCode(Dictionary.PROVIDER);
+        provider = Dictionary.PROVIDER.value(providerCode);
+        bill = fields.nextFloat();
+        roomNumber = fields.nextInt();
+        admissionTypeCode = fields.nextCode(Dictionary.ADMISSION_TYPE);
+        admissionType = Dictionary.ADMISSION_TYPE.value(admissionTypeCode);
+        dischargeDate = fields.nextDate();
+        medicationCode = fields.nextCode(Dictionary.MEDICATION);
+        medication = Dictionary.MEDICATION.value(medicationCode);
+        testResultsCode = fields.nextCode(Dictionary.TEST_RESULTS);
+        testResults = Dictionary.TEST_RESULTS.value(testResultsCode);
+    }
+
+    /**
+     * Replaces every categorical field with its canonical shared string and
+     * recomputes the matching dictionary codes.
+     */
+    public void encode() {
+        ageGroupCode = Dictionary.AGE_GROUP.code(ageGroup);
+        ageGroup = Dictionary.AGE_GROUP.value(ageGroupCode);
+        genderCode = Dictionary.GENDER.code(gender);
+        gender = Dictionary.GENDER.value(genderCode);
+        bloodTypeCode = Dictionary.BLOOD_TYPE.code(bloodType);
+        bloodType = Dictionary.BLOOD_TYPE.value(bloodTypeCode);
+        conditionCode = Dictionary.CONDITION.code(condition);
+        condition = Dictionary.CONDITION.value(conditionCode);
+        hospitalCode = Dictionary.HOSPITAL.code(hospital);
+        hospital = Dictionary.HOSPITAL.value(hospitalCode);
+        providerCode = Dictionary.PROVIDER.code(provider);
+        provider = Dictionary.PROVIDER.value(providerCode);
+        admissionTypeCode = Dictionary.ADMISSION_TYPE.code(admissionType);
+        admissionType = Dictionary.ADMISSION_TYPE.value(admissionTypeCode);
+        medicationCode = Dictionary.MEDICATION.code(medication);
+        medication = Dictionary.MEDICATION.value(medicationCode);
+        testResultsCode = Dictionary.TEST_RESULTS.code(testResults);
+        testResults = Dictionary.TEST_RESULTS.value(testResultsCode);
+    }
 
     private String calculateAgeGroup(int ageValue) {
         if (ageValue <= 0) {
             return "Unknown";
         }
+        if (ageValue < AGE_GROUPS.length) {
+            return AGE_GROUPS[ageValue];
+        }
+        return formatAgeGroup(ageValue);
+    }
+
+    private static String formatAgeGroup(int ageValue) {
         // This logic creates 10-year brackets, e.g., 21-30, 31-40.
         int lowerBound = (int) (Math.floor((ageValue - 1) / 10) * 10) + 1;
         int upperBound = lowerBound + 9;
@@ -0,0 +1,344 @@
+package util.src;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads patient records from a CSV file. Lines are never turned into strings:
+ * each one is decoded straight from the raw bytes by a {@link FieldTokenizer}.
+ *
+ * Two modes are supported. {@link #stream} reads the file sequentially in
+ * fixed-size byte chunks and pushes every record to a sink, so memory is
+ * bounded by the chunk size. {@link #readParallel} memory-maps the file and
+ * parses newline-aligned byte ranges of it on all available cores. Both produce
+ * the records in file order.
+ *
+ * Gzip compressed input is recognized by its magic number and decompressed on a
+ * background thread while the records are parsed. Compressed files cannot be
+ * mapped, so {@link #readParallel} streams them instead.
+ */
+public class PatientRecordReader {
+
+    /** Size of the byte chunk used while streaming a file. */
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    /** Number of decompressed chunks that may be buffered ahead of the parser. */
+    private static final int DECOMPRESSED_CHUNKS_AHEAD = 4;
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+
+    /** Smallest byte range worth handing to its own task. */
+    private static final long MIN_RANGE_SIZE = 1 << 20;
+
+    /** Largest byte range that can be mapped into a single buffer. */
+    private static final long MAX_RANGE_SIZE = Integer.MAX_VALUE;
+
+    /** Number of ranges created per core so that uneven ranges still balance out. */
+    private static final int RANGES_PER_CORE = 4;
+
+    private PatientRecordReader() {}
+
+    /**
+     * Streams every record in the given CSV file into the sink. Assumes the
+     * first line is a header, which will be skipped.
+     *
+     * @param path The path to the CSV file.
+     * @param sink Receives each parsed record in file order.
+     * @throws IOException if the file cannot be read.
+     */
+    public static void stream(Path path, Consumer<? super PatientRecord> sink) throws IOException {
+        stream(path, Long.MAX_VALUE, sink);
+    }
+
+    /**
+     * Streams the first {@code limit} records in the given CSV file into the
+     * sink, and stops reading there. Assumes the first line is a header, which
+     * will be skipped.
+     *
+     * @param path The path to the CSV file.
+     * @param limit The maximum number of records to stream.
+     * @param sink Receives each parsed record in file order.
+     * @throws IOException if the file cannot be read.
+     */
+    public static void stream(Path path, long limit, Consumer<? super PatientRecord> sink) throws IOException {
+        try (InputStream in = open(path)) {
+            stream(in, true, limit, sink);
+        }
+    }
+
+    /**
+     * Opens the given file for reading. Gzip compressed files are recognized by
+     * their magic number, whatever their name, and are decompressed on a
+     * background thread while the caller consumes the returned stream.
+     *
+     * @param path The path to the file.
+     * @return A stream of the file's (decompressed) bytes.
+     * @throws IOException if the file cannot be opened.
+     */
+    public static InputStream open(Path path) throws IOException {
+        InputStream in = new BufferedInputStream(Files.newInputStream(path), CHUNK_SIZE);
+        if (!isCompressed(in))
+            return in;
+        return new ReadAheadInputStream(new GZIPInputStream(in, CHUNK_SIZE), CHUNK_SIZE, DECOMPRESSED_CHUNKS_AHEAD);
+    }
+
+    /** Returns whether the given file starts with the gzip magic number. */
+    public static boolean isCompressed(Path path) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(path), 2)) {
+            return isCompressed(in);
+        }
+    }
+
+    private static boolean isCompressed(InputStream in) throws IOException {
+        in.mark(2);
+        int magic = in.read() | (in.read() << 8);
+        in.reset();
+        return magic == GZIP_MAGIC;
+    }
+
+    /**
+     * Streams every record in the given CSV input into the sink. Assumes the
+     * first line is a header, which will be skipped. The stream is not closed.
+     *
+     * @param in The CSV input.
+     * @param sink Receives each parsed record in file order.
+     * @throws IOException if the input cannot be read.
+     */
+    public static void stream(InputStream in, Consumer<? super PatientRecord> sink) throws IOException {
+        stream(in, true, sink);
+    }
+
+    /**
+     * Streams every record in the given CSV input into the sink. The stream is
+     * not closed.
+     *
+     * @param in The CSV input.
+     * @param skipHeader Whether the first line is a header to be skipped, which it
+     *     is not when the input starts in the middle of a file.
+     * @param sink Receives each parsed record in file order.
+     * @throws IOException if the input cannot be read.
+     */
+    public static void stream(InputStream in, boolean skipHeader, Consumer<? super PatientRecord> sink)
+            throws IOException {
+        stream(in, skipHeader, Long.MAX_VALUE, sink);
+    }
+
+    /**
+     * Streams the first {@code limit} records in the given CSV input into the
+     * sink, and stops reading there. The stream is not closed.
+     *
+     * @param in The CSV input.
+     * @param skipHeader Whether the first line is a header to be skipped.
+     * @param limit The maximum number of records to stream.
+     * @param sink Receives each parsed record in file order.
+     * @throws IOException if the input cannot be read.
+     */
+    public static void stream(InputStream in, boolean skipHeader, long limit, Consumer<? super PatientRecord> sink)
+            throws IOException {
+        if (limit <= 0)
+            return;
+        long records = 0;
+        FieldTokenizer tokenizer = new FieldTokenizer();
+        byte[] chunk = new byte[CHUNK_SIZE];
+        boolean header = skipHeader;
+        int filled = 0;
+
+        while (true) {
+            int read = in.read(chunk, filled, chunk.length - filled);
+            if (read < 0)
+                break;
+            filled += read;
+
+            // Parse every complete line in the chunk.
+            int lineStart = 0;
+            for (int i = 0; i < filled; i++) {
+                if (chunk[i] != '\n')
+                    continue;
+                if (header)
+                    header = false;
+                else if (parseLine(tokenizer, chunk, lineStart, i, sink) && ++records == limit)
+                    return;
+                lineStart = i + 1;
+            }
+
+            // Carry the partial last line over to the next chunk.
+            filled -= lineStart;
+            System.arraycopy(chunk, lineStart, chunk, 0, filled);
+            if (filled == chunk.length)
+                chunk = Arrays.copyOf(chunk, chunk.length * 2);
+        }
+        if (filled > 0 && !header)
+            parseLine(tokenizer, chunk, 0, filled, sink);
+    }
+
+    /**
+     * Streams every record in the given CSV file straight into a columnar
+     * {@link PatientTable}, without keeping a list of records around.
+     *
+     * @param path The path to the CSV file.
+     * @return The table holding every record in file order.
+     * @throws IOException if the file cannot be read.
+     */
+    public static PatientTable readTable(Path path) throws IOException {
+        PatientTable.Builder builder = new PatientTable.Builder();
+        stream(path, builder::add);
+        return builder.build();
+    }
+
+    /**
+     * Parses every record in the given CSV file in parallel. Assumes the first
+     * line is a header, which will be skipped. Compressed files are streamed,
+     * with decompression and parsing running on separate threads.
+     *
+     * @param path The path to the CSV file.
+     * @return A mutable list of all records in file order.
+     * @throws IOException if the file cannot be mapped or read.
+     */
+    public static List<PatientRecord> readParallel(Path path) throws IOException {
+        return readParallel(path, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Parses the first {@code limit} records in the given CSV file in parallel.
+     * The ranges of the file are parsed in file order, one batch of a range per
+     * core at a time, and no batch is started once the limit is reached, so at
+     * most one batch is parsed beyond it. Compressed files are streamed up to
+     * the limit.
+     *
+     * @param path The path to the CSV file.
+     * @param limit The maximum number of records to return.
+     * @return A mutable list of the first {@code limit} records in file order.
+     * @throws IOException if the file cannot be mapped or read.
+     */
+    public static List<PatientRecord> readParallel(Path path, int limit) throws IOException {
+        if (isCompressed(path)) {
+            List<PatientRecord> records = new ArrayList<>();
+            stream(path, limit, records::add);
+            return records;
+        }
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            List<long[]> ranges = splitRanges(channel);
+            int batch = limit == Integer.MAX_VALUE
+                ? Math.max(ranges.size(), 1)
+                : Runtime.getRuntime().availableProcessors();
+
+            ArrayList<PatientRecord> records = new ArrayList<>();
+            for (int from = 0; from < ranges.size() && records.size() < limit; from += batch) {
+                List<List<PatientRecord>> parsed = ranges
+                    .subList(from, Math.min(from + batch, ranges.size()))
+                    .parallelStream()
+                    .map(range -> parseRange(channel, range[0], range[1]))
+                    .toList();
+
+                records.ensureCapacity(Math.min(limit, records.size() + parsed.stream().mapToInt(List::size).sum()));
+                for (List<PatientRecord> part : parsed)
+                    records.addAll(part.subList(0, Math.min(part.size(), limit - records.size())));
+            }
+            return records;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Decodes the line in {@code buffer[start, end)}, ignoring blank lines and a trailing '\r'.
+     *
+     * @return Whether the line held a record.
+     */
+    private static boolean parseLine(
+        FieldTokenizer tokenizer,
+        byte[] buffer,
+        int start,
+        int end,
+        Consumer<? super PatientRecord> sink
+    ) {
+        if (end > start && buffer[end - 1] == '\r')
+            end--;
+        if (end <= start)
+            return false;
+        sink.accept(new PatientRecord(tokenizer.reset(buffer, start, end)));
+        return true;
+    }
+
+    /**
+     * Splits the body of the file (everything after the header line) into
+     * [start, end) byte ranges whose boundaries fall directly after a newline.
+     */
+    private static List<long[]> splitRanges(FileChannel channel) throws IOException {
+        long size = channel.size();
+        long start = nextLineStart(channel, 0);
+        List<long[]> ranges = new ArrayList<>();
+        if (start >= size)
+            return ranges;
+
+        int targetRanges = Runtime.getRuntime().availableProcessors() * RANGES_PER_CORE;
+        long rangeSize = Math.max(MIN_RANGE_SIZE, (size - start) / targetRanges);
+        rangeSize = Math.min(rangeSize, MAX_RANGE_SIZE / 2);
+
+        while (start < size) {
+            long end = start + rangeSize >= size ? size : nextLineStart(channel, start + rangeSize);
+            ranges.add(new long[] { start, end });
+            start = end;
+        }
+        return ranges;
+    }
+
+    /** Returns the offset of the first byte following the next newline at or after {@code from}. */
+    private static long nextLineStart(FileChannel channel, long from) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        long position = from;
+        while (true) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0)
+                return channel.size();
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n')
+                    return position + i + 1;
+            }
+            position += read;
+        }
+    }
+
+    /** Parses all complete lines in the byte range [start, end) of the file. */
+    private static List<PatientRecord> parseRange(FileChannel channel, long start, long end) {
+        try {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            List<PatientRecord> records = new ArrayList<>();
+            FieldTokenizer tokenizer = new FieldTokenizer();
+            byte[] line = new byte[256];
+            int limit = buffer.limit();
+            int lineStart = 0;
+
+            while (lineStart < limit) {
+                int lineEnd = lineStart;
+                while (lineEnd < limit && buffer.get(lineEnd) != '\n')
+                    lineEnd++;
+
+                int length = lineEnd - lineStart;
+                if (length > line.length)
+                    line = new byte[Math.max(length, line.length * 2)];
+                buffer.get(lineStart, line, 0, length);
+                parseLine(tokenizer, line, 0, length, records::add);
+                lineStart = lineEnd + 1;
+            }
+            return records;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
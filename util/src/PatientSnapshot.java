@@ -0,0 +1,248 @@
+package util.src;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+import java.util.zip.CRC32C;
+
+/**
+ * A compact binary copy of a {@link PatientTable}, stored next to the CSV file
+ * it was parsed from as {@code <file>.snapshot}. Later runs memory-map the
+ * snapshot and copy its columns straight into arrays instead of parsing the CSV
+ * again.
+ *
+ * A snapshot is keyed by the size, modification time and a sampled content hash
+ * of its source file; if any of them no longer match, the snapshot is ignored.
+ *
+ * Layout (big-endian):
+ * <pre>
+ *   header       magic, version, source size, source mtime, source hash, rows, dictionary bytes
+ *   dictionaries for each categorical column: value count, then (length, UTF-8 bytes) per value
+ *   columns      id, age, roomNumber, admissionDay, dischargeDay, bill, then the codes of
+ *                each categorical column; rows values of 4 bytes each
+ * </pre>
+ */
+public class PatientSnapshot {
+
+    private static final long MAGIC = 0x50544e534e415031L; // "PTNSNAP1"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8 + 4 + 8 + 8 + 8 + 4 + 8;
+
+    /** Number of evenly spaced blocks of the source file that are hashed. */
+    private static final int HASH_SAMPLES = 16;
+    private static final int HASH_BLOCK_SIZE = 64 * 1024;
+
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+    private PatientSnapshot() {}
+
+    /** Returns where the snapshot of the given CSV file lives. */
+    public static Path snapshotPath(Path csv) {
+        return csv.resolveSibling(csv.getFileName() + ".snapshot");
+    }
+
+    /**
+     * Loads the snapshot of the given CSV file.
+     *
+     * @param csv The CSV file the snapshot was created from.
+     * @return The table, or empty if there is no snapshot or it is out of date.
+     * @throws IOException if the snapshot exists but cannot be read.
+     */
+    public static Optional<PatientTable> load(Path csv) throws IOException {
+        Path snapshot = snapshotPath(csv);
+        if (!Files.isRegularFile(snapshot))
+            return Optional.empty();
+
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE)
+                return Optional.empty();
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getLong() != MAGIC || header.getInt() != VERSION)
+                return Optional.empty();
+            long sourceSize = header.getLong();
+            long sourceModified = header.getLong();
+            long sourceHash = header.getLong();
+            if (sourceSize != Files.size(csv)
+                    || sourceModified != Files.getLastModifiedTime(csv).toMillis()
+                    || sourceHash != contentHash(csv))
+                return Optional.empty();
+            int rows = header.getInt();
+            long dictionaryBytes = header.getLong();
+
+            // Read the dictionaries and map each stored code onto the live dictionary code.
+            Dictionary[] dictionaries = PatientTable.newDictionaries();
+            int[][] remaps = new int[dictionaries.length][];
+            ByteBuffer section = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, dictionaryBytes);
+            for (int column = 0; column < dictionaries.length; column++) {
+                remaps[column] = new int[section.getInt()];
+                for (int code = 0; code < remaps[column].length; code++) {
+                    byte[] value = new byte[section.getInt()];
+                    section.get(value);
+                    remaps[column][code] = dictionaries[column].code(new String(value, StandardCharsets.UTF_8));
+                }
+            }
+            long position = HEADER_SIZE + dictionaryBytes;
+
+            int[] id = readInts(channel, position, rows);
+            position += 4L * rows;
+            int[] age = readInts(channel, position, rows);
+            position += 4L * rows;
+            int[] roomNumber = readInts(channel, position, rows);
+            position += 4L * rows;
+            int[] admissionDay = readInts(channel, position, rows);
+            position += 4L * rows;
+            int[] dischargeDay = readInts(channel, position, rows);
+            position += 4L * rows;
+            float[] bill = new float[rows];
+            map(channel, position, rows).asFloatBuffer().get(bill);
+            position += 4L * rows;
+
+            PatientTable.Categorical[] categoricals = new PatientTable.Categorical[dictionaries.length];
+            for (int column = 0; column < dictionaries.length; column++) {
+                int[] codes = readInts(channel, position, rows);
+                position += 4L * rows;
+                int[] remap = remaps[column];
+                for (int row = 0; row < rows; row++)
+                    codes[row] = remap[codes[row]];
+                categoricals[column] = new PatientTable.Categorical(codes, dictionaries[column]);
+            }
+
+            return Optional.of(new PatientTable(
+                rows, id, age, bill, roomNumber, admissionDay, dischargeDay, categoricals));
+        }
+    }
+
+    /**
+     * Writes the snapshot of the given CSV file. The snapshot is written to a
+     * temporary file first and then moved into place, so a concurrent reader
+     * never sees a partial snapshot.
+     *
+     * @param csv The CSV file the table was parsed from.
+     * @param table The parsed table.
+     * @throws IOException if the snapshot cannot be written.
+     */
+    public static void write(Path csv, PatientTable table) throws IOException {
+        Path snapshot = snapshotPath(csv);
+        Path temporary = snapshot.resolveSibling(snapshot.getFileName() + ".tmp");
+
+        try (FileChannel channel = FileChannel.open(
+                temporary,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+            buffer.putLong(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putLong(Files.size(csv));
+            buffer.putLong(Files.getLastModifiedTime(csv).toMillis());
+            buffer.putLong(contentHash(csv));
+            buffer.putInt(table.rows);
+            buffer.putLong(0); // Dictionary bytes, filled in once known.
+
+            PatientTable.Categorical[] categoricals = table.categoricals();
+            long dictionaryBytes = 0;
+            for (PatientTable.Categorical column : categoricals) {
+                int values = column.cardinality();
+                ensureRemaining(channel, buffer, 4);
+                buffer.putInt(values);
+                dictionaryBytes += 4;
+                for (int code = 0; code < values; code++) {
+                    byte[] value = column.value(code).getBytes(StandardCharsets.UTF_8);
+                    ensureRemaining(channel, buffer, 4 + value.length);
+                    buffer.putInt(value.length);
+                    buffer.put(value);
+                    dictionaryBytes += 4 + value.length;
+                }
+            }
+
+            writeInts(channel, buffer, table.id);
+            writeInts(channel, buffer, table.age);
+            writeInts(channel, buffer, table.roomNumber);
+            writeInts(channel, buffer, table.admissionDay);
+            writeInts(channel, buffer, table.dischargeDay);
+            for (int written = 0; written < table.rows; ) {
+                ensureRemaining(channel, buffer, 4);
+                int count = Math.min(table.rows - written, buffer.remaining() / 4);
+                buffer.asFloatBuffer().put(table.bill, written, count);
+                buffer.position(buffer.position() + 4 * count);
+                written += count;
+            }
+            for (PatientTable.Categorical column : categoricals)
+                writeInts(channel, buffer, column.codes);
+            flush(channel, buffer);
+
+            ByteBuffer length = ByteBuffer.allocate(8).putLong(0, dictionaryBytes);
+            channel.write(length, HEADER_SIZE - 8);
+        }
+        Files.move(temporary, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Hashes evenly spaced blocks of the file, including its first and last
+     * block. This detects in-place edits that keep the size and modification
+     * time without reading the whole file.
+     */
+    private static long contentHash(Path file) throws IOException {
+        CRC32C crc = new CRC32C();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer block = ByteBuffer.allocate(HASH_BLOCK_SIZE);
+            long stride = Math.max(HASH_BLOCK_SIZE, (size - HASH_BLOCK_SIZE) / (HASH_SAMPLES - 1));
+            for (long offset = 0; offset < size; offset += stride) {
+                readBlock(channel, block, offset);
+                crc.update(block);
+            }
+            readBlock(channel, block, Math.max(0, size - HASH_BLOCK_SIZE));
+            crc.update(block);
+        }
+        return crc.getValue();
+    }
+
+    private static void readBlock(FileChannel channel, ByteBuffer block, long offset) throws IOException {
+        block.clear();
+        while (block.hasRemaining() && channel.read(block, offset + block.position()) > 0);
+        block.flip();
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, long position, int values) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, 4L * values);
+    }
+
+    private static int[] readInts(FileChannel channel, long position, int rows) throws IOException {
+        int[] values = new int[rows];
+        map(channel, position, rows).asIntBuffer().get(values);
+        return values;
+    }
+
+    private static void writeInts(FileChannel channel, ByteBuffer buffer, int[] values) throws IOException {
+        int written = 0;
+        while (written < values.length) {
+            ensureRemaining(channel, buffer, 4);
+            int count = Math.min(values.length - written, buffer.remaining() / 4);
+            buffer.asIntBuffer().put(values, written, count);
+            buffer.position(buffer.position() + 4 * count);
+            written += count;
+        }
+    }
+
+    private static void ensureRemaining(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+        if (buffer.remaining() < bytes)
+            flush(channel, buffer);
+        if (buffer.remaining() < bytes)
+            throw new IOException("Value of " + bytes + " bytes does not fit the snapshot buffer");
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+}
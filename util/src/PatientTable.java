@@ -0,0 +1,354 @@
+package util.src;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A struct-of-arrays form of a list of {@link PatientRecord}s. Every column is
+ * stored in its own primitive array indexed by row, dates are stored as epoch
+ * days and string columns are dictionary encoded, so a scan over one column
+ * touches a single contiguous array and a row costs a few dozen bytes instead of
+ * a full object graph. Categorical columns share the {@link Dictionary}
+ * instances used by {@link PatientRecord}, so their codes match the record codes.
+ *
+ * A table is immutable once built; use a {@link Builder} to create one. The
+ * column arrays are only shared within this package, and are read one row at a
+ * time through the accessors of the table and of its {@link Categorical}s.
+ */
+public class PatientTable {
+
+    public final int rows;
+
+    final int[] id;
+    final int[] age;
+    final float[] bill;
+    final int[] roomNumber;
+    final int[] admissionDay;
+    final int[] dischargeDay;
+
+    public final Categorical name;
+    public final Categorical ageGroup;
+    public final Categorical gender;
+    public final Categorical bloodType;
+    public final Categorical condition;
+    public final Categorical doctor;
+    public final Categorical hospital;
+    public final Categorical provider;
+    public final Categorical admissionType;
+    public final Categorical medication;
+    public final Categorical testResults;
+
+    /**
+     * A dictionary encoded string column. Each row holds a small integer code
+     * and every distinct value is stored once.
+     */
+    public static class Categorical {
+        final int[] codes;
+        final Dictionary dictionary;
+
+        Categorical(int[] codes, Dictionary dictionary) {
+            this.codes = codes;
+            this.dictionary = dictionary;
+        }
+
+        /** Returns the code stored in the given row. */
+        public int code(int row) {
+            return codes[row];
+        }
+
+        /** Returns the code of the given string, or -1 if the column's dictionary has never seen it. */
+        public int find(String value) {
+            return dictionary.find(value);
+        }
+
+        /** Returns the string for the given code. */
+        public String value(int code) {
+            return dictionary.value(code);
+        }
+
+        /** Returns the string stored in the given row. */
+        public String valueAt(int row) {
+            return dictionary.value(codes[row]);
+        }
+
+        /** Returns the number of codes in the column's dictionary, an upper bound for any code. */
+        public int cardinality() {
+            return dictionary.size();
+        }
+    }
+
+    PatientTable(
+        int rows,
+        int[] id,
+        int[] age,
+        float[] bill,
+        int[] roomNumber,
+        int[] admissionDay,
+        int[] dischargeDay,
+        Categorical[] categoricals
+    ) {
+        this.rows = rows;
+        this.id = id;
+        this.age = age;
+        this.bill = bill;
+        this.roomNumber = roomNumber;
+        this.admissionDay = admissionDay;
+        this.dischargeDay = dischargeDay;
+        this.name = categoricals[0];
+        this.ageGroup = categoricals[1];
+        this.gender = categoricals[2];
+        this.bloodType = categoricals[3];
+        this.condition = categoricals[4];
+        this.doctor = categoricals[5];
+        this.hospital = categoricals[6];
+        this.provider = categoricals[7];
+        this.admissionType = categoricals[8];
+        this.medication = categoricals[9];
+        this.testResults = categoricals[10];
+    }
+
+    /** Returns the patient id of the given row. */
+    public int id(int row) {
+        return id[row];
+    }
+
+    /** Returns the patient age of the given row. */
+    public int age(int row) {
+        return age[row];
+    }
+
+    /** Returns the billing amount of the given row. */
+    public float bill(int row) {
+        return bill[row];
+    }
+
+    /** Returns the room number of the given row. */
+    public int roomNumber(int row) {
+        return roomNumber[row];
+    }
+
+    /** Returns the admission date of the given row, in days since the epoch. */
+    public int admissionDay(int row) {
+        return admissionDay[row];
+    }
+
+    /** Returns the discharge date of the given row, in days since the epoch. */
+    public int dischargeDay(int row) {
+        return dischargeDay[row];
+    }
+
+    /** Returns the categorical columns in the order expected by the constructor. */
+    Categorical[] categoricals() {
+        return new Categorical[] {
+            name, ageGroup, gender, bloodType, condition, doctor,
+            hospital, provider, admissionType, medication, testResults
+        };
+    }
+
+    /**
+     * Returns the dictionaries for the categorical columns of a new table, in
+     * the order expected by the constructor. Names and doctors are
+     * high-cardinality, so they get dictionaries private to the table.
+     */
+    static Dictionary[] newDictionaries() {
+        return new Dictionary[] {
+            new Dictionary(), Dictionary.AGE_GROUP, Dictionary.GENDER, Dictionary.BLOOD_TYPE,
+            Dictionary.CONDITION, new Dictionary(), Dictionary.HOSPITAL, Dictionary.PROVIDER,
+            Dictionary.ADMISSION_TYPE, Dictionary.MEDICATION, Dictionary.TEST_RESULTS
+        };
+    }
+
+    /** Converts a list of records into a table, preserving their order. */
+    public static PatientTable fromRecords(List<PatientRecord> records) {
+        Builder builder = new Builder(records.size());
+        records.forEach(builder::add);
+        return builder.build();
+    }
+
+    /** Returns a table of the first {@code limit} rows, or this table if it has no more. */
+    public PatientTable head(int limit) {
+        if (limit >= rows)
+            return this;
+        Categorical[] columns = categoricals();
+        for (int i = 0; i < columns.length; i++)
+            columns[i] = new Categorical(Arrays.copyOf(columns[i].codes, limit), columns[i].dictionary);
+        return new PatientTable(
+            limit,
+            Arrays.copyOf(id, limit),
+            Arrays.copyOf(age, limit),
+            Arrays.copyOf(bill, limit),
+            Arrays.copyOf(roomNumber, limit),
+            Arrays.copyOf(admissionDay, limit),
+            Arrays.copyOf(dischargeDay, limit),
+            columns
+        );
+    }
+
+    /** Materializes the given row as a {@link PatientRecord}. */
+    public PatientRecord record(int row) {
+        PatientRecord record = new PatientRecord();
+        record.id = id[row];
+        record.name = name.valueAt(row);
+        record.age = age[row];
+        record.ageGroup = ageGroup.valueAt(row);
+        record.gender = gender.valueAt(row);
+        record.bloodType = bloodType.valueAt(row);
+        record.condition = condition.valueAt(row);
+        record.admissionDate = LocalDate.ofEpochDay(admissionDay[row]);
+        record.doctor = doctor.valueAt(row);
+        record.hospital = hospital.valueAt(row);
+        record.provider = provider.valueAt(row);
+        record.bill = bill[row];
+        record.roomNumber = roomNumber[row];
+        record.admissionType = admissionType.valueAt(row);
+        record.dischargeDate = LocalDate.ofEpochDay(dischargeDay[row]);
+        record.medication = medication.valueAt(row);
+        record.testResults = testResults.valueAt(row);
+        record.ageGroupCode = ageGroup.codes[row];
+        record.genderCode = gender.codes[row];
+        record.bloodTypeCode = bloodType.codes[row];
+        record.conditionCode = condition.codes[row];
+        record.hospitalCode = hospital.codes[row];
+        record.providerCode = provider.codes[row];
+        record.admissionTypeCode = admissionType.codes[row];
+        record.medicationCode = medication.codes[row];
+        record.testResultsCode = testResults.codes[row];
+        return record;
+    }
+
+    /** Materializes every row as a {@link PatientRecord}, in row order. */
+    public List<PatientRecord> toRecords() {
+        List<PatientRecord> records = new ArrayList<>(rows);
+        for (int row = 0; row < rows; row++)
+            records.add(record(row));
+        return records;
+    }
+
+    /** Accumulates rows into growable column arrays. */
+    public static class Builder {
+        private int rows = 0;
+        private int[] id;
+        private int[] age;
+        private float[] bill;
+        private int[] roomNumber;
+        private int[] admissionDay;
+        private int[] dischargeDay;
+
+        private final CategoricalBuilder[] categoricals;
+        private final CategoricalBuilder name;
+        private final CategoricalBuilder ageGroup;
+        private final CategoricalBuilder gender;
+        private final CategoricalBuilder bloodType;
+        private final CategoricalBuilder condition;
+        private final CategoricalBuilder doctor;
+        private final CategoricalBuilder hospital;
+        private final CategoricalBuilder provider;
+        private final CategoricalBuilder admissionType;
+        private final CategoricalBuilder medication;
+        private final CategoricalBuilder testResults;
+
+        public Builder() {
+            this(1024);
+        }
+
+        public Builder(int expectedRows) {
+            int capacity = Math.max(expectedRows, 16);
+            id = new int[capacity];
+            age = new int[capacity];
+            bill = new float[capacity];
+            roomNumber = new int[capacity];
+            admissionDay = new int[capacity];
+            dischargeDay = new int[capacity];
+
+            Dictionary[] dictionaries = newDictionaries();
+            categoricals = new CategoricalBuilder[dictionaries.length];
+            for (int i = 0; i < dictionaries.length; i++)
+                categoricals[i] = new CategoricalBuilder(dictionaries[i]);
+            name = categoricals[0];
+            ageGroup = categoricals[1];
+            gender = categoricals[2];
+            bloodType = categoricals[3];
+            condition = categoricals[4];
+            doctor = categoricals[5];
+            hospital = categoricals[6];
+            provider = categoricals[7];
+            admissionType = categoricals[8];
+            medication = categoricals[9];
+            testResults = categoricals[10];
+        }
+
+        /** Appends the given record as the next row. */
+        public Builder add(PatientRecord record) {
+            ensureCapacity();
+            id[rows] = record.id;
+            age[rows] = record.age;
+            bill[rows] = record.bill;
+            roomNumber[rows] = record.roomNumber;
+            admissionDay[rows] = (int) record.admissionDate.toEpochDay();
+            dischargeDay[rows] = (int) record.dischargeDate.toEpochDay();
+            name.add(rows, name.dictionary.code(record.name));
+            doctor.add(rows, doctor.dictionary.code(record.doctor));
+            ageGroup.add(rows, record.ageGroupCode);
+            gender.add(rows, record.genderCode);
+            bloodType.add(rows, record.bloodTypeCode);
+            condition.add(rows, record.conditionCode);
+            hospital.add(rows, record.hospitalCode);
+            provider.add(rows, record.providerCode);
+            admissionType.add(rows, record.admissionTypeCode);
+            medication.add(rows, record.medicationCode);
+            testResults.add(rows, record.testResultsCode);
+            rows++;
+            return this;
+        }
+
+        public PatientTable build() {
+            Categorical[] columns = new Categorical[categoricals.length];
+            for (int i = 0; i < columns.length; i++)
+                columns[i] = categoricals[i].build(rows);
+            return new PatientTable(
+                rows,
+                Arrays.copyOf(id, rows),
+                Arrays.copyOf(age, rows),
+                Arrays.copyOf(bill, rows),
+                Arrays.copyOf(roomNumber, rows),
+                Arrays.copyOf(admissionDay, rows),
+                Arrays.copyOf(dischargeDay, rows),
+                columns
+            );
+        }
+
+        private void ensureCapacity() {
+            if (rows < id.length)
+                return;
+            int capacity = id.length * 2;
+            id = Arrays.copyOf(id, capacity);
+            age = Arrays.copyOf(age, capacity);
+            bill = Arrays.copyOf(bill, capacity);
+            roomNumber = Arrays.copyOf(roomNumber, capacity);
+            admissionDay = Arrays.copyOf(admissionDay, capacity);
+            dischargeDay = Arrays.copyOf(dischargeDay, capacity);
+        }
+    }
+
+    /** Collects the codes of one categorical column. */
+    private static class CategoricalBuilder {
+        private final Dictionary dictionary;
+        private int[] codes = new int[16];
+
+        CategoricalBuilder(Dictionary dictionary) {
+            this.dictionary = dictionary;
+        }
+
+        void add(int row, int code) {
+            if (row == codes.length)
+                codes = Arrays.copyOf(codes, codes.length * 2);
+            codes[row] = code;
+        }
+
+        Categorical build(int rows) {
+            return new Categorical(Arrays.copyOf(codes, rows), dictionary);
+        }
+    }
+}
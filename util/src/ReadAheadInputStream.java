@@ -0,0 +1,131 @@
+package util.src;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * An input stream that reads its source on a background thread. Filled blocks
+ * are handed over through a bounded queue and recycled once consumed, so an
+ * expensive source such as a decompressor runs concurrently with whoever
+ * consumes this stream, while memory stays bounded by the number of blocks.
+ */
+public class ReadAheadInputStream extends InputStream {
+
+    /** A buffer together with the number of valid bytes in it. */
+    private static class Block {
+        final byte[] data;
+        int length;
+
+        Block(int size) {
+            data = new byte[size];
+        }
+    }
+
+    /** Marks the end of the source (or a failure) in the queue of filled blocks. */
+    private static final Block END = new Block(0);
+
+    private final BlockingQueue<Block> filled;
+    private final BlockingQueue<Block> free;
+    private final Thread reader;
+    private volatile IOException failure;
+
+    private Block current;
+    private int position;
+    private boolean finished = false;
+
+    /**
+     * Starts reading the given source in the background.
+     *
+     * @param source The stream to read; it is closed by the background thread when exhausted.
+     * @param blockSize The size of each block handed over.
+     * @param blocksAhead How many filled blocks may wait to be consumed.
+     */
+    public ReadAheadInputStream(InputStream source, int blockSize, int blocksAhead) {
+        filled = new ArrayBlockingQueue<>(blocksAhead + 1);
+        free = new ArrayBlockingQueue<>(blocksAhead + 1);
+        for (int i = 0; i < blocksAhead + 1; i++)
+            free.add(new Block(blockSize));
+
+        reader = new Thread(() -> pump(source), "read-ahead");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void pump(InputStream source) {
+        try (source) {
+            while (true) {
+                Block block = free.take();
+                block.length = source.readNBytes(block.data, 0, block.data.length);
+                if (block.length == 0)
+                    break;
+                filled.put(block);
+                if (block.length < block.data.length)
+                    break;
+            }
+        } catch (IOException e) {
+            failure = e;
+        } catch (InterruptedException e) {
+            return; // Closed by the consumer, nobody is waiting for the end marker.
+        }
+
+        try {
+            filled.put(END);
+        } catch (InterruptedException e) {
+            // Closed by the consumer.
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureData())
+            return -1;
+        return current.data[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0)
+            return 0;
+        if (!ensureData())
+            return -1;
+        int count = Math.min(length, current.length - position);
+        System.arraycopy(current.data, position, buffer, offset, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public void close() {
+        reader.interrupt();
+    }
+
+    /** Makes sure the current block has unread bytes, returning false at the end of the source. */
+    private boolean ensureData() throws IOException {
+        if (current != null && position < current.length)
+            return true;
+        if (finished)
+            return false;
+
+        if (current != null)
+            free.add(current);
+        try {
+            current = filled.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for input");
+        }
+        position = 0;
+
+        if (current == END) {
+            current = null;
+            finished = true;
+            if (failure != null)
+                throw failure;
+            return false;
+        }
+        return true;
+    }
+}
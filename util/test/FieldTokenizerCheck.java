@@ -0,0 +1,65 @@
+package util.src;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Checks that {@link FieldTokenizer#nextDate()} decodes every date the way the
+ * {@code "M/d/yy"} formatter of {@link PatientRecord} does, including the edge
+ * cases the formatter resolves rather than rejects, such as days past the end
+ * of the month, and the fields both reject.
+ */
+public class FieldTokenizerCheck {
+
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("M/d/yy");
+
+    public static void main(String[] args) {
+        List<String> fields = new ArrayList<>();
+        for (int year = 0; year < 100; year++) {
+            for (int month = 0; month <= 13; month++) {
+                for (int day = 0; day <= 32; day++)
+                    fields.add(month + "/" + day + "/" + String.format("%02d", year));
+            }
+        }
+        // Leap years, padded and malformed fields.
+        fields.addAll(List.of(
+            "2/29/20", "2/29/21", "2/29/00", "2/30/24", "4/31/21", "6/31/21", "12/31/99", "1/1/00",
+            "02/05/21", "2/05/21", "02/5/21", "002/5/21", "2/005/21", "2/5/021", "2/5/2021", "2/5/1",
+            "2/5/", "2//21", "/5/21", "2/5", "", "a/5/21", "2/b/21", "2/5/2c", "-2/5/21", "+2/5/21",
+            "2/-5/21", "2/5/-1", "2 /5/21", "2/5/21 "));
+
+        FieldTokenizer tokenizer = new FieldTokenizer();
+        int failures = 0;
+        for (String field : fields) {
+            String expected = decode(() -> LocalDate.parse(field, DATE_FORMAT));
+            byte[] line = (field + ",next").getBytes(StandardCharsets.UTF_8);
+            tokenizer.reset(line, 0, line.length);
+            String actual = decode(tokenizer::nextDate);
+            if (!expected.equals(actual)) {
+                Debug.print(Status.ERROR, "Date '" + field + "'", "Expected: " + expected, "Actual: " + actual);
+                failures++;
+            } else if (!actual.startsWith("DateTimeParseException") && !tokenizer.nextString().equals("next")) {
+                Debug.print(Status.ERROR, "Date '" + field + "' did not advance to the next field");
+                failures++;
+            }
+        }
+
+        if (failures > 0)
+            throw new AssertionError(failures + " of " + fields.size() + " dates decoded differently");
+        Debug.print(Status.INFO, "FieldTokenizer decodes " + fields.size() + " dates like the M/d/yy formatter");
+    }
+
+    /** Returns the decoded date, or the simple name of the exception decoding threw. */
+    private static String decode(Supplier<LocalDate> decoder) {
+        try {
+            return decoder.get().toString();
+        }
+        catch (RuntimeException e) {
+            return e.getClass().getSimpleName();
+        }
+    }
+}